@@ -0,0 +1,64 @@
+package com.krux.server.http;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+
+/**
+ * Writes text appended to it to a channel as UTF-8 HTTP chunks of about
+ * <code>chunkBytes</code> each, for responses too large to build as one
+ * buffer. Write the response head, append the body, then {@link #finish()}.
+ * <p/>
+ * Not thread safe; the channel's own writes are, so it may be used off the
+ * event loop.
+ */
+class ChunkedTextWriter implements Appendable {
+
+    static final int DEFAULT_CHUNK_BYTES = 64 * 1024;
+
+    private final Channel channel;
+    private final int chunkBytes;
+    private ByteBuf chunk;
+
+    ChunkedTextWriter( Channel channel ) {
+        this( channel, DEFAULT_CHUNK_BYTES );
+    }
+
+    ChunkedTextWriter( Channel channel, int chunkBytes ) {
+        this.channel = channel;
+        this.chunkBytes = chunkBytes;
+        this.chunk = channel.alloc().buffer( chunkBytes );
+    }
+
+    @Override
+    public ChunkedTextWriter append( CharSequence csq ) {
+        ByteBufUtil.writeUtf8( chunk, csq );
+        if ( chunk.readableBytes() >= chunkBytes ) {
+            channel.writeAndFlush( new DefaultHttpContent( chunk ) );
+            chunk = channel.alloc().buffer( chunkBytes );
+        }
+        return this;
+    }
+
+    @Override
+    public ChunkedTextWriter append( CharSequence csq, int start, int end ) {
+        return append( csq.subSequence( start, end ) );
+    }
+
+    @Override
+    public ChunkedTextWriter append( char c ) {
+        return append( String.valueOf( c ) );
+    }
+
+    /**
+     * Writes what is left as the last chunk, which ends the response.
+     */
+    public ChannelFuture finish() {
+        ByteBuf last = chunk;
+        chunk = null;
+        return channel.writeAndFlush( new DefaultLastHttpContent( last ) );
+    }
+}
@@ -0,0 +1,259 @@
+package com.krux.server.http;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.krux.stdlib.statsd.DaemonThreadFactory;
+
+/**
+ * A sampling CPU profiler: <code>hz</code> times a second it takes the stacks
+ * of all RUNNABLE threads with {@link ThreadMXBean#dumpAllThreads} and adds
+ * them to a trie of frames, rooted at each thread's name group (see
+ * {@link ThreadUsage}). The result is in the "collapsed stacks" format that
+ * flame graph tools read, one <code>root;caller;...;callee count</code> line
+ * per distinct stack.
+ * <p/>
+ * Frames are methods: every line of a method shares one frame, as flame
+ * graphs expect. Sampling runs on a daemon thread of its own. The trie, and
+ * the table of frame names, hold at most <code>maxNodes</code> entries each,
+ * so memory stays flat however long the capture runs; once they are full,
+ * samples of stacks there is no room for are counted against their deepest
+ * known caller (see {@link #getTruncatedSamples()}).
+ * <p/>
+ * Thread dumps are taken at safepoints, so, like every profiler built on
+ * them, this one favors frames where the JVM can stop; and threads blocked in
+ * native code (e.g. waiting in epoll) count as RUNNABLE.
+ */
+public class StackProfiler {
+
+    public static final int DEFAULT_MAX_NODES = 100000;
+
+    private static final int ROOT = 0;
+
+    private final long durationNanos;
+    private final long periodNanos;
+    private final int maxNodes;
+
+    // the trie: node -> parent and frame; (parent, frame) -> node
+    private int[] parents = new int[1024];
+    private int[] frames = new int[1024];
+    private long[] selfCounts = new long[1024];
+    private int nodes = 1;
+    private final Map<Long, Integer> children = new HashMap<Long, Integer>();
+
+    // frame id -> name; frame ids by thread group, and by class then method
+    private final List<String> frameNames = new ArrayList<String>();
+    private final Map<String, Integer> groupIds = new HashMap<String, Integer>();
+    private final Map<String, Map<String, Integer>> methodIds = new HashMap<String, Map<String, Integer>>();
+
+    private long samples;
+    private long truncatedSamples;
+    private int[] path = new int[256];
+
+    public StackProfiler( long durationMs, int hz ) {
+        this( durationMs, hz, DEFAULT_MAX_NODES );
+    }
+
+    public StackProfiler( long durationMs, int hz, int maxNodes ) {
+        this.durationNanos = TimeUnit.MILLISECONDS.toNanos( durationMs );
+        this.periodNanos = TimeUnit.SECONDS.toNanos( 1 ) / Math.max( 1, hz );
+        this.maxNodes = maxNodes;
+    }
+
+    /**
+     * Starts sampling on a new daemon thread, which runs <code>done</code>
+     * when the capture is over.
+     */
+    public void start( final Runnable done ) {
+        new DaemonThreadFactory( "stack-profiler" ).newThread( new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    profile();
+                } finally {
+                    done.run();
+                }
+            }
+        } ).start();
+    }
+
+    void profile() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long self = Thread.currentThread().getId();
+        long start = System.nanoTime();
+        long next = start;
+        while ( next - start < durationNanos ) {
+            for ( ThreadInfo info : threads.dumpAllThreads( false, false ) ) {
+                // JVM internal threads have no Java stack to show
+                if ( info.getThreadState() == Thread.State.RUNNABLE && info.getThreadId() != self
+                        && info.getStackTrace().length > 0 ) {
+                    add( info.getThreadName(), info.getStackTrace() );
+                }
+            }
+            samples++;
+            next += periodNanos;
+            long now = System.nanoTime();
+            if ( next - now < 0 ) {
+                // fell behind (dumps are slow with many threads): skip ahead
+                next = now;
+                continue;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep( next - now );
+            } catch ( InterruptedException e ) {
+                return;
+            }
+        }
+    }
+
+    void add( String threadName, StackTraceElement[] stack ) {
+        String group = ThreadUsage.group( threadName );
+        int node = child( ROOT, groupId( group ) );
+        if ( node < 0 ) {
+            truncatedSamples++;
+            return;
+        }
+        // the top of the stack comes first
+        for ( int i = stack.length - 1; i >= 0; i-- ) {
+            int next = child( node, frameId( stack[i] ) );
+            if ( next < 0 ) {
+                truncatedSamples++;
+                break;
+            }
+            node = next;
+        }
+        selfCounts[node]++;
+    }
+
+    private int groupId( String group ) {
+        Integer id = groupIds.get( group );
+        if ( id == null ) {
+            id = newFrame( "[" + group + "]" );
+            if ( id >= 0 ) {
+                groupIds.put( group, id );
+            }
+        }
+        return id;
+    }
+
+    private int frameId( StackTraceElement e ) {
+        Map<String, Integer> methods = methodIds.get( e.getClassName() );
+        if ( methods == null ) {
+            methods = new HashMap<String, Integer>();
+            methodIds.put( e.getClassName(), methods );
+        }
+        Integer id = methods.get( e.getMethodName() );
+        if ( id == null ) {
+            id = newFrame( e.getClassName() + "." + e.getMethodName() );
+            if ( id >= 0 ) {
+                methods.put( e.getMethodName(), id );
+            }
+        }
+        return id;
+    }
+
+    /**
+     * @return the id of a new frame, or -1 if the frame table is full
+     */
+    private int newFrame( String name ) {
+        if ( frameNames.size() >= maxNodes ) {
+            return -1;
+        }
+        frameNames.add( name );
+        return frameNames.size() - 1;
+    }
+
+    int getFrameCount() {
+        return frameNames.size();
+    }
+
+    /**
+     * @return the child of <code>parent</code> for <code>frame</code>, or -1
+     *         if the frame is unknown, or if the child does not exist and the
+     *         trie is full
+     */
+    private int child( int parent, int frame ) {
+        if ( frame < 0 ) {
+            return -1;
+        }
+        Long key = ( (long) parent << 32 ) | frame;
+        Integer child = children.get( key );
+        if ( child != null ) {
+            return child;
+        }
+        if ( nodes >= maxNodes ) {
+            return -1;
+        }
+        if ( nodes == parents.length ) {
+            int size = Math.min( maxNodes, nodes * 2 );
+            parents = Arrays.copyOf( parents, size );
+            frames = Arrays.copyOf( frames, size );
+            selfCounts = Arrays.copyOf( selfCounts, size );
+        }
+        int node = nodes++;
+        parents[node] = parent;
+        frames[node] = frame;
+        children.put( key, node );
+        return node;
+    }
+
+    /**
+     * @return the profile in collapsed stacks format
+     */
+    public String collapsed() {
+        StringBuilder sb = new StringBuilder();
+        try {
+            collapsed( sb );
+        } catch ( IOException e ) {
+            // a StringBuilder does not throw
+            throw new IllegalStateException( e );
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes the profile in collapsed stacks format to <code>out</code> a
+     * piece at a time, so it never has to be held as one string.
+     */
+    public void collapsed( Appendable out ) throws IOException {
+        for ( int node = 1; node < nodes; node++ ) {
+            if ( selfCounts[node] == 0 ) {
+                continue;
+            }
+            int depth = 0;
+            for ( int n = node; n != ROOT; n = parents[n] ) {
+                if ( depth == path.length ) {
+                    path = Arrays.copyOf( path, depth * 2 );
+                }
+                path[depth++] = n;
+            }
+            for ( int i = depth - 1; i >= 0; i-- ) {
+                out.append( frameNames.get( frames[path[i]] ) );
+                out.append( i > 0 ? ';' : ' ' );
+            }
+            out.append( String.valueOf( selfCounts[node] ) ).append( '\n' );
+        }
+    }
+
+    /**
+     * @return how many times all threads were sampled
+     */
+    public long getSamples() {
+        return samples;
+    }
+
+    /**
+     * @return thread stacks cut short because the trie was full
+     */
+    public long getTruncatedSamples() {
+        return truncatedSamples;
+    }
+}
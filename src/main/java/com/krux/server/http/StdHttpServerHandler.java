@@ -5,30 +5,46 @@ import static io.netty.handler.codec.http.HttpHeaders.isKeepAlive;
 import static io.netty.handler.codec.http.HttpHeaders.Names.CONNECTION;
 import static io.netty.handler.codec.http.HttpHeaders.Names.CONTENT_LENGTH;
 import static io.netty.handler.codec.http.HttpHeaders.Names.CONTENT_TYPE;
+import static io.netty.handler.codec.http.HttpResponseStatus.CONFLICT;
 import static io.netty.handler.codec.http.HttpResponseStatus.CONTINUE;
 import static io.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
 import static io.netty.handler.codec.http.HttpResponseStatus.OK;
 import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelPipeline;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpHeaders.Values;
 import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.QueryStringDecoder;
 import io.netty.util.ReferenceCountUtil;
 
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.jr.ob.JSON;
 import com.krux.stdlib.KruxStdLib;
+import com.krux.stdlib.jfr.FlightRecording;
+import com.krux.stdlib.statsd.DaemonThreadFactory;
 import com.krux.stdlib.utils.SlaClient;
 
 public class StdHttpServerHandler extends ChannelInboundHandlerAdapter {
@@ -39,6 +55,24 @@ public class StdHttpServerHandler extends ChannelInboundHandlerAdapter {
 
     private final static String STATUS_URL = "__status";
     private final static String SLA_URL = "__sla";
+    private final static String THREADS_URL = "__threads";
+
+    private final static long DEFAULT_THREADS_WINDOW_MS = 1000;
+    private final static long MAX_THREADS_WINDOW_MS = 60000;
+    private final static int DEFAULT_THREADS_TOP = 10;
+
+    private final static String PROFILE_URL = "__profile";
+    private final static long DEFAULT_PROFILE_SECONDS = 10;
+    private final static long MAX_PROFILE_SECONDS = 300;
+    private final static long DEFAULT_PROFILE_HZ = 49;
+    private final static long MAX_PROFILE_HZ = 1000;
+
+    // one capture at a time
+    private static final AtomicBoolean profiling = new AtomicBoolean();
+
+    private final static String JFR_URL = "__jfr";
+
+    private static volatile FlightRecording flightRecording;
 
     private static AppState stateCode = AppState.OK;
     private static AppState failureCode = AppState.FAILURE;
@@ -84,7 +118,7 @@ public class StdHttpServerHandler extends ChannelInboundHandlerAdapter {
     public void channelRead( ChannelHandlerContext ctx, Object msg ) throws Exception {
 
         if ( msg instanceof HttpRequest ) {
-            long start = System.currentTimeMillis();
+            long start = System.nanoTime();
 
             HttpRequest req = (HttpRequest) msg;
             String uri = req.getUri();
@@ -129,6 +163,15 @@ public class StdHttpServerHandler extends ChannelInboundHandlerAdapter {
                     res.headers().set( CONNECTION, Values.KEEP_ALIVE );
                     ctx.writeAndFlush( res );
                 }
+            } else if ( path.trim().endsWith( THREADS_URL ) ) {
+                sampleThreads( ctx, uri, keepAlive );
+
+            } else if ( path.trim().endsWith( PROFILE_URL ) ) {
+                profile( ctx, uri, keepAlive );
+
+            } else if ( path.trim().endsWith( JFR_URL ) ) {
+                dumpFlightRecording( ctx, keepAlive );
+
             } else {
 
                 ChannelInboundHandlerAdapter handler = _httpHandlers.get( path );
@@ -162,9 +205,161 @@ public class StdHttpServerHandler extends ChannelInboundHandlerAdapter {
             }
 
             ReferenceCountUtil.release( msg );
-            long time = System.currentTimeMillis() - start;
-            log.info( "Request took " + time + "ms for whole request" );
-            KruxStdLib.STATSD.time( KruxStdLib.APP_NAME + "_HTTP_200", time );
+            long nanos = System.nanoTime() - start;
+            log.info( "Request took " + TimeUnit.NANOSECONDS.toMillis( nanos ) + "ms for whole request" );
+            KruxStdLib.STATSD.timeNanos( KruxStdLib.APP_NAME + "_HTTP_200", nanos );
+        }
+    }
+
+    /**
+     * Responds with the top threads by CPU and allocation over
+     * <code>?ms=</code> (default 1s), without blocking the event loop: the
+     * second sample is scheduled on it.
+     */
+    private void sampleThreads( final ChannelHandlerContext ctx, String uri, final boolean keepAlive ) {
+        Map<String, List<String>> params = new QueryStringDecoder( uri ).parameters();
+        final long windowMs = Math.min( MAX_THREADS_WINDOW_MS, longParam( params, "ms", DEFAULT_THREADS_WINDOW_MS ) );
+        // negative or past int, subList would throw
+        final int top = (int) Math.max( 1,
+                Math.min( Integer.MAX_VALUE, longParam( params, "top", DEFAULT_THREADS_TOP ) ) );
+        final ThreadUsage.Sample before = ThreadUsage.sample();
+        ctx.executor().schedule( new Runnable() {
+            @Override
+            public void run() {
+                FullHttpResponse res;
+                try {
+                    res = new DefaultFullHttpResponse( HTTP_1_1, OK, Unpooled.wrappedBuffer( JSON.std.asString(
+                            ThreadUsage.report( before, ThreadUsage.sample(), top ) ).getBytes() ) );
+                } catch ( Exception e ) {
+                    log.error( "Error while sampling threads", e );
+                    KruxStdLib.STATSD.count( KruxStdLib.APP_NAME + "_HTTP_503" );
+                    ctx.close();
+                    return;
+                }
+                res.headers().set( CONTENT_TYPE, "application/json" );
+                res.headers().set( CONTENT_LENGTH, res.content().readableBytes() );
+                if ( !keepAlive ) {
+                    ctx.writeAndFlush( res ).addListener( ChannelFutureListener.CLOSE );
+                } else {
+                    res.headers().set( CONNECTION, Values.KEEP_ALIVE );
+                    ctx.writeAndFlush( res );
+                }
+            }
+        }, Math.max( 0, windowMs ), TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Responds with a collapsed stacks CPU profile of the next
+     * <code>?seconds=</code> (default 10), sampled <code>?hz=</code> (default
+     * 49) times a second by a {@link StackProfiler} on its own thread, which
+     * also writes the response: the event loop is never blocked. The profile
+     * is streamed in chunks rather than built as one string.
+     */
+    private void profile( final ChannelHandlerContext ctx, String uri, final boolean keepAlive ) {
+        if ( !profiling.compareAndSet( false, true ) ) {
+            FullHttpResponse res = new DefaultFullHttpResponse( HTTP_1_1, CONFLICT,
+                    Unpooled.wrappedBuffer( "A profile is already being captured\n".getBytes() ) );
+            res.headers().set( CONTENT_TYPE, "text/plain" );
+            res.headers().set( CONTENT_LENGTH, res.content().readableBytes() );
+            ctx.writeAndFlush( res ).addListener( ChannelFutureListener.CLOSE );
+            return;
+        }
+        boolean started = false;
+        try {
+            Map<String, List<String>> params = new QueryStringDecoder( uri ).parameters();
+            long seconds = Math.min( MAX_PROFILE_SECONDS, longParam( params, "seconds", DEFAULT_PROFILE_SECONDS ) );
+            int hz = (int) Math.min( MAX_PROFILE_HZ, longParam( params, "hz", DEFAULT_PROFILE_HZ ) );
+            final StackProfiler profiler = new StackProfiler( TimeUnit.SECONDS.toMillis( seconds ), hz );
+            profiler.start( new Runnable() {
+                @Override
+                public void run() {
+                    profiling.set( false );
+                    HttpResponse res = new DefaultHttpResponse( HTTP_1_1, OK );
+                    res.headers().set( CONTENT_TYPE, "text/plain; charset=UTF-8" );
+                    res.headers().set( "X-Profile-Samples", profiler.getSamples() );
+                    res.headers().set( "X-Profile-Truncated-Samples", profiler.getTruncatedSamples() );
+                    HttpHeaders.setTransferEncodingChunked( res );
+                    if ( keepAlive ) {
+                        res.headers().set( CONNECTION, Values.KEEP_ALIVE );
+                    }
+                    ctx.channel().write( res );
+
+                    ChunkedTextWriter body = new ChunkedTextWriter( ctx.channel() );
+                    try {
+                        profiler.collapsed( body );
+                    } catch ( IOException e ) {
+                        // ChunkedTextWriter does not throw
+                        log.error( "Cannot write profile", e );
+                    }
+                    ChannelFuture done = body.finish();
+                    if ( !keepAlive ) {
+                        done.addListener( ChannelFutureListener.CLOSE );
+                    }
+                }
+            } );
+            started = true;
+        } finally {
+            if ( !started ) {
+                profiling.set( false );
+            }
+        }
+    }
+
+    /**
+     * Dumps the flight recording's retained events to a file under
+     * <code>BASE_APP_DIR</code> and responds with its path. Writing the file
+     * happens on a thread of its own.
+     */
+    private void dumpFlightRecording( final ChannelHandlerContext ctx, final boolean keepAlive ) {
+        final FlightRecording recording = flightRecording;
+        if ( recording == null ) {
+            FullHttpResponse res = new DefaultFullHttpResponse( HTTP_1_1, NOT_FOUND,
+                    Unpooled.wrappedBuffer( "No flight recording, see --jfr-max-age-minutes\n".getBytes() ) );
+            res.headers().set( CONTENT_TYPE, "text/plain" );
+            res.headers().set( CONTENT_LENGTH, res.content().readableBytes() );
+            ctx.writeAndFlush( res ).addListener( ChannelFutureListener.CLOSE );
+            return;
+        }
+        new DaemonThreadFactory( "jfr-dump" ).newThread( new Runnable() {
+            @Override
+            public void run() {
+                File file = new File( KruxStdLib.BASE_APP_DIR, KruxStdLib.APP_NAME + "-"
+                        + new SimpleDateFormat( "yyyyMMdd-HHmmss" ).format( new Date() ) + ".jfr" );
+                FullHttpResponse res;
+                try {
+                    Map<String, Object> dump = new LinkedHashMap<String, Object>();
+                    dump.put( "path", file.getAbsolutePath() );
+                    dump.put( "bytes", recording.dump( file ) );
+                    dump.put( "max_age_minutes", recording.getMaxAgeMinutes() );
+                    res = new DefaultFullHttpResponse( HTTP_1_1, OK, Unpooled.wrappedBuffer( JSON.std.asString( dump )
+                            .getBytes() ) );
+                } catch ( Exception e ) {
+                    log.error( "Error while dumping the flight recording to " + file, e );
+                    KruxStdLib.STATSD.count( KruxStdLib.APP_NAME + "_HTTP_503" );
+                    ctx.close();
+                    return;
+                }
+                res.headers().set( CONTENT_TYPE, "application/json" );
+                res.headers().set( CONTENT_LENGTH, res.content().readableBytes() );
+                if ( !keepAlive ) {
+                    ctx.writeAndFlush( res ).addListener( ChannelFutureListener.CLOSE );
+                } else {
+                    res.headers().set( CONNECTION, Values.KEEP_ALIVE );
+                    ctx.writeAndFlush( res );
+                }
+            }
+        } ).start();
+    }
+
+    private static long longParam( Map<String, List<String>> params, String name, long defaultValue ) {
+        List<String> values = params.get( name );
+        if ( values == null || values.isEmpty() ) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong( values.get( 0 ) );
+        } catch ( NumberFormatException e ) {
+            return defaultValue;
         }
     }
 
@@ -201,6 +396,13 @@ public class StdHttpServerHandler extends ChannelInboundHandlerAdapter {
         applicationState.put( StatusKeys.status.toString(), nominalStatusMessage );
     }
 
+    /**
+     * Makes the <code>/__jfr</code> route dump <code>recording</code>.
+     */
+    public static void setFlightRecording( FlightRecording recording ) {
+        flightRecording = recording;
+    }
+
     public static void addAdditionalStatus( String key, Object value ) {
         applicationState.put( key, value );
     }
@@ -0,0 +1,183 @@
+package com.krux.server.http;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Per-thread CPU time and allocated bytes, sampled twice to find the threads
+ * (and thread pools) burning CPU or churning garbage in between. Backs the
+ * <code>/__threads</code> route:
+ * 
+ * <pre>
+ * Sample before = ThreadUsage.sample();
+ * ... wait ...
+ * Map&lt;String, Object&gt; report = ThreadUsage.report( before, ThreadUsage.sample(), 10 );
+ * </pre>
+ * 
+ * Threads are grouped by their name with numbers replaced, so
+ * <code>nioEventLoopGroup-2-1</code> and <code>nioEventLoopGroup-2-7</code>
+ * both count towards <code>nioEventLoopGroup-*</code>.
+ */
+public class ThreadUsage {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final Pattern DIGITS = Pattern.compile( "\\d+" );
+    private static final Pattern WILDCARD_RUN = Pattern.compile( "\\*(?:[-_.#]\\*)+" );
+
+    /**
+     * CPU time and allocated bytes of every live thread at one instant.
+     */
+    public static class Sample {
+
+        final long nanoTime;
+        final Map<Long, long[]> usage; // thread id -> { cpu ns, allocated bytes }
+
+        Sample( long nanoTime, Map<Long, long[]> usage ) {
+            this.nanoTime = nanoTime;
+            this.usage = usage;
+        }
+    }
+
+    public static Sample sample() {
+        long[] ids = THREADS.getAllThreadIds();
+        long[] cpu;
+        long[] allocated = null;
+        if ( THREADS instanceof com.sun.management.ThreadMXBean ) {
+            com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) THREADS;
+            cpu = hotspot.getThreadCpuTime( ids );
+            if ( hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled() ) {
+                allocated = hotspot.getThreadAllocatedBytes( ids );
+            }
+        } else {
+            cpu = new long[ids.length];
+            for ( int i = 0; i < ids.length; i++ ) {
+                cpu[i] = THREADS.getThreadCpuTime( ids[i] );
+            }
+        }
+        Map<Long, long[]> usage = new HashMap<Long, long[]>( ids.length * 2 );
+        for ( int i = 0; i < ids.length; i++ ) {
+            usage.put( ids[i], new long[] { cpu[i], allocated == null ? -1 : allocated[i] } );
+        }
+        return new Sample( System.nanoTime(), usage );
+    }
+
+    /**
+     * "pool-3-thread-12" -> "pool-*-thread-*", "nioEventLoopGroup-2-1" ->
+     * "nioEventLoopGroup-*"
+     */
+    static String group( String threadName ) {
+        return WILDCARD_RUN.matcher( DIGITS.matcher( threadName ).replaceAll( "*" ) ).replaceAll( "*" );
+    }
+
+    /**
+     * @return the <code>top</code> threads and thread groups by CPU use (in
+     *         percent of one core) and by allocation rate (bytes per second)
+     *         between the two samples, ready to serialize as JSON; at least
+     *         one of each whatever <code>top</code> says
+     */
+    public static Map<String, Object> report( Sample before, Sample after, int top ) {
+        top = Math.max( 1, top );
+        double seconds = Math.max( 1L, after.nanoTime - before.nanoTime ) / 1e9;
+        List<Usage> threads = new ArrayList<Usage>();
+        Map<String, Usage> groups = new HashMap<String, Usage>();
+
+        long[] ids = new long[after.usage.size()];
+        int n = 0;
+        for ( Long id : after.usage.keySet() ) {
+            ids[n++] = id;
+        }
+        ThreadInfo[] infos = THREADS.getThreadInfo( ids );
+        for ( int i = 0; i < ids.length; i++ ) {
+            if ( infos[i] == null ) {
+                // died meanwhile
+                continue;
+            }
+            long[] now = after.usage.get( ids[i] );
+            long[] then = before.usage.get( ids[i] );
+            // threads started in between count from zero
+            long cpu = now[0] < 0 ? 0 : now[0] - ( then == null || then[0] < 0 ? 0 : then[0] );
+            long allocated = now[1] < 0 ? 0 : now[1] - ( then == null || then[1] < 0 ? 0 : then[1] );
+
+            String name = infos[i].getThreadName();
+            Usage thread = new Usage( name );
+            thread.add( cpu, allocated );
+            threads.add( thread );
+
+            String groupName = group( name );
+            Usage group = groups.get( groupName );
+            if ( group == null ) {
+                group = new Usage( groupName );
+                groups.put( groupName, group );
+            }
+            group.add( cpu, allocated );
+        }
+
+        Map<String, Object> report = new LinkedHashMap<String, Object>();
+        report.put( "window_ms", Math.round( seconds * 1000 ) );
+        report.put( "threads", threads.size() );
+        List<Usage> groupList = new ArrayList<Usage>( groups.values() );
+        report.put( "groups_by_cpu", top( groupList, BY_CPU, top, seconds ) );
+        report.put( "groups_by_allocation", top( groupList, BY_ALLOCATION, top, seconds ) );
+        report.put( "threads_by_cpu", top( threads, BY_CPU, top, seconds ) );
+        report.put( "threads_by_allocation", top( threads, BY_ALLOCATION, top, seconds ) );
+        return report;
+    }
+
+    private static List<Map<String, Object>> top( List<Usage> usages, Comparator<Usage> order, int top,
+            double seconds ) {
+        Collections.sort( usages, order );
+        List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
+        for ( Usage u : usages.subList( 0, Math.min( top, usages.size() ) ) ) {
+            Map<String, Object> m = new LinkedHashMap<String, Object>();
+            m.put( "name", u.name );
+            if ( u.threads > 1 ) {
+                m.put( "threads", u.threads );
+            }
+            m.put( "cpu_pct", Math.round( u.cpuNanos / seconds / 1e6 ) / 10.0 );
+            m.put( "alloc_bytes_per_sec", Math.round( u.allocatedBytes / seconds ) );
+            result.add( m );
+        }
+        return result;
+    }
+
+    private static class Usage {
+
+        final String name;
+        int threads;
+        long cpuNanos;
+        long allocatedBytes;
+
+        Usage( String name ) {
+            this.name = name;
+        }
+
+        void add( long cpu, long allocated ) {
+            threads++;
+            cpuNanos += cpu;
+            allocatedBytes += allocated;
+        }
+    }
+
+    private static final Comparator<Usage> BY_CPU = new Comparator<Usage>() {
+        @Override
+        public int compare( Usage a, Usage b ) {
+            return Long.compare( b.cpuNanos, a.cpuNanos );
+        }
+    };
+
+    private static final Comparator<Usage> BY_ALLOCATION = new Comparator<Usage>() {
+        @Override
+        public int compare( Usage a, Usage b ) {
+            return Long.compare( b.allocatedBytes, a.allocatedBytes );
+        }
+    };
+}
@@ -3,7 +3,9 @@ package com.krux.stdlib;
 import static java.util.Arrays.asList;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -11,8 +13,6 @@ import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Properties;
 import java.util.Queue;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
@@ -24,14 +24,33 @@ import org.slf4j.LoggerFactory;
 
 import ch.qos.logback.classic.Level;
 
+import com.codahale.metrics.MetricRegistry;
+
 import com.krux.server.http.StdHttpServer;
 import com.krux.server.http.StdHttpServerHandler;
+import com.krux.stdlib.jfr.FlightRecording;
+import com.krux.stdlib.jfr.FlightRecordingSupport;
 import com.krux.stdlib.logging.LoggerConfigurator;
 import com.krux.stdlib.shutdown.ShutdownTask;
+import com.krux.stdlib.statsd.CgroupStatsdReporter;
+import com.krux.stdlib.statsd.DatagramSocketTransport;
+import com.krux.stdlib.statsd.DiskIoStatsdReporter;
+import com.krux.stdlib.statsd.FallbackTransport;
+import com.krux.stdlib.statsd.HiccupDetector;
 import com.krux.stdlib.statsd.JDKAndSystemStatsdReporter;
+import com.krux.stdlib.statsd.JvmMemoryStatsdReporter;
+import com.krux.stdlib.statsd.KeyCardinalityGuard;
 import com.krux.stdlib.statsd.KruxStatsdClient;
+import com.krux.stdlib.statsd.NetworkStatsdReporter;
 import com.krux.stdlib.statsd.NoopStatsdClient;
+import com.krux.stdlib.statsd.ShardedTransport;
 import com.krux.stdlib.statsd.StatsdClient;
+import com.krux.stdlib.statsd.StatsdMetricsReporter;
+import com.krux.stdlib.statsd.StatsdPacketBatcher;
+import com.krux.stdlib.statsd.StatsdReporter;
+import com.krux.stdlib.statsd.StatsdReporterScheduler;
+import com.krux.stdlib.statsd.StatsdTransport;
+import com.krux.stdlib.statsd.UnixSocketTransport;
 
 /**
  * @author casspc
@@ -42,6 +61,11 @@ public class KruxStdLib {
     static Logger LOGGER = null;
 
     public static StatsdClient STATSD = new NoopStatsdClient();
+    /**
+     * Shared Codahale registry; reported through {@link #STATSD} every
+     * <code>--stats-metrics-interval-ms</code> when stats are enabled
+     */
+    public static final MetricRegistry METRICS = new MetricRegistry();
     public static String ENV;
     public static String APP_NAME;
     public static String APP_VERSION;
@@ -67,11 +91,19 @@ public class KruxStdLib {
     private static final String KRUX_STATS_PORT_PROPERTY = "krux.stats.port";
     private static final String KRUX_STATS_ENABLED_PROPERTY = "krux.stats.enabled";
 
+    // statsd is shut down after every app hook; not MAX_VALUE since
+    // ShutdownTask compares priorities by subtraction
+    private static final int STATSD_SHUTDOWN_PRIORITY = Integer.MAX_VALUE / 2;
+
     // holds all registered Runnable shutdown hooks (which are executed
     // synchronously in the
     // order added to this list.
     private static Queue<ShutdownTask> shutdownHooks = new PriorityQueue<ShutdownTask>();
 
+    // runs all periodic stats reporters, the built-in ones and the app's
+    private static final StatsdReporterScheduler REPORTERS = new StatsdReporterScheduler(
+            LoggerFactory.getLogger( StatsdReporterScheduler.class ) );
+
     // holds list of registered ChannelInboundHandlerAdapters for serving http
     // responses
     private static Map<String, ChannelInboundHandlerAdapter> httpHandlers = new HashMap<String, ChannelInboundHandlerAdapter>();
@@ -184,6 +216,18 @@ public class KruxStdLib {
             final int slaInSecondsDefault = 300;
             final Integer httpListenerPort = 0;
             final int defaultHeapReporterIntervalMs = 1000;
+            final int defaultHiccupResolutionMs = 0;
+            final long defaultJfrMaxAgeMinutes = 0;
+            final int defaultStatsQueueSize = 16384;
+            final int defaultStatsPacketSize = 0;
+            final long defaultStatsBatchLatencyMs = StatsdPacketBatcher.DEFAULT_MAX_LATENCY_MS;
+            final long defaultStatsAggregateIntervalMs = 0;
+            final long defaultStatsTimerHistogramIntervalMs = 0;
+            final long defaultStatsKeyRateLimit = 0;
+            final long defaultStatsTelemetryIntervalMs = 10000;
+            final long defaultStatsMetricsIntervalMs = 10000;
+            final long defaultStatsUniqueIntervalMs = 60000;
+            final int defaultStatsMaxKeysPerPrefix = KeyCardinalityGuard.DEFAULT_MAX_KEYS_PER_PREFIX;
 
             OptionParser parser;
             if ( _parser == null ) {
@@ -199,6 +243,65 @@ public class KruxStdLib {
                     .ofType( String.class ).defaultsTo( defaultStatsdHost );
             OptionSpec<Integer> statsdPort = parser.accepts( "stats-port", "Listening statsd port" ).withOptionalArg()
                     .ofType( Integer.class ).defaultsTo( defaultStatsdPort );
+            OptionSpec<String> statsSocket = parser
+                    .accepts( "stats-socket",
+                            "Unix domain socket of a local statsd agent, e.g. /var/run/statsd.sock; stats go to "
+                                    + "--stats-host/--stats-port over UDP while it is missing or unreachable. "
+                                    + "Linux with Java 8 only; ignored with a warning elsewhere" )
+                    .withRequiredArg().ofType( String.class );
+            OptionSpec<String> statsEndpoints = parser
+                    .accepts( "stats-endpoints",
+                            "Comma separated statsd host:port list to shard stats over by key, instead of "
+                                    + "--stats-host/--stats-port" ).withRequiredArg().ofType( String.class );
+            OptionSpec<Integer> statsQueueSize = parser
+                    .accepts( "stats-queue-size",
+                            "Capacity of the async statsd send queue; stats are dropped, never blocked on, when it is "
+                                    + "full (0 = send on the calling thread)" ).withOptionalArg()
+                    .ofType( Integer.class ).defaultsTo( defaultStatsQueueSize );
+            OptionSpec<Integer> statsPacketSize = parser
+                    .accepts( "stats-packet-size",
+                            "Max statsd UDP payload (bytes) when packing several stats per packet, e.g. 1432, or 8932 "
+                                    + "for jumbo frames (0 = one stat per packet)" ).withOptionalArg()
+                    .ofType( Integer.class ).defaultsTo( defaultStatsPacketSize );
+            OptionSpec<Long> statsBatchLatencyMs = parser
+                    .accepts( "stats-batch-latency-ms",
+                            "Max time (ms) a stat waits in a partially filled packet when --stats-packet-size is set" )
+                    .withOptionalArg().ofType( Long.class ).defaultsTo( defaultStatsBatchLatencyMs );
+            OptionSpec<Long> statsAggregateIntervalMs = parser
+                    .accepts( "stats-aggregate-interval-ms",
+                            "If > 0, sum counters and keep the last gauge value client-side, sending each key once "
+                                    + "per interval (ms)" ).withOptionalArg().ofType( Long.class )
+                    .defaultsTo( defaultStatsAggregateIntervalMs );
+            OptionSpec<Long> statsTimerHistogramIntervalMs = parser
+                    .accepts( "stats-timer-histogram-interval-ms",
+                            "If > 0, summarize timers client-side and send count/min/max/mean/p50/p90/p99/p999 "
+                                    + "gauges (us) once per interval (ms)" ).withOptionalArg().ofType( Long.class )
+                    .defaultsTo( defaultStatsTimerHistogramIntervalMs );
+            OptionSpec<Long> statsKeyRateLimit = parser
+                    .accepts( "stats-key-rate-limit",
+                            "If > 0, lower the sample rate of any counter or timer key sent more than this many "
+                                    + "times per second (0 = no limit)" ).withOptionalArg().ofType( Long.class )
+                    .defaultsTo( defaultStatsKeyRateLimit );
+            OptionSpec<Long> statsTelemetryIntervalMs = parser
+                    .accepts( "stats-telemetry-interval-ms",
+                            "Interval (ms) for the statsd client's own statsd_client.* stats (sent, dropped, failed, "
+                                    + "bytes, packets, send latency) (0 = off)" ).withOptionalArg().ofType( Long.class )
+                    .defaultsTo( defaultStatsTelemetryIntervalMs );
+            OptionSpec<Long> statsMetricsIntervalMs = parser
+                    .accepts( "stats-metrics-interval-ms",
+                            "Interval (ms) for reporting the KruxStdLib.METRICS Codahale registry to statsd "
+                                    + "(0 = off)" ).withOptionalArg().ofType( Long.class )
+                    .defaultsTo( defaultStatsMetricsIntervalMs );
+            OptionSpec<Long> statsUniqueIntervalMs = parser
+                    .accepts( "stats-unique-interval-ms",
+                            "Interval (ms) over which STATSD.unique(...) counts distinct ids per key, sending one "
+                                    + "estimate gauge per key (0 = off)" ).withOptionalArg().ofType( Long.class )
+                    .defaultsTo( defaultStatsUniqueIntervalMs );
+            OptionSpec<Integer> statsMaxKeysPerPrefix = parser
+                    .accepts( "stats-max-keys-per-prefix",
+                            "Distinct stat keys allowed per key prefix (up to the first '.' or '_'); further new "
+                                    + "keys are sent as <prefix>.__overflow__ (0 = no limit)" ).withOptionalArg()
+                    .ofType( Integer.class ).defaultsTo( defaultStatsMaxKeysPerPrefix );
             OptionSpec<String> environment = parser.accepts( "env", "Operating environment" ).withOptionalArg()
                     .ofType( String.class ).defaultsTo( defaultEnv );
             OptionSpec<String> logLevel = parser
@@ -219,8 +322,16 @@ public class KruxStdLib {
                     .accepts( "stats-environment", "Stats environment (dictates statsd prefix)" ).withOptionalArg()
                     .ofType( String.class ).defaultsTo( statsEnvironmentDefault );
             OptionSpec<Integer> heapReporterIntervalMs = parser
-                    .accepts( "heap-stats-interval-ms", "Interval (ms) for used heap statsd gauge" ).withOptionalArg()
+                    .accepts( "heap-stats-interval-ms", "Interval (ms) for heap, GC and system stats" ).withOptionalArg()
                     .ofType( Integer.class ).defaultsTo( defaultHeapReporterIntervalMs );
+            OptionSpec<Integer> hiccupResolutionMs = parser
+                    .accepts( "hiccup-resolution-ms",
+                            "Sleep (ms) of the JVM pause detector, reported every heap-stats-interval-ms (0 = off)" )
+                    .withOptionalArg().ofType( Integer.class ).defaultsTo( defaultHiccupResolutionMs );
+            OptionSpec<Long> jfrMaxAgeMinutes = parser
+                    .accepts( "jfr-max-age-minutes",
+                            "Keep a continuous JFR recording of this many minutes, dumped by /__jfr (0 = off)" )
+                    .withOptionalArg().ofType( Long.class ).defaultsTo( defaultJfrMaxAgeMinutes );
             OptionSpec<Boolean> handleLogRotation = parser
                     .accepts( "rotate-logs",
                             "If true, log to a rolling file appender that will keep a maximum of 10 log files, 10MB each" )
@@ -299,7 +410,35 @@ public class KruxStdLib {
                 // without a value, enables statsd
                 if ( _options.has( enableStatsd ) ) {
                     LOGGER.info( "statsd metrics enabled" );
-                    STATSD = new KruxStatsdClient( _options.valueOf( statsdHost ), _options.valueOf( statsdPort ), LOGGER );
+                    StatsdTransport udp;
+                    if ( _options.has( statsEndpoints ) ) {
+                        udp = shardedTransport( _options.valueOf( statsEndpoints ), _options.valueOf( statsPacketSize ),
+                                _options.valueOf( statsBatchLatencyMs ) );
+                    } else {
+                        int port = _options.valueOf( statsdPort );
+                        udp = new DatagramSocketTransport( InetAddress.getByName( _options.valueOf( statsdHost ) ),
+                                port < 0 ? StatsdClient.DEFAULT_PORT : port );
+                    }
+                    StatsdTransport transport = statsdTransport( _options.valueOf( statsSocket ), udp );
+                    KruxStatsdClient client = new KruxStatsdClient( transport, LOGGER, _options.valueOf( statsQueueSize ) );
+                    client.setMaxKeysPerPrefix( _options.valueOf( statsMaxKeysPerPrefix ) );
+                    if ( client.getKeyGuard() != null ) {
+                        StdHttpServerHandler.addAdditionalStatus( "statsd_key_cardinality", client.getKeyGuard() );
+                    }
+                    STATSD = client;
+                    if ( transport instanceof ShardedTransport ) {
+                        // shards batch per endpoint
+                        StdHttpServerHandler.addAdditionalStatus( "statsd_endpoints",
+                                ( (ShardedTransport) transport ).getEndpoints() );
+                    } else {
+                        STATSD.setBatching( _options.valueOf( statsPacketSize ), _options.valueOf( statsBatchLatencyMs ) );
+                    }
+                    STATSD.setAggregation( _options.valueOf( statsAggregateIntervalMs ) );
+                    STATSD.setTimerHistograms( _options.valueOf( statsTimerHistogramIntervalMs ) );
+                    STATSD.setAdaptiveSampling( _options.valueOf( statsKeyRateLimit ) );
+                    STATSD.setUniques( _options.valueOf( statsUniqueIntervalMs ) );
+                    STATSD.setTelemetry( _options.valueOf( statsTelemetryIntervalMs ) );
+                    StdHttpServerHandler.addAdditionalStatus( "statsd_client", STATSD.getTelemetry() );
                 } else {
                     STATSD = new NoopStatsdClient();
                 }
@@ -309,6 +448,29 @@ public class KruxStdLib {
 
             STATSD.count( "process_start" );
 
+            // report the shared Codahale registry through the statsd namespace
+            final long metricsInterval = _options.valueOf( statsMetricsIntervalMs );
+            final StatsdMetricsReporter metricsReporter;
+            if ( _options.has( enableStatsd ) && metricsInterval > 0 ) {
+                metricsReporter = new StatsdMetricsReporter( METRICS, STATSD );
+                registerReporter( "metrics", metricsReporter, metricsInterval );
+            } else {
+                metricsReporter = null;
+            }
+
+            // flush stats still sitting in a partially filled packet once all
+            // other shutdown tasks (which may send stats themselves) are done
+            registerShutdownHook( new ShutdownTask( STATSD_SHUTDOWN_PRIORITY ) {
+                @Override
+                public void run() {
+                    REPORTERS.shutdown();
+                    if ( metricsReporter != null ) {
+                        metricsReporter.report();
+                    }
+                    STATSD.shutdown();
+                }
+            } );
+
             // finally, setup a shutdown thread to run all registered
             // application hooks
             Runtime.getRuntime().addShutdownHook( new Thread() {
@@ -321,24 +483,61 @@ public class KruxStdLib {
                 }
             } );
 
-            // setup a simple maintenance timer for reporting used heap size
-            // and other stuff in the future
-            final int heapStatsInterval = _options.valueOf( heapReporterIntervalMs );
-            final TimerTask timerTask = new JDKAndSystemStatsdReporter();
-            final Timer timer = new Timer( true );
-            timer.scheduleAtFixedRate( timerTask, 2 * 1000, heapStatsInterval );
+            // report used heap size, GC, system and container stats; the
+            // statsd shutdown task stops them. Without statsd they would only
+            // feed the no-op client
+            if ( _options.has( enableStatsd ) ) {
+                final int heapStatsInterval = _options.valueOf( heapReporterIntervalMs );
+                registerReporter( "jvm_system", new JDKAndSystemStatsdReporter(), heapStatsInterval );
+                registerReporter( "jvm_memory", new JvmMemoryStatsdReporter(), heapStatsInterval );
+                CgroupStatsdReporter cgroupReporter = new CgroupStatsdReporter();
+                if ( cgroupReporter.isAvailable() ) {
+                    LOGGER.info( "Reporting cgroup {} container stats", cgroupReporter.getVersion() );
+                    registerReporter( "cgroup", cgroupReporter, heapStatsInterval );
+                }
+                NetworkStatsdReporter networkReporter = new NetworkStatsdReporter();
+                if ( networkReporter.isAvailable() ) {
+                    registerReporter( "network", networkReporter, heapStatsInterval );
+                }
+                DiskIoStatsdReporter diskReporter = new DiskIoStatsdReporter( BASE_APP_DIR );
+                if ( diskReporter.isAvailable() ) {
+                    LOGGER.info( "Reporting I/O of device {} for {}", diskReporter.getDevice(), BASE_APP_DIR );
+                    registerReporter( "disk_io", diskReporter, heapStatsInterval );
+                }
+                final int hiccupResolution = _options.valueOf( hiccupResolutionMs );
+                if ( hiccupResolution > 0 ) {
+                    final HiccupDetector hiccups = new HiccupDetector( hiccupResolution );
+                    registerReporter( "hiccups", hiccups, heapStatsInterval );
+                    registerShutdownHook( new ShutdownTask( STATSD_SHUTDOWN_PRIORITY - 1 ) {
+                        @Override
+                        public void run() {
+                            hiccups.stop();
+                        }
+                    } );
+                }
+            }
+            StdHttpServerHandler.addAdditionalStatus( "statsd_reporters", REPORTERS );
 
-            // make sure we cancel that time, jic
-            Runtime.getRuntime().addShutdownHook( new Thread() {
-                @Override
-                public void run() {
+            // always-on flight recording, with a few events forwarded to statsd
+            final long jfrMaxAge = _options.valueOf( jfrMaxAgeMinutes );
+            if ( jfrMaxAge > 0 ) {
+                if ( FlightRecordingSupport.isSupported() ) {
                     try {
-                        timer.cancel();
+                        final FlightRecording recording = new FlightRecording( jfrMaxAge );
+                        StdHttpServerHandler.setFlightRecording( recording );
+                        registerShutdownHook( new ShutdownTask( STATSD_SHUTDOWN_PRIORITY - 1 ) {
+                            @Override
+                            public void run() {
+                                recording.stop();
+                            }
+                        } );
                     } catch ( Exception e ) {
-                        LOGGER.warn( "Error while attemptin to shut down heap reporter", e );
+                        LOGGER.warn( "Cannot start the flight recording", e );
                     }
+                } else {
+                    LOGGER.warn( "--jfr-max-age-minutes needs a Java 14+ runtime with JFR, not starting a recording" );
                 }
-            } );
+            }
 
             // set up an http listener if the submitted port != 0
             // start http service on a separate thread
@@ -392,6 +591,68 @@ public class KruxStdLib {
         }
     }
 
+    /**
+     * @param endpoints
+     *            host:port[,host:port...]; the port defaults to 8125, and
+     *            IPv6 addresses are written [addr]:port (or bare, without a
+     *            port)
+     */
+    private static ShardedTransport shardedTransport( String endpoints, int packetSize, long batchLatencyMs )
+            throws IOException {
+        List<InetAddress> hosts = new ArrayList<InetAddress>();
+        List<Integer> ports = new ArrayList<Integer>();
+        for ( String endpoint : StringUtils.split( endpoints, ',' ) ) {
+            String hostPort = endpoint.trim();
+            String host = hostPort;
+            int port = StatsdClient.DEFAULT_PORT;
+            int colon = hostPort.lastIndexOf( ':' );
+            if ( hostPort.startsWith( "[" ) ) {
+                int close = hostPort.indexOf( ']' );
+                if ( close < 0 ) {
+                    throw new IllegalArgumentException( "Bad statsd endpoint " + hostPort );
+                }
+                host = hostPort.substring( 1, close );
+                if ( colon > close ) {
+                    port = Integer.parseInt( hostPort.substring( colon + 1 ) );
+                }
+            } else if ( colon >= 0 && colon == hostPort.indexOf( ':' ) ) {
+                // a single ':' separates the port; more mean a bare IPv6 address
+                host = hostPort.substring( 0, colon );
+                port = Integer.parseInt( hostPort.substring( colon + 1 ) );
+            }
+            hosts.add( InetAddress.getByName( host ) );
+            ports.add( port );
+        }
+        return new ShardedTransport( hosts, ports, packetSize > 0 ? packetSize
+                : StatsdPacketBatcher.DEFAULT_MAX_PACKET_SIZE, batchLatencyMs, LOGGER );
+    }
+
+    /**
+     * The given UDP transport, or the local agent's Unix domain socket (still
+     * falling back to UDP whenever it is unreachable) if one is given and
+     * usable.
+     */
+    private static StatsdTransport statsdTransport( String socketPath, StatsdTransport udp ) throws IOException {
+        if ( socketPath == null ) {
+            return udp;
+        }
+        if ( !UnixSocketTransport.isSupported() ) {
+            LOGGER.warn( "--stats-socket needs Netty's native epoll transport, which only loads on Linux with "
+                    + "Java 8; sending stats over UDP instead", UnixSocketTransport.unavailabilityCause() );
+            return udp;
+        }
+        if ( !new File( socketPath ).exists() ) {
+            LOGGER.warn( "Statsd socket {} does not exist, sending stats over UDP", socketPath );
+            return udp;
+        }
+        try {
+            return new FallbackTransport( new UnixSocketTransport( socketPath ), udp );
+        } catch ( IOException e ) {
+            LOGGER.warn( "Cannot connect to statsd socket " + socketPath + ", sending stats over UDP", e );
+            return udp;
+        }
+    }
+
     private static String getMainClassName() {
 
         StackTraceElement[] stack = Thread.currentThread().getStackTrace();
@@ -405,13 +666,27 @@ public class KruxStdLib {
         return fixedClassName.toLowerCase();
     }
 
+    /**
+     * Runs <code>reporter</code> every <code>intervalMs</code> on the shared
+     * reporter thread until shutdown (see {@link StatsdReporterScheduler}).
+     *
+     * @param name
+     *            names the reporter's <code>reporter.&lt;name&gt;.*</code> stats
+     * @return the registration, to cancel it early or to check its runs
+     */
+    public static StatsdReporterScheduler.Registration registerReporter( String name, StatsdReporter reporter,
+            long intervalMs ) {
+        return REPORTERS.register( name, reporter, intervalMs );
+    }
+
     public static void registerShutdownHook( ShutdownTask r ) {
         shutdownHooks.add( r );
     }
 
     public static void registerHttpHandler( String url, ChannelInboundHandlerAdapter handler ) {
         if ( !_initialized ) {
-            if ( !url.contains( "__status") && !url.contains("__sla") ) {
+            if ( !url.contains( "__status") && !url.contains("__sla") && !url.contains( "__threads" )
+                    && !url.contains( "__profile" ) && !url.contains( "__jfr" ) ) {
                 httpHandlers.put( url, handler );
             }
         }
@@ -0,0 +1,163 @@
+package com.krux.stdlib.jfr;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+import com.krux.stdlib.KruxStdLib;
+
+/**
+ * An always-on JDK Flight Recorder session: a continuous recording with the
+ * JDK's low overhead "default" settings that keeps the last
+ * <code>maxAgeMinutes</code> of events, ready to {@link #dump(File)} for
+ * offline analysis, plus a live event stream that forwards a few event types
+ * to statsd as timers:
+ * <ul>
+ * <li><code>jfr.gc_pause</code>: every stop-the-world GC pause</li>
+ * <li><code>jfr.safepoint_us</code>: every safepoint, in microseconds, since
+ * most take well under a millisecond</li>
+ * <li><code>jfr.monitor_enter</code>: monitor contention of at least
+ * {@link #THRESHOLD_MS}</li>
+ * </ul>
+ * JFR needs a Java 14+ runtime for event streaming; check
+ * {@link FlightRecordingSupport#isSupported()} before starting one. The
+ * <code>jdk.jfr</code> and <code>java.time</code> APIs are only reached
+ * through reflection, so this library still builds and loads on Java 7.
+ */
+public class FlightRecording {
+
+    public static final long THRESHOLD_MS = 10;
+
+    // the public API types, which calls resolve against; runtime classes may be internal
+    private final Class<?> durationClass;
+    private final Class<?> recordingClass;
+    private final Class<?> streamClass;
+    private final Method getDuration;
+    private final Method toNanos;
+
+    private final Object recording;
+    private final Object stream;
+
+    public FlightRecording( long maxAgeMinutes ) throws IOException {
+        try {
+            durationClass = Class.forName( "java.time.Duration" );
+            toNanos = durationClass.getMethod( "toNanos" );
+            getDuration = Class.forName( "jdk.jfr.consumer.RecordedEvent" ).getMethod( "getDuration" );
+
+            Class<?> configurationClass = Class.forName( "jdk.jfr.Configuration" );
+            Object configuration = configurationClass.getMethod( "getConfiguration", String.class ).invoke( null,
+                    "default" );
+            recordingClass = Class.forName( "jdk.jfr.Recording" );
+            recording = recordingClass.getConstructor( configurationClass ).newInstance( configuration );
+            recordingClass.getMethod( "setName", String.class ).invoke( recording, "krux-stdlib" );
+            recordingClass.getMethod( "setToDisk", boolean.class ).invoke( recording, true );
+            recordingClass.getMethod( "setMaxAge", durationClass ).invoke( recording,
+                    duration( "ofMinutes", maxAgeMinutes ) );
+            recordingClass.getMethod( "start" ).invoke( recording );
+
+            streamClass = Class.forName( "jdk.jfr.consumer.RecordingStream" );
+            stream = streamClass.getConstructor().newInstance();
+            forward( "jdk.GCPhasePause", null, "jfr.gc_pause", false );
+            // the default settings only keep safepoints of 10ms or more
+            forward( "jdk.SafepointBegin", duration( "ofMillis", 0 ), "jfr.safepoint_us", true );
+            forward( "jdk.JavaMonitorEnter", duration( "ofMillis", THRESHOLD_MS ), "jfr.monitor_enter", false );
+            streamClass.getMethod( "startAsync" ).invoke( stream );
+        } catch ( InvocationTargetException e ) {
+            if ( e.getCause() instanceof ParseException ) {
+                throw new IOException( "Cannot read the default JFR configuration", e.getCause() );
+            }
+            throw new IOException( "Cannot start the flight recording", e.getCause() );
+        } catch ( ReflectiveOperationException e ) {
+            throw new IOException( "JFR event streaming is not available", e );
+        }
+    }
+
+    /**
+     * Sends the duration of every <code>event</code> as a timer, in millis
+     * (or with full precision to timer histograms), or in micros if
+     * <code>micros</code>.
+     */
+    private void forward( String event, Object threshold, final String key, final boolean micros )
+            throws ReflectiveOperationException {
+        Object settings = streamClass.getMethod( "enable", String.class ).invoke( stream, event );
+        if ( threshold != null ) {
+            Class.forName( "jdk.jfr.EventSettings" ).getMethod( "withThreshold", durationClass ).invoke( settings,
+                    threshold );
+        }
+        Class<?> consumerClass = Class.forName( "java.util.function.Consumer" );
+        Object consumer = Proxy.newProxyInstance( consumerClass.getClassLoader(), new Class<?>[] { consumerClass },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
+                        if ( method.getName().equals( "accept" ) ) {
+                            long nanos = (Long) toNanos.invoke( getDuration.invoke( args[0] ) );
+                            if ( micros ) {
+                                KruxStdLib.STATSD.time( key, TimeUnit.NANOSECONDS.toMicros( nanos ) );
+                            } else {
+                                KruxStdLib.STATSD.timeNanos( key, nanos );
+                            }
+                            return null;
+                        }
+                        if ( method.getName().equals( "equals" ) && args != null && args.length == 1 ) {
+                            return proxy == args[0];
+                        }
+                        if ( method.getName().equals( "hashCode" ) && args == null ) {
+                            return System.identityHashCode( proxy );
+                        }
+                        if ( method.getName().equals( "toString" ) && args == null ) {
+                            return "forward " + key;
+                        }
+                        // nothing else is called on a stream's consumer
+                        return null;
+                    }
+                } );
+        streamClass.getMethod( "onEvent", String.class, consumerClass ).invoke( stream, event, consumer );
+    }
+
+    private Object duration( String factory, long amount ) throws ReflectiveOperationException {
+        return durationClass.getMethod( factory, long.class ).invoke( null, amount );
+    }
+
+    /**
+     * Writes the retained events to <code>file</code>.
+     * 
+     * @return the size of the file
+     */
+    public long dump( File file ) throws IOException {
+        try {
+            recordingClass.getMethod( "dump", Path.class ).invoke( recording, file.toPath() );
+        } catch ( InvocationTargetException e ) {
+            if ( e.getCause() instanceof IOException ) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException( "Cannot dump the flight recording", e.getCause() );
+        } catch ( ReflectiveOperationException e ) {
+            throw new IOException( "Cannot dump the flight recording", e );
+        }
+        return file.length();
+    }
+
+    public long getMaxAgeMinutes() {
+        try {
+            Object maxAge = recordingClass.getMethod( "getMaxAge" ).invoke( recording );
+            return (Long) durationClass.getMethod( "toMinutes" ).invoke( maxAge );
+        } catch ( ReflectiveOperationException e ) {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    public void stop() {
+        try {
+            streamClass.getMethod( "close" ).invoke( stream );
+            recordingClass.getMethod( "close" ).invoke( recording );
+        } catch ( ReflectiveOperationException e ) {
+            throw new IllegalStateException( e );
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.krux.stdlib.jfr;
+
+/**
+ * Probes for JDK Flight Recorder event streaming without linking against it,
+ * so it is safe to call on any runtime.
+ */
+public final class FlightRecordingSupport {
+
+    private FlightRecordingSupport() {
+    }
+
+    /**
+     * @return true if this JVM has JFR with event streaming (Java 14+), so a
+     *         {@link FlightRecording} can be started
+     */
+    public static boolean isSupported() {
+        try {
+            Class.forName( "jdk.jfr.consumer.RecordingStream" );
+            return (Boolean) Class.forName( "jdk.jfr.FlightRecorder" ).getMethod( "isAvailable" ).invoke( null );
+        } catch ( Exception e ) {
+            return false;
+        } catch ( LinkageError e ) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.krux.stdlib.statsd;
+
+/**
+ * A {@link StatsdTransport} that holds on to packets, and so has to be told
+ * when to send them. Kept apart from {@link StatsdTransport} so that its
+ * existing implementations need not change.
+ */
+public interface BufferedTransport extends StatsdTransport {
+
+    /**
+     * Sends anything the transport itself buffers.
+     */
+    void flush();
+
+    /**
+     * @return packets actually written out so far, which is what the client
+     *         reports as <code>statsd_client.packets</code> rather than the
+     *         number of sends handed to this transport
+     */
+    long getPackets();
+
+    /**
+     * @return bytes actually written out so far
+     */
+    long getBytes();
+}
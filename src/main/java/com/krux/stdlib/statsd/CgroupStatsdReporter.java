@@ -0,0 +1,269 @@
+package com.krux.stdlib.statsd;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import com.krux.stdlib.KruxStdLib;
+
+/**
+ * Reports the resource limits and usage of the container (cgroup) this
+ * process runs in, which host-wide figures such as load average do not show:
+ * <ul>
+ * <li><code>container.cpu_limit_millicores</code>: the CFS quota, if any</li>
+ * <li><code>container.cpu_usage</code>: CPU used by the cgroup over the
+ * interval, in percent of one core, and
+ * <code>container.cpu_quota_used</code> in percent of the quota</li>
+ * <li><code>container.cpu_periods</code>,
+ * <code>container.cpu_throttled</code> and
+ * <code>container.throttled_time_ms</code>: CFS enforcement periods, periods
+ * in which the cgroup was throttled, and time spent throttled since the last
+ * run</li>
+ * <li><code>container.memory_used</code>, <code>container.memory_limit</code>
+ * and <code>container.memory_used_pct</code> (usage includes page cache, as
+ * the kernel counts it against the limit)</li>
+ * <li><code>container.oom_kills</code>: processes of the cgroup killed by the
+ * OOM killer since the last run</li>
+ * </ul>
+ * Both cgroup v1 (controllers mounted under
+ * <code>/sys/fs/cgroup/&lt;controller&gt;</code>) and the v2 unified hierarchy
+ * are understood; which one applies is found from
+ * <code>/proc/self/cgroup</code> once, at construction. Files are read
+ * through {@link ProcFile}. Anything the kernel does not expose is skipped.
+ */
+public class CgroupStatsdReporter implements StatsdReporter {
+
+    // v1 reports "no limit" as the largest page aligned long
+    private static final long UNLIMITED = 1L << 60;
+
+    private final boolean v2;
+    private final ProcFile cpuMax; // v2 cpu.max
+    private final ProcFile cpuQuota; // v1 cpu.cfs_quota_us
+    private final ProcFile cpuPeriod; // v1 cpu.cfs_period_us
+    private final ProcFile cpuStat;
+    private final ProcFile cpuUsage; // v1 cpuacct.usage
+    private final ProcFile memoryUsed;
+    private final ProcFile memoryLimit;
+    private final ProcFile memoryEvents; // v2 memory.events, v1 memory.oom_control
+
+    private boolean havePrevious;
+    private long prevTime;
+    private long prevUsageUs;
+    private long prevPeriods;
+    private long prevThrottled;
+    private long prevThrottledUs;
+    private long prevOomKills = -1;
+
+    public CgroupStatsdReporter() {
+        this( "/proc", "/sys/fs/cgroup" );
+    }
+
+    CgroupStatsdReporter( String procRoot, String cgroupRoot ) {
+        String cpuDir = null;
+        String cpuacctDir = null;
+        String memoryDir = null;
+        String unifiedDir = null;
+        try {
+            BufferedReader in = new BufferedReader( new InputStreamReader( new FileInputStream( procRoot
+                    + "/self/cgroup" ), "US-ASCII" ) );
+            try {
+                String line;
+                while ( ( line = in.readLine() ) != null ) {
+                    // hierarchy-id:controller-list:path
+                    String[] parts = line.split( ":", 3 );
+                    if ( parts.length < 3 ) {
+                        continue;
+                    }
+                    if ( parts[1].isEmpty() ) {
+                        unifiedDir = dir( cgroupRoot, cgroupRoot, parts[2] );
+                    }
+                    for ( String controller : parts[1].split( "," ) ) {
+                        if ( controller.equals( "cpu" ) ) {
+                            cpuDir = dir( cgroupRoot + "/" + parts[1], cgroupRoot + "/cpu", parts[2] );
+                        } else if ( controller.equals( "cpuacct" ) ) {
+                            cpuacctDir = dir( cgroupRoot + "/" + parts[1], cgroupRoot + "/cpuacct", parts[2] );
+                        } else if ( controller.equals( "memory" ) ) {
+                            memoryDir = dir( cgroupRoot + "/" + parts[1], cgroupRoot + "/memory", parts[2] );
+                        }
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch ( IOException e ) {
+            // not Linux, or no cgroups: nothing to report
+        }
+
+        v2 = cpuDir == null && memoryDir == null && unifiedDir != null
+                && new File( unifiedDir, "cgroup.controllers" ).exists();
+        if ( v2 ) {
+            cpuMax = file( unifiedDir, "cpu.max" );
+            cpuQuota = null;
+            cpuPeriod = null;
+            cpuStat = file( unifiedDir, "cpu.stat" );
+            cpuUsage = null;
+            memoryUsed = file( unifiedDir, "memory.current" );
+            memoryLimit = file( unifiedDir, "memory.max" );
+            memoryEvents = file( unifiedDir, "memory.events" );
+        } else {
+            cpuMax = null;
+            cpuQuota = file( cpuDir, "cpu.cfs_quota_us" );
+            cpuPeriod = file( cpuDir, "cpu.cfs_period_us" );
+            cpuStat = file( cpuDir, "cpu.stat" );
+            cpuUsage = file( cpuacctDir, "cpuacct.usage" );
+            memoryUsed = file( memoryDir, "memory.usage_in_bytes" );
+            memoryLimit = file( memoryDir, "memory.limit_in_bytes" );
+            memoryEvents = file( memoryDir, "memory.oom_control" );
+        }
+    }
+
+    /**
+     * The cgroup's directory: inside a container the cgroup is usually
+     * mounted as the root of the hierarchy even though
+     * <code>/proc/self/cgroup</code> shows the host's path.
+     */
+    private static String dir( String mount, String fallbackMount, String path ) {
+        for ( String m : new String[] { mount, fallbackMount } ) {
+            if ( new File( m + path ).isDirectory() ) {
+                return m + path;
+            }
+        }
+        for ( String m : new String[] { mount, fallbackMount } ) {
+            if ( new File( m ).isDirectory() ) {
+                return m;
+            }
+        }
+        return null;
+    }
+
+    private static ProcFile file( String dir, String name ) {
+        if ( dir == null ) {
+            return null;
+        }
+        ProcFile f = new ProcFile( dir + "/" + name );
+        return f.exists() ? f : null;
+    }
+
+    /**
+     * @return true if this process runs in a cgroup with anything to report
+     */
+    public boolean isAvailable() {
+        return cpuStat != null || memoryUsed != null;
+    }
+
+    /**
+     * @return "v1" or "v2"
+     */
+    public String getVersion() {
+        return v2 ? "v2" : "v1";
+    }
+
+    @Override
+    public void report() {
+        try {
+            reportCpu();
+            reportMemory();
+        } catch ( IOException err ) {
+            KruxStdLib.STATSD.time( "cgroup_collection_error", 1 );
+        }
+    }
+
+    private void reportCpu() throws IOException {
+        // quota and period, in usec; no quota means unlimited
+        long quota = -1;
+        long period = -1;
+        if ( cpuMax != null ) {
+            // "max 100000" or "200000 100000"
+            cpuMax.read();
+            if ( !cpuMax.startsWith( "max" ) ) {
+                quota = cpuMax.nextLong();
+                period = cpuMax.nextLong();
+            }
+        } else if ( cpuQuota != null && cpuPeriod != null ) {
+            cpuQuota.read();
+            quota = cpuQuota.nextLong();
+            cpuPeriod.read();
+            period = cpuPeriod.nextLong();
+        }
+        boolean limited = quota > 0 && period > 0;
+        if ( limited ) {
+            KruxStdLib.STATSD.gauge( "container.cpu_limit_millicores", quota * 1000 / period );
+        }
+
+        if ( cpuStat == null ) {
+            return;
+        }
+        long now = System.nanoTime();
+        long usageUs = -1;
+        long periods;
+        long throttled;
+        long throttledUs;
+        cpuStat.read();
+        if ( v2 ) {
+            // usage_usec, ..., nr_periods, nr_throttled, throttled_usec
+            usageUs = cpuStat.findLine( "usage_usec " ) ? cpuStat.nextLong() : -1;
+            periods = cpuStat.findLine( "nr_periods " ) ? cpuStat.nextLong() : 0;
+            throttled = cpuStat.findLine( "nr_throttled " ) ? cpuStat.nextLong() : 0;
+            throttledUs = cpuStat.findLine( "throttled_usec " ) ? cpuStat.nextLong() : 0;
+        } else {
+            // nr_periods, nr_throttled, throttled_time (nsec)
+            periods = cpuStat.findLine( "nr_periods " ) ? cpuStat.nextLong() : 0;
+            throttled = cpuStat.findLine( "nr_throttled " ) ? cpuStat.nextLong() : 0;
+            throttledUs = cpuStat.findLine( "throttled_time " ) ? cpuStat.nextLong() / 1000 : 0;
+            if ( cpuUsage != null ) {
+                cpuUsage.read();
+                usageUs = cpuUsage.nextLong() / 1000;
+            }
+        }
+
+        if ( havePrevious ) {
+            KruxStdLib.STATSD.count( "container.cpu_periods", (int) ( periods - prevPeriods ) );
+            KruxStdLib.STATSD.count( "container.cpu_throttled", (int) ( throttled - prevThrottled ) );
+            KruxStdLib.STATSD.count( "container.throttled_time_ms", (int) ( ( throttledUs - prevThrottledUs ) / 1000 ) );
+            long elapsedUs = ( now - prevTime ) / 1000;
+            if ( usageUs >= 0 && elapsedUs > 0 ) {
+                long usedUs = usageUs - prevUsageUs;
+                KruxStdLib.STATSD.gauge( "container.cpu_usage", usedUs * 100 / elapsedUs );
+                if ( limited ) {
+                    KruxStdLib.STATSD.gauge( "container.cpu_quota_used", usedUs * 100 * period / ( elapsedUs * quota ) );
+                }
+            }
+        }
+        havePrevious = true;
+        prevTime = now;
+        prevUsageUs = usageUs;
+        prevPeriods = periods;
+        prevThrottled = throttled;
+        prevThrottledUs = throttledUs;
+    }
+
+    private void reportMemory() throws IOException {
+        if ( memoryUsed != null ) {
+            memoryUsed.read();
+            long used = memoryUsed.nextLong();
+            KruxStdLib.STATSD.gauge( "container.memory_used", used );
+            if ( memoryLimit != null ) {
+                // v2 says "max" when unlimited, which parses as no number
+                memoryLimit.read();
+                long limit = memoryLimit.nextLong();
+                if ( limit > 0 && limit < UNLIMITED ) {
+                    KruxStdLib.STATSD.gauge( "container.memory_limit", limit );
+                    KruxStdLib.STATSD.gauge( "container.memory_used_pct", used * 100 / limit );
+                }
+            }
+        }
+        if ( memoryEvents != null ) {
+            memoryEvents.read();
+            // both v2 memory.events and v1 memory.oom_control (4.13+)
+            if ( memoryEvents.findLine( "oom_kill " ) ) {
+                long kills = memoryEvents.nextLong();
+                if ( prevOomKills >= 0 && kills > prevOomKills ) {
+                    KruxStdLib.STATSD.count( "container.oom_kills", (int) ( kills - prevOomKills ) );
+                }
+                prevOomKills = kills;
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.krux.stdlib.statsd;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads, so background stats work never keeps the JVM
+ * from exiting.
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+
+    private final String name;
+    private final AtomicInteger count = new AtomicInteger();
+
+    public DaemonThreadFactory( String name ) {
+        this.name = name;
+    }
+
+    @Override
+    public Thread newThread( Runnable r ) {
+        int n = count.getAndIncrement();
+        Thread t = new Thread( r, n == 0 ? name : name + "-" + n );
+        t.setDaemon( true );
+        return t;
+    }
+}
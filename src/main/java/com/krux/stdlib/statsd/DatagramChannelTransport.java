@@ -0,0 +1,117 @@
+package com.krux.stdlib.statsd;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends packets through a <em>connected</em> {@link DatagramChannel}, from a
+ * direct {@link ByteBuffer} kept per sending thread.
+ * <p/>
+ * Being connected spares the kernel a destination lookup and permission check
+ * on every send, and writing from a direct buffer spares the JDK the copy into
+ * a temporary native buffer that every heap-array send does. It also means
+ * ICMP "port unreachable" replies surface as a
+ * {@link PortUnreachableException} on a later write: when that happens the
+ * transport reports itself unavailable and skips sends (without a syscall) for
+ * <code>backoffMs</code>, then tries again.
+ */
+public class DatagramChannelTransport implements StatsdTransport {
+
+    public static final long DEFAULT_BACKOFF_MS = 1000;
+
+    private static final int MIN_BUFFER_SIZE = 2048;
+
+    private final InetSocketAddress address;
+    private final DatagramChannel channel;
+    private final long backoffNanos;
+
+    private volatile long unavailableUntil;
+    private volatile boolean unavailable;
+
+    private final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>();
+
+    public DatagramChannelTransport( InetAddress host, int port ) throws SocketException {
+        this( host, port, DEFAULT_BACKOFF_MS );
+    }
+
+    public DatagramChannelTransport( InetAddress host, int port, long backoffMs ) throws SocketException {
+        this.address = new InetSocketAddress( host, port );
+        this.backoffNanos = TimeUnit.MILLISECONDS.toNanos( backoffMs );
+        try {
+            channel = DatagramChannel.open();
+            channel.connect( address );
+        } catch ( IOException e ) {
+            SocketException se = new SocketException( "Cannot open datagram channel to " + address + ": " + e );
+            se.initCause( e );
+            throw se;
+        }
+    }
+
+    /**
+     * @return the channel's socket adaptor
+     */
+    public DatagramSocket socket() {
+        return channel.socket();
+    }
+
+    @Override
+    public boolean send( byte[] data, int offset, int length ) throws IOException {
+        if ( unavailable ) {
+            if ( System.nanoTime() - unavailableUntil < 0 ) {
+                return false;
+            }
+            unavailable = false;
+        }
+        ByteBuffer buf = buffer( length );
+        buf.clear();
+        buf.put( data, offset, length );
+        buf.flip();
+        try {
+            channel.write( buf );
+            return true;
+        } catch ( PortUnreachableException e ) {
+            unavailableUntil = System.nanoTime() + backoffNanos;
+            unavailable = true;
+            throw e;
+        }
+    }
+
+    private ByteBuffer buffer( int length ) {
+        ByteBuffer buf = buffers.get();
+        if ( buf == null || buf.capacity() < length ) {
+            int size = MIN_BUFFER_SIZE;
+            while ( size < length ) {
+                size <<= 1;
+            }
+            buf = ByteBuffer.allocateDirect( size );
+            buffers.set( buf );
+        }
+        return buf;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return !unavailable || System.nanoTime() - unavailableUntil >= 0;
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch ( IOException e ) {
+            // nothing useful to do
+        }
+    }
+
+    @Override
+    public String toString() {
+        return address.toString();
+    }
+}
@@ -0,0 +1,59 @@
+package com.krux.stdlib.statsd;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+
+/**
+ * The classic transport: an unconnected {@link DatagramSocket}, with a
+ * reusable {@link DatagramPacket} per sending thread. Never reports the
+ * destination as unavailable.
+ */
+public class DatagramSocketTransport implements StatsdTransport {
+
+    private final InetAddress host;
+    private final int port;
+    private final DatagramSocket sock;
+
+    private final ThreadLocal<DatagramPacket> packets = new ThreadLocal<DatagramPacket>();
+
+    public DatagramSocketTransport( InetAddress host, int port ) throws SocketException {
+        this.host = host;
+        this.port = port;
+        this.sock = new DatagramSocket();
+    }
+
+    public DatagramSocket socket() {
+        return sock;
+    }
+
+    @Override
+    public boolean send( byte[] data, int offset, int length ) throws IOException {
+        DatagramPacket packet = packets.get();
+        if ( packet == null ) {
+            packet = new DatagramPacket( data, offset, length, host, port );
+            packets.set( packet );
+        } else {
+            packet.setData( data, offset, length );
+        }
+        sock.send( packet );
+        return true;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        sock.close();
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
@@ -0,0 +1,212 @@
+package com.krux.stdlib.statsd;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import com.krux.stdlib.KruxStdLib;
+
+/**
+ * Reports this process's I/O and that of the disk holding a directory
+ * (normally <code>BASE_APP_DIR</code>, where logs and spill files go), as
+ * deltas since the last run:
+ * <ul>
+ * <li><code>proc_io.read_bytes</code>, <code>proc_io.write_bytes</code>:
+ * bytes this process made the storage layer read or write, from
+ * <code>/proc/self/io</code></li>
+ * <li><code>proc_io.read_syscalls</code>,
+ * <code>proc_io.write_syscalls</code>: read and write system calls, cached
+ * or not</li>
+ * <li><code>disk.read_bytes</code>, <code>disk.write_bytes</code>,
+ * <code>disk.reads</code>, <code>disk.writes</code>: the device's traffic,
+ * from <code>/proc/diskstats</code>, for every process</li>
+ * <li><code>disk.util</code>: percent of the interval the device was busy,
+ * and <code>disk.await_ms</code>: average time an I/O took (gauges)</li>
+ * </ul>
+ * The device is found once, at construction, as the one of the longest
+ * mount point in <code>/proc/self/mountinfo</code> containing the directory.
+ * Directories on filesystems without a block device (tmpfs, overlay, ...) get
+ * only the process stats. Files are read through {@link ProcFile}; the first
+ * run reports no deltas.
+ */
+public class DiskIoStatsdReporter implements StatsdReporter {
+
+    private static final int SECTOR_SIZE = 512;
+
+    private final ProcFile selfIo;
+    private final ProcFile diskStats;
+    private final long major;
+    private final long minor;
+
+    private boolean haveIo;
+    private long prevReadBytes;
+    private long prevWriteBytes;
+    private long prevReadCalls;
+    private long prevWriteCalls;
+
+    private boolean haveDisk;
+    private long prevTime;
+    private long prevReads;
+    private long prevWrites;
+    private long prevSectorsRead;
+    private long prevSectorsWritten;
+    private long prevIoMs;
+    private long prevWaitMs;
+
+    public DiskIoStatsdReporter( String dir ) {
+        this( "/proc", dir );
+    }
+
+    DiskIoStatsdReporter( String procRoot, String dir ) {
+        selfIo = new ProcFile( procRoot + "/self/io" );
+        long[] device = device( procRoot + "/self/mountinfo", dir );
+        major = device[0];
+        minor = device[1];
+        ProcFile stats = new ProcFile( procRoot + "/diskstats" );
+        diskStats = major > 0 && stats.exists() ? stats : null;
+    }
+
+    /**
+     * @return { major, minor } of the device mounted where <code>dir</code>
+     *         is, or { 0, 0 } if none
+     */
+    private static long[] device( String mountInfo, String dir ) {
+        long[] device = { 0, 0 };
+        String path;
+        try {
+            path = new File( dir ).getCanonicalPath();
+        } catch ( IOException e ) {
+            path = new File( dir ).getAbsolutePath();
+        }
+        int longest = -1;
+        try {
+            BufferedReader in = new BufferedReader( new InputStreamReader( new FileInputStream( mountInfo ),
+                    "US-ASCII" ) );
+            try {
+                String line;
+                while ( ( line = in.readLine() ) != null ) {
+                    // id parent-id major:minor root mount-point options ...
+                    String[] fields = line.split( " " );
+                    if ( fields.length < 5 ) {
+                        continue;
+                    }
+                    String mountPoint = fields[4].replace( "\\040", " " );
+                    boolean contains = path.equals( mountPoint ) || mountPoint.equals( "/" )
+                            || path.startsWith( mountPoint + "/" );
+                    // later mounts over the same point hide earlier ones
+                    if ( contains && mountPoint.length() >= longest ) {
+                        longest = mountPoint.length();
+                        String[] majorMinor = fields[2].split( ":" );
+                        device[0] = Long.parseLong( majorMinor[0] );
+                        device[1] = Long.parseLong( majorMinor[1] );
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch ( IOException e ) {
+            // not Linux: process stats only, if any
+        } catch ( RuntimeException e ) {
+            // unexpected format
+        }
+        return device;
+    }
+
+    /**
+     * @return true if there is anything to report
+     */
+    public boolean isAvailable() {
+        return selfIo.exists() || diskStats != null;
+    }
+
+    /**
+     * @return "major:minor" of the disk reported on, or null if none
+     */
+    public String getDevice() {
+        return diskStats == null ? null : major + ":" + minor;
+    }
+
+    @Override
+    public void report() {
+        try {
+            if ( selfIo.exists() ) {
+                reportProcessIo();
+            }
+            if ( diskStats != null ) {
+                reportDisk();
+            }
+        } catch ( IOException err ) {
+            KruxStdLib.STATSD.time( "io_collection_error", 1 );
+        }
+    }
+
+    private void reportProcessIo() throws IOException {
+        // rchar wchar syscr syscw read_bytes write_bytes cancelled_write_bytes
+        selfIo.read();
+        long readCalls = selfIo.findLine( "syscr:" ) ? selfIo.nextLong() : 0;
+        long writeCalls = selfIo.findLine( "syscw:" ) ? selfIo.nextLong() : 0;
+        long readBytes = selfIo.findLine( "read_bytes:" ) ? selfIo.nextLong() : 0;
+        long writeBytes = selfIo.findLine( "write_bytes:" ) ? selfIo.nextLong() : 0;
+        if ( haveIo ) {
+            // byte deltas can pass 2 GiB, more than count() takes
+            KruxStdLib.STATSD.stat( StatsdStatType.COUNTER, "proc_io.read_bytes", readBytes - prevReadBytes, 1.0D );
+            KruxStdLib.STATSD.stat( StatsdStatType.COUNTER, "proc_io.write_bytes", writeBytes - prevWriteBytes, 1.0D );
+            KruxStdLib.STATSD.count( "proc_io.read_syscalls", (int) ( readCalls - prevReadCalls ) );
+            KruxStdLib.STATSD.count( "proc_io.write_syscalls", (int) ( writeCalls - prevWriteCalls ) );
+        }
+        haveIo = true;
+        prevReadBytes = readBytes;
+        prevWriteBytes = writeBytes;
+        prevReadCalls = readCalls;
+        prevWriteCalls = writeCalls;
+    }
+
+    private void reportDisk() throws IOException {
+        // major minor name reads merged sectors ms writes merged sectors ms
+        // in-flight io-ms weighted-ms ...
+        diskStats.read();
+        long now = System.nanoTime();
+        do {
+            if ( diskStats.nextLong() != major || diskStats.nextLong() != minor ) {
+                continue;
+            }
+            diskStats.skipFields( 1 );
+            long reads = diskStats.nextLong();
+            diskStats.skipFields( 1 );
+            long sectorsRead = diskStats.nextLong();
+            long readMs = diskStats.nextLong();
+            long writes = diskStats.nextLong();
+            diskStats.skipFields( 1 );
+            long sectorsWritten = diskStats.nextLong();
+            long writeMs = diskStats.nextLong();
+            diskStats.skipFields( 1 );
+            long ioMs = diskStats.nextLong();
+
+            if ( haveDisk ) {
+                long ios = reads - prevReads + writes - prevWrites;
+                long elapsedMs = ( now - prevTime ) / 1000000;
+                KruxStdLib.STATSD.stat( StatsdStatType.COUNTER, "disk.read_bytes",
+                        ( sectorsRead - prevSectorsRead ) * SECTOR_SIZE, 1.0D );
+                KruxStdLib.STATSD.stat( StatsdStatType.COUNTER, "disk.write_bytes",
+                        ( sectorsWritten - prevSectorsWritten ) * SECTOR_SIZE, 1.0D );
+                KruxStdLib.STATSD.count( "disk.reads", (int) ( reads - prevReads ) );
+                KruxStdLib.STATSD.count( "disk.writes", (int) ( writes - prevWrites ) );
+                if ( elapsedMs > 0 ) {
+                    KruxStdLib.STATSD.gauge( "disk.util", Math.min( 100, ( ioMs - prevIoMs ) * 100 / elapsedMs ) );
+                }
+                KruxStdLib.STATSD.gauge( "disk.await_ms", ios > 0 ? ( readMs + writeMs - prevWaitMs ) / ios : 0 );
+            }
+            haveDisk = true;
+            prevTime = now;
+            prevReads = reads;
+            prevWrites = writes;
+            prevSectorsRead = sectorsRead;
+            prevSectorsWritten = sectorsWritten;
+            prevIoMs = ioMs;
+            prevWaitMs = readMs + writeMs;
+            return;
+        } while ( diskStats.nextLine() );
+    }
+}
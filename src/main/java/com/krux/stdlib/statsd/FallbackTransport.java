@@ -0,0 +1,102 @@
+package com.krux.stdlib.statsd;
+
+import java.io.IOException;
+
+/**
+ * Sends through a preferred transport, and through a fallback one for any
+ * packet the preferred transport skips (because it is disconnected, backing
+ * off, or full).
+ */
+public class FallbackTransport implements BufferedTransport {
+
+    private final StatsdTransport primary;
+    private final StatsdTransport fallback;
+    // written through whichever side does not buffer packets itself
+    private final StripedCounter packets = new StripedCounter();
+    private final StripedCounter bytes = new StripedCounter();
+
+    public FallbackTransport( StatsdTransport primary, StatsdTransport fallback ) {
+        this.primary = primary;
+        this.fallback = fallback;
+    }
+
+    public StatsdTransport getPrimary() {
+        return primary;
+    }
+
+    public StatsdTransport getFallback() {
+        return fallback;
+    }
+
+    @Override
+    public boolean send( byte[] data, int offset, int length ) throws IOException {
+        // always offered to the primary first: a skipped send is how it
+        // notices it should reconnect
+        if ( primary.send( data, offset, length ) ) {
+            written( primary, length );
+            return true;
+        }
+        if ( fallback.send( data, offset, length ) ) {
+            written( fallback, length );
+            return true;
+        }
+        return false;
+    }
+
+    private void written( StatsdTransport transport, int length ) {
+        if ( !( transport instanceof BufferedTransport ) ) {
+            packets.increment();
+            bytes.add( length );
+        }
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return primary.isAvailable() || fallback.isAvailable();
+    }
+
+    @Override
+    public void flush() {
+        flush( primary );
+        flush( fallback );
+    }
+
+    private static void flush( StatsdTransport transport ) {
+        if ( transport instanceof BufferedTransport ) {
+            ( (BufferedTransport) transport ).flush();
+        }
+    }
+
+    @Override
+    public long getPackets() {
+        long sum = packets.sum();
+        for ( StatsdTransport t : new StatsdTransport[] { primary, fallback } ) {
+            if ( t instanceof BufferedTransport ) {
+                sum += ( (BufferedTransport) t ).getPackets();
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public long getBytes() {
+        long sum = bytes.sum();
+        for ( StatsdTransport t : new StatsdTransport[] { primary, fallback } ) {
+            if ( t instanceof BufferedTransport ) {
+                sum += ( (BufferedTransport) t ).getBytes();
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public void close() {
+        primary.close();
+        fallback.close();
+    }
+
+    @Override
+    public String toString() {
+        return primary + " (falling back to " + fallback + ")";
+    }
+}
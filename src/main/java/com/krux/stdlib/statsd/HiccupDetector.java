@@ -0,0 +1,80 @@
+package com.krux.stdlib.statsd;
+
+import java.util.concurrent.TimeUnit;
+
+import com.krux.stdlib.KruxStdLib;
+
+/**
+ * Measures how long the whole JVM stalls, in the manner of jHiccup: a daemon
+ * thread repeatedly sleeps for <code>resolutionMs</code> and records how much
+ * later than asked it woke up into a {@link LogLinearHistogram}. The thread
+ * does no work of its own, so any excess delay is a stall every other thread
+ * saw too (GC or safepoint pause, CPU throttling, swapping, ...). When request
+ * latency spikes and the hiccups do not, the application itself was slow.
+ * <p/>
+ * Like jHiccup, a stall longer than <code>resolutionMs</code> is corrected for
+ * coordinated omission: the wakeups it swallowed are recorded too, each
+ * <code>resolutionMs</code> shorter than the last, as a thread sampling on a
+ * fixed schedule would have seen them.
+ * <p/>
+ * Each {@link #report()} sends <code>hiccup.p50_us</code>,
+ * <code>hiccup.p99_us</code> and <code>hiccup.max_us</code> for the interval.
+ * Costs one wakeup per <code>resolutionMs</code>.
+ */
+public class HiccupDetector implements StatsdReporter {
+
+    private final long resolutionNanos;
+    private final LogLinearHistogram hiccups = new LogLinearHistogram();
+    private final LogLinearHistogram.Snapshot snapshot = new LogLinearHistogram.Snapshot();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public HiccupDetector( long resolutionMs ) {
+        if ( resolutionMs < 1 ) {
+            throw new IllegalArgumentException( "resolutionMs must be positive: " + resolutionMs );
+        }
+        this.resolutionNanos = TimeUnit.MILLISECONDS.toNanos( resolutionMs );
+        this.thread = new DaemonThreadFactory( "statsd-hiccups" ).newThread( new Runnable() {
+            @Override
+            public void run() {
+                detect();
+            }
+        } );
+        thread.start();
+    }
+
+    private void detect() {
+        while ( running ) {
+            long start = System.nanoTime();
+            try {
+                TimeUnit.NANOSECONDS.sleep( resolutionNanos );
+            } catch ( InterruptedException e ) {
+                return;
+            }
+            record( System.nanoTime() - start - resolutionNanos );
+        }
+    }
+
+    void record( long hiccupNanos ) {
+        hiccups.record( hiccupNanos );
+        for ( long missed = hiccupNanos - resolutionNanos; missed >= resolutionNanos; missed -= resolutionNanos ) {
+            hiccups.record( missed );
+        }
+    }
+
+    @Override
+    public void report() {
+        hiccups.snapshotAndReset( snapshot );
+        if ( snapshot.getCount() == 0 ) {
+            return;
+        }
+        KruxStdLib.STATSD.gauge( "hiccup.p50_us", TimeUnit.NANOSECONDS.toMicros( snapshot.getValueAtQuantile( 0.5 ) ) );
+        KruxStdLib.STATSD.gauge( "hiccup.p99_us", TimeUnit.NANOSECONDS.toMicros( snapshot.getValueAtQuantile( 0.99 ) ) );
+        KruxStdLib.STATSD.gauge( "hiccup.max_us", TimeUnit.NANOSECONDS.toMicros( snapshot.getMax() ) );
+    }
+
+    public void stop() {
+        running = false;
+        thread.interrupt();
+    }
+}
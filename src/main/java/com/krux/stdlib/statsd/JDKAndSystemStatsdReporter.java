@@ -1,23 +1,54 @@
 package com.krux.stdlib.statsd;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.lang.management.OperatingSystemMXBean;
 import java.lang.management.ThreadMXBean;
-import java.util.TimerTask;
 
 import com.krux.stdlib.KruxStdLib;
 import com.sun.management.UnixOperatingSystemMXBean;
 
-public class JDKAndSystemStatsdReporter extends TimerTask {
+/**
+ * Reports heap, thread and fd counts from the JVM, and CPU utilization and
+ * load averages read straight from procfs.
+ * <p/>
+ * <code>/proc/stat</code>, <code>/proc/self/stat</code> and
+ * <code>/proc/loadavg</code> are kept open and re-read into reused buffers
+ * each run (see {@link ProcFile}). CPU percentages are computed from the
+ * jiffy deltas between two runs, so they cover the whole interval and the
+ * first run reports none. <code>process_cpu</code> is this JVM's CPU use in
+ * percent of one core. Without procfs (not Linux) only the JVM stats are
+ * reported.
+ */
+public class JDKAndSystemStatsdReporter implements StatsdReporter {
+
+    private final ProcFile procStat;
+    private final ProcFile selfStat;
+    private final ProcFile loadAvg;
+    private final boolean procfs;
+
+    // /proc/stat cpu jiffies at the previous run
+    private boolean havePrevious;
+    private long prevUser;
+    private long prevSystem;
+    private long prevIowait;
+    private long prevSteal;
+    private long prevTotal;
+    private long prevProcess;
 
     public JDKAndSystemStatsdReporter() {
+        this( "/proc" );
+    }
 
+    JDKAndSystemStatsdReporter( String procRoot ) {
+        procStat = new ProcFile( procRoot + "/stat" );
+        selfStat = new ProcFile( procRoot + "/self/stat" );
+        loadAvg = new ProcFile( procRoot + "/loadavg" );
+        procfs = procStat.exists();
     }
 
     @Override
-    public void run() {
+    public void report() {
         // Getting the runtime reference from system
         Runtime runtime = Runtime.getRuntime();
         long usedMemory = runtime.totalMemory() - runtime.freeMemory();
@@ -31,60 +62,70 @@ public class JDKAndSystemStatsdReporter extends TimerTask {
             KruxStdLib.STATSD.gauge( "open_fd", ( (UnixOperatingSystemMXBean) os ).getOpenFileDescriptorCount() );
         }
 
-        // cpu util stats
-        try {
-            String line;
-            Process p = Runtime.getRuntime().exec( "mpstat 1 1" );
-            BufferedReader bri = new BufferedReader( new InputStreamReader( p.getInputStream() ) );
-            BufferedReader bre = new BufferedReader( new InputStreamReader( p.getErrorStream() ) );
-            String[] outputs;
-            Float usercpu, iowaitcpu;
-            int i = 0;
-            while ( ( line = bri.readLine() ) != null ) {
-                i++;
-                if ( i == 5 ) {
-                    outputs = line.split( "\\s+" );
-                    usercpu = Float.parseFloat( outputs[2] );
-                    iowaitcpu = Float.parseFloat( outputs[5] );
-                    KruxStdLib.STATSD.gauge( "usr_cpu", usercpu.longValue() );
-                    KruxStdLib.STATSD.gauge( "iowait_cpu", iowaitcpu.longValue() );
-                }
+        if ( procfs ) {
+            try {
+                reportCpu();
+                reportLoadAverage();
+            } catch ( IOException err ) {
+                KruxStdLib.STATSD.time( "cpu_collection_error", 1 );
             }
-            bri.close();
-            bre.close();
-            p.waitFor();
-        } catch ( Exception err ) {
-            KruxStdLib.STATSD.time( "cpu_collection_error", 1 );
         }
+    }
+
+    private void reportCpu() throws IOException {
+        // cpu  user nice system idle iowait irq softirq steal guest guest_nice
+        procStat.read();
+        if ( !procStat.findLine( "cpu " ) ) {
+            throw new IOException( "no cpu line in " + procStat.getPath() );
+        }
+        long user = procStat.nextLong();
+        long nice = procStat.nextLong();
+        long system = procStat.nextLong();
+        long idle = procStat.nextLong();
+        long iowait = procStat.nextLong();
+        long irq = procStat.nextLong();
+        long softirq = procStat.nextLong();
+        long steal = Math.max( 0, procStat.nextLong() );
+        long total = user + nice + system + idle + iowait + irq + softirq + steal;
+        int cpus = 0;
+        while ( procStat.nextLine() && procStat.startsWith( "cpu" ) ) {
+            cpus++;
+        }
+
+        // pid (comm) state ppid ... utime stime, with utime the 14th field
+        selfStat.read();
+        selfStat.skipPastLast( (byte) ')' );
+        selfStat.skipFields( 11 );
+        long process = selfStat.nextLong() + selfStat.nextLong();
 
-        // cpu util stats
-        try {
-            String line;
-            Process p = Runtime.getRuntime().exec( "cat /proc/loadavg" );
-            BufferedReader bri = new BufferedReader( new InputStreamReader( p.getInputStream() ) );
-            BufferedReader bre = new BufferedReader( new InputStreamReader( p.getErrorStream() ) );
-            String[] outputs;
-            Float oneMin, fiveMin, fifteenMin;
-            int i = 0;
-            while ( ( line = bri.readLine() ) != null ) {
-                i++;
-                if ( i == 1 ) {
-                    outputs = line.split( "\\s+" );
-                    oneMin = Float.parseFloat( outputs[0] );
-                    fiveMin = Float.parseFloat( outputs[1] );
-                    fifteenMin = Float.parseFloat( outputs[2] );
-                    KruxStdLib.STATSD.gauge( "load_avg.1min", oneMin.longValue() );
-                    KruxStdLib.STATSD.gauge( "load_avg.5min", fiveMin.longValue() );
-                    KruxStdLib.STATSD.gauge( "load_avg.15min", fifteenMin.longValue() );
-                }
+        if ( havePrevious && total > prevTotal ) {
+            double totalDelta = total - prevTotal;
+            KruxStdLib.STATSD.gauge( "usr_cpu", percent( user - prevUser, totalDelta ) );
+            KruxStdLib.STATSD.gauge( "sys_cpu", percent( system - prevSystem, totalDelta ) );
+            KruxStdLib.STATSD.gauge( "iowait_cpu", percent( iowait - prevIowait, totalDelta ) );
+            KruxStdLib.STATSD.gauge( "steal_cpu", percent( steal - prevSteal, totalDelta ) );
+            if ( cpus > 0 ) {
+                KruxStdLib.STATSD.gauge( "process_cpu", percent( process - prevProcess, totalDelta / cpus ) );
             }
-            bri.close();
-            bre.close();
-            p.waitFor();
-        } catch ( Exception err ) {
-            KruxStdLib.STATSD.time( "cpu_collection_error", 1 );
         }
+        havePrevious = true;
+        prevUser = user;
+        prevSystem = system;
+        prevIowait = iowait;
+        prevSteal = steal;
+        prevTotal = total;
+        prevProcess = process;
+    }
 
+    private static long percent( long delta, double total ) {
+        return Math.round( 100 * delta / total );
     }
 
+    private void reportLoadAverage() throws IOException {
+        // 0.52 0.58 0.59 1/467 12345
+        loadAvg.read();
+        KruxStdLib.STATSD.gauge( "load_avg.1min", loadAvg.nextFixed( 2 ) / 100 );
+        KruxStdLib.STATSD.gauge( "load_avg.5min", loadAvg.nextFixed( 2 ) / 100 );
+        KruxStdLib.STATSD.gauge( "load_avg.15min", loadAvg.nextFixed( 2 ) / 100 );
+    }
 }
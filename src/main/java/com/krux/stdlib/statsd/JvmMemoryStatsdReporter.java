@@ -0,0 +1,217 @@
+package com.krux.stdlib.statsd;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.krux.stdlib.KruxStdLib;
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Reports what is needed to tune heap and GC:
+ * <ul>
+ * <li><code>gc.&lt;collector&gt;.count</code> and
+ * <code>gc.&lt;collector&gt;.time_ms</code>: collections and time spent
+ * collecting since the last run, per {@link GarbageCollectorMXBean}</li>
+ * <li><code>gc.&lt;collector&gt;.pause_ms</code>: a timer stat per collection,
+ * as notified by the JVM (for concurrent collectors this is the length of
+ * the cycle rather than a pause)</li>
+ * <li><code>gc.promoted_bytes</code>: growth of the old generation across
+ * young collections</li>
+ * <li><code>mem_pool.&lt;pool&gt;.used</code> and <code>.committed</code> per
+ * {@link MemoryPoolMXBean}</li>
+ * <li><code>alloc_bytes</code>: bytes allocated by all live threads since the
+ * last run, from the per-thread allocation counters of HotSpot's
+ * {@link com.sun.management.ThreadMXBean}</li>
+ * </ul>
+ * Counts are sent as statsd counters, so statsd turns them into rates. The
+ * JVM calls the collection listener whether or not the reporter is still
+ * run, so {@link #stop()} a reporter that is no longer needed.
+ */
+public class JvmMemoryStatsdReporter implements StatsdReporter {
+
+    private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+    private final List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private final String[] collectorKeys;
+    private final long[] lastCounts;
+    private final long[] lastTimes;
+    private final String[] poolUsedKeys;
+    private final String[] poolCommittedKeys;
+
+    // bytes promoted since the last run, added to by the collection listener
+    final AtomicLong promoted = new AtomicLong();
+    private final boolean allocationCounters;
+    // allocated bytes per thread id at the last run
+    private Map<Long, Long> lastAllocated = new HashMap<Long, Long>();
+    private Map<Long, Long> allocated = new HashMap<Long, Long>();
+    private boolean haveAllocated;
+    private NotificationListener listener;
+
+    public JvmMemoryStatsdReporter() {
+        collectorKeys = new String[collectors.size()];
+        lastCounts = new long[collectors.size()];
+        lastTimes = new long[collectors.size()];
+        for ( int i = 0; i < collectors.size(); i++ ) {
+            GarbageCollectorMXBean gc = collectors.get( i );
+            collectorKeys[i] = "gc." + statName( gc.getName() );
+            lastCounts[i] = gc.getCollectionCount();
+            lastTimes[i] = gc.getCollectionTime();
+        }
+        poolUsedKeys = new String[pools.size()];
+        poolCommittedKeys = new String[pools.size()];
+        for ( int i = 0; i < pools.size(); i++ ) {
+            String pool = "mem_pool." + statName( pools.get( i ).getName() );
+            poolUsedKeys[i] = pool + ".used";
+            poolCommittedKeys[i] = pool + ".committed";
+        }
+        allocationCounters = threads instanceof com.sun.management.ThreadMXBean
+                && ( (com.sun.management.ThreadMXBean) threads ).isThreadAllocatedMemorySupported()
+                && ( (com.sun.management.ThreadMXBean) threads ).isThreadAllocatedMemoryEnabled();
+        listenForCollections();
+    }
+
+    /**
+     * "G1 Young Generation" -> "g1_young_generation"
+     */
+    static String statName( String name ) {
+        StringBuilder sb = new StringBuilder( name.length() );
+        for ( int i = 0; i < name.length(); i++ ) {
+            char c = Character.toLowerCase( name.charAt( i ) );
+            sb.append( ( c >= 'a' && c <= 'z' ) || ( c >= '0' && c <= '9' ) ? c : '_' );
+        }
+        return sb.toString();
+    }
+
+    private static boolean isOldGen( String pool ) {
+        String p = pool.toLowerCase( Locale.US );
+        return p.contains( "old" ) || p.contains( "tenured" );
+    }
+
+    private void listenForCollections() {
+        try {
+            // only resolved inside handleNotification, so look for it up front
+            Class.forName( "com.sun.management.GarbageCollectionNotificationInfo" );
+        } catch ( ClassNotFoundException e ) {
+            // not HotSpot, or older than 7u4: no per collection stats
+            return;
+        }
+        listener = new NotificationListener() {
+            @Override
+            public void handleNotification( Notification n, Object handback ) {
+                if ( GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals( n.getType() ) ) {
+                    onCollection( (String) handback,
+                            GarbageCollectionNotificationInfo.from( (CompositeData) n.getUserData() ) );
+                }
+            }
+        };
+        for ( int i = 0; i < collectors.size(); i++ ) {
+            if ( collectors.get( i ) instanceof NotificationEmitter ) {
+                ( (NotificationEmitter) collectors.get( i ) ).addNotificationListener( listener, null, collectorKeys[i]
+                        + ".pause_ms" );
+            }
+        }
+    }
+
+    /**
+     * Stops listening for collections, so no more <code>pause_ms</code>
+     * timers are sent.
+     */
+    public void stop() {
+        if ( listener == null ) {
+            return;
+        }
+        for ( GarbageCollectorMXBean gc : collectors ) {
+            if ( gc instanceof NotificationEmitter ) {
+                try {
+                    ( (NotificationEmitter) gc ).removeNotificationListener( listener );
+                } catch ( ListenerNotFoundException e ) {
+                    // never added
+                }
+            }
+        }
+        listener = null;
+    }
+
+    private void onCollection( String pauseKey, GarbageCollectionNotificationInfo info ) {
+        KruxStdLib.STATSD.time( pauseKey, info.getGcInfo().getDuration() );
+        if ( !info.getGcAction().contains( "minor" ) ) {
+            return;
+        }
+        Map<String, MemoryUsage> before = info.getGcInfo().getMemoryUsageBeforeGc();
+        Map<String, MemoryUsage> after = info.getGcInfo().getMemoryUsageAfterGc();
+        for ( Map.Entry<String, MemoryUsage> e : after.entrySet() ) {
+            MemoryUsage b = before.get( e.getKey() );
+            if ( b != null && isOldGen( e.getKey() ) ) {
+                long grown = e.getValue().getUsed() - b.getUsed();
+                if ( grown > 0 ) {
+                    promoted.addAndGet( grown );
+                }
+            }
+        }
+    }
+
+    @Override
+    public void report() {
+        for ( int i = 0; i < collectors.size(); i++ ) {
+            GarbageCollectorMXBean gc = collectors.get( i );
+            long count = gc.getCollectionCount();
+            long time = gc.getCollectionTime();
+            KruxStdLib.STATSD.count( collectorKeys[i] + ".count", (int) ( count - lastCounts[i] ) );
+            KruxStdLib.STATSD.count( collectorKeys[i] + ".time_ms", (int) ( time - lastTimes[i] ) );
+            lastCounts[i] = count;
+            lastTimes[i] = time;
+        }
+        // byte counts pass 2 GiB between runs, so not through count( String, int )
+        KruxStdLib.STATSD.stat( StatsdStatType.COUNTER, "gc.promoted_bytes", promoted.getAndSet( 0 ), 1.0D );
+
+        for ( int i = 0; i < pools.size(); i++ ) {
+            MemoryUsage usage = pools.get( i ).getUsage();
+            if ( usage != null ) {
+                KruxStdLib.STATSD.gauge( poolUsedKeys[i], usage.getUsed() );
+                KruxStdLib.STATSD.gauge( poolCommittedKeys[i], usage.getCommitted() );
+            }
+        }
+
+        if ( allocationCounters ) {
+            reportAllocation();
+        }
+    }
+
+    private void reportAllocation() {
+        long[] ids = threads.getAllThreadIds();
+        long[] bytes = ( (com.sun.management.ThreadMXBean) threads ).getThreadAllocatedBytes( ids );
+        long delta = 0;
+        allocated.clear();
+        for ( int i = 0; i < ids.length; i++ ) {
+            if ( bytes[i] < 0 ) {
+                // died meanwhile
+                continue;
+            }
+            allocated.put( ids[i], bytes[i] );
+            Long last = lastAllocated.get( ids[i] );
+            delta += last == null ? bytes[i] : bytes[i] - last;
+        }
+        Map<Long, Long> swap = lastAllocated;
+        lastAllocated = allocated;
+        allocated = swap;
+        if ( haveAllocated ) {
+            KruxStdLib.STATSD.stat( StatsdStatType.COUNTER, "alloc_bytes", delta, 1.0D );
+        }
+        haveAllocated = true;
+    }
+}
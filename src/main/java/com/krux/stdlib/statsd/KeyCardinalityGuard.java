@@ -0,0 +1,210 @@
+package com.krux.stdlib.statsd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+
+/**
+ * Caps how many distinct stat keys an app can create, so a bug that puts ids
+ * or URLs into keys cannot blow up the statsd/graphite backend.
+ * <p/>
+ * Keys are grouped by prefix: the part before the first '.', or else before
+ * the first '_' (so <code>APP_HTTP_200</code> groups under <code>APP</code>).
+ * Keys with neither share one group, with the empty prefix. The first
+ * <code>maxKeysPerPrefix</code> distinct keys of a prefix are admitted and
+ * pass unchanged; after that, new keys of the prefix become
+ * <code>&lt;prefix&gt;.__overflow__</code> (plain <code>__overflow__</code>
+ * for keys without a prefix). At most <code>maxPrefixes</code> prefixes are
+ * tracked, and keys of any further prefix become <code>__overflow__</code>.
+ * Each kind of overflow is logged the first time it happens. Keys derived
+ * from a timer by {@link StatsdTimerHistograms} are checked as that timer
+ * key, so a timer's summaries stay in its group and overflow with it.
+ * <p/>
+ * Admitted keys are held exactly (there are at most
+ * <code>maxKeysPerPrefix</code> per prefix); how many distinct keys a prefix
+ * really saw is estimated with a small {@link HyperLogLog} (1 KB per prefix).
+ * The prefixes that overflowed most are available from
+ * {@link #getTopOffenders()}.
+ */
+public class KeyCardinalityGuard {
+
+    public static final int DEFAULT_MAX_KEYS_PER_PREFIX = 1000;
+    public static final int DEFAULT_MAX_PREFIXES = 100;
+    public static final String OVERFLOW_KEY = "__overflow__";
+    // the group of keys with no '.' or '_' to split at
+    static final String NO_PREFIX = "";
+
+    private static final int SKETCH_PRECISION = 10;
+    private static final int TOP_OFFENDERS = 10;
+
+    private final int maxKeysPerPrefix;
+    private final int maxPrefixes;
+    private final Logger logger;
+    private final ConcurrentMap<String, Prefix> prefixes = new ConcurrentHashMap<String, Prefix>();
+    // overflowed keys keep coming back here on every stat, so they are
+    // counted on striped cells and warned about through a flag
+    private final StripedCounter unprefixedOverflow = new StripedCounter();
+    private final AtomicBoolean unprefixedWarned = new AtomicBoolean();
+
+    public KeyCardinalityGuard( int maxKeysPerPrefix, Logger logger ) {
+        this( maxKeysPerPrefix, DEFAULT_MAX_PREFIXES, logger );
+    }
+
+    public KeyCardinalityGuard( int maxKeysPerPrefix, int maxPrefixes, Logger logger ) {
+        if ( maxKeysPerPrefix < 1 || maxPrefixes < 1 ) {
+            throw new IllegalArgumentException( "limits must be positive: " + maxKeysPerPrefix + ", " + maxPrefixes );
+        }
+        this.maxKeysPerPrefix = maxKeysPerPrefix;
+        this.maxPrefixes = maxPrefixes;
+        this.logger = logger;
+    }
+
+    static String prefixOf( String key ) {
+        int end = key.indexOf( '.' );
+        if ( end < 0 ) {
+            end = key.indexOf( '_' );
+        }
+        return end > 0 ? key.substring( 0, end ) : NO_PREFIX;
+    }
+
+    /**
+     * @return <code>key</code> if it is (or can still be) admitted, otherwise
+     *         the overflow key it is collapsed into
+     */
+    public String admit( String key ) {
+        String name = prefixOf( key );
+        Prefix p = prefixes.get( name );
+        if ( p == null ) {
+            if ( prefixes.size() >= maxPrefixes ) {
+                unprefixedOverflow.increment();
+                if ( firstTime( unprefixedWarned ) && logger != null ) {
+                    logger.warn( "more than {} statsd key prefixes; keys of new ones are sent as {}", maxPrefixes,
+                            OVERFLOW_KEY );
+                }
+                return OVERFLOW_KEY;
+            }
+            p = new Prefix( name );
+            Prefix raced = prefixes.putIfAbsent( name, p );
+            if ( raced != null ) {
+                p = raced;
+            }
+        }
+        if ( p.admitted.containsKey( key ) ) {
+            return key;
+        }
+        p.distinct.add( key );
+        if ( p.admitted.size() < maxKeysPerPrefix ) {
+            // may admit a few extra keys when racing; the limit is a guard,
+            // not an exact quota
+            p.admitted.put( key, Boolean.TRUE );
+            return key;
+        }
+        p.overflowed.increment();
+        if ( firstTime( p.warned ) && logger != null ) {
+            if ( name.isEmpty() ) {
+                logger.warn( "more than {} distinct statsd keys without a prefix; new ones are sent as {}",
+                        maxKeysPerPrefix, p.overflowKey );
+            } else {
+                logger.warn( "statsd key prefix {} has more than {} distinct keys; new ones are sent as {}",
+                        new Object[] { name, maxKeysPerPrefix, p.overflowKey } );
+            }
+        }
+        return p.overflowKey;
+    }
+
+    private static boolean firstTime( AtomicBoolean done ) {
+        return !done.get() && done.compareAndSet( false, true );
+    }
+
+    /**
+     * @return the stats collapsed into an overflow key so far
+     */
+    public long getOverflowedCount() {
+        long n = unprefixedOverflow.sum();
+        for ( Prefix p : prefixes.values() ) {
+            n += p.overflowed.sum();
+        }
+        return n;
+    }
+
+    public int getPrefixCount() {
+        return prefixes.size();
+    }
+
+    public int getMaxKeysPerPrefix() {
+        return maxKeysPerPrefix;
+    }
+
+    /**
+     * @return the prefixes with the most overflowed stats, most first
+     */
+    public List<Offender> getTopOffenders() {
+        List<Offender> offenders = new ArrayList<Offender>();
+        for ( Prefix p : prefixes.values() ) {
+            long overflowed = p.overflowed.sum();
+            if ( overflowed > 0 ) {
+                offenders.add( new Offender( p.name, p.distinct.estimate(), overflowed ) );
+            }
+        }
+        Collections.sort( offenders, new Comparator<Offender>() {
+            @Override
+            public int compare( Offender a, Offender b ) {
+                return a.overflowed > b.overflowed ? -1 : ( a.overflowed == b.overflowed ? 0 : 1 );
+            }
+        } );
+        return offenders.size() > TOP_OFFENDERS ? offenders.subList( 0, TOP_OFFENDERS ) : offenders;
+    }
+
+    private static final class Prefix {
+        final String name;
+        final String overflowKey;
+        final ConcurrentMap<String, Boolean> admitted = new ConcurrentHashMap<String, Boolean>();
+        final HyperLogLog distinct = new HyperLogLog( SKETCH_PRECISION );
+        final StripedCounter overflowed = new StripedCounter();
+        final AtomicBoolean warned = new AtomicBoolean();
+
+        Prefix( String name ) {
+            this.name = name;
+            this.overflowKey = name.isEmpty() ? OVERFLOW_KEY : name + "." + OVERFLOW_KEY;
+        }
+    }
+
+    /**
+     * A prefix over its key limit, as shown in <code>/__status</code>.
+     */
+    public static class Offender {
+        private final String prefix;
+        private final long distinctKeys;
+        private final long overflowed;
+
+        Offender( String prefix, long distinctKeys, long overflowed ) {
+            this.prefix = prefix;
+            this.distinctKeys = distinctKeys;
+            this.overflowed = overflowed;
+        }
+
+        public String getPrefix() {
+            return prefix;
+        }
+
+        /**
+         * @return the estimated number of distinct keys seen for the prefix
+         */
+        public long getDistinctKeys() {
+            return distinctKeys;
+        }
+
+        /**
+         * @return the stats collapsed into the prefix's overflow key
+         */
+        public long getOverflowed() {
+            return overflowed;
+        }
+    }
+}
@@ -36,8 +36,51 @@ public class KruxStatsdClient extends StatsdClient {
         }
     }
 
+    private final NamespacedKeyCache keys;
+    private volatile KeyCardinalityGuard guard;
+
     public KruxStatsdClient( String host, int port, Logger logger ) throws Exception {
-        super( host, port, logger );
+        this( host, port, logger, 0 );
+    }
+
+    public KruxStatsdClient( String host, int port, Logger logger, int queueSize ) throws Exception {
+        this( host, port, logger, queueSize, NamespacedKeyCache.DEFAULT_MAX_SIZE );
+    }
+
+    public KruxStatsdClient( String host, int port, Logger logger, int queueSize, int maxCachedKeys ) throws Exception {
+        super( host, port, logger, queueSize );
+        keys = new NamespacedKeyCache( keyNamespace, statsdSuffix, CHARSET, maxCachedKeys );
+    }
+
+    public KruxStatsdClient( StatsdTransport transport, Logger logger, int queueSize ) {
+        super( transport, logger, queueSize );
+        keys = new NamespacedKeyCache( keyNamespace, statsdSuffix, CHARSET, NamespacedKeyCache.DEFAULT_MAX_SIZE );
+    }
+
+    /**
+     * Limits how many distinct keys each key prefix may create: new keys
+     * beyond <code>maxKeysPerPrefix</code> per prefix are collapsed into an
+     * overflow key (see {@link KeyCardinalityGuard}). A
+     * <code>maxKeysPerPrefix</code> of 0 or less removes the limit again.
+     * Keys already cached keep passing either way.
+     */
+    public synchronized void setMaxKeysPerPrefix( int maxKeysPerPrefix ) {
+        guard = maxKeysPerPrefix > 0 ? new KeyCardinalityGuard( maxKeysPerPrefix, logger ) : null;
+    }
+
+    /**
+     * @return the cache of encoded, namespaced keys (exposes hit rate, size
+     *         and eviction counts)
+     */
+    public NamespacedKeyCache getKeyCache() {
+        return keys;
+    }
+
+    /**
+     * @return the key cardinality guard, or null if keys are not limited
+     */
+    public KeyCardinalityGuard getKeyGuard() {
+        return guard;
     }
 
     @Override
@@ -45,10 +88,12 @@ public class KruxStatsdClient extends StatsdClient {
         return KruxStatsdClient.class.getName();
     }
 
+    @Deprecated
     public long getQueueOfferTimeout() {
         return super.getQueueOfferTimeout();
     }
 
+    @Deprecated
     public void setQueueOfferTimeout( long queueOfferTimeout ) {
         super.setQueueOfferTimeout( queueOfferTimeout );
     }
@@ -86,11 +131,30 @@ public class KruxStatsdClient extends StatsdClient {
     }
 
     public boolean stat( StatsdStatType type, String key, long value, double sampleRate ) {
-        return super.stat( type, fullKey( key ), value, sampleRate );
+        return super.stat( type, key, value, sampleRate );
     }
 
-    private String fullKey( String appKey ) {
-        return keyNamespace + appKey.toLowerCase() + statsdSuffix;
+    @Override
+    protected byte[] encodeKey( String key ) {
+        KeyCardinalityGuard g = guard;
+        if ( g == null ) {
+            return keys.get( key );
+        }
+        // only admitted keys are cached, so a hit needs no check; a miss is
+        // checked before it is cached, so runaway keys never displace real ones
+        byte[] encoded = keys.getIfCached( key );
+        return encoded != null ? encoded : keys.get( g.admit( key ) );
+    }
+
+    @Override
+    protected byte[][] encodeKeys( String key, String[] suffixes ) {
+        KeyCardinalityGuard g = guard;
+        String admitted = g == null ? key : g.admit( key );
+        byte[][] encoded = new byte[suffixes.length][];
+        for ( int i = 0; i < suffixes.length; i++ ) {
+            encoded[i] = keys.get( admitted + suffixes[i] );
+        }
+        return encoded;
     }
 
 }
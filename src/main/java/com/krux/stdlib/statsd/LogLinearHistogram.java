@@ -0,0 +1,139 @@
+package com.krux.stdlib.statsd;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-memory, lock-free histogram of non-negative long values (e.g.
+ * nanoseconds) with log-linear buckets: every power of two is split into 32
+ * linear sub-buckets, so any recorded value is known to within ~3% while the
+ * whole range up to 2^44 (~4.9 hours in ns) fits in 1280 counters (~10KB).
+ * Larger values are clamped into the top bucket; min and max stay exact.
+ * <p/>
+ * Recording is a couple of atomic increments and never allocates.
+ * {@link #snapshotAndReset(Snapshot)} drains the counts into a reusable
+ * {@link Snapshot}; values recorded concurrently land in either that snapshot
+ * or the next one.
+ */
+public class LogLinearHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_VALUE_BITS = 44;
+
+    static final long MAX_TRACKABLE = ( 1L << MAX_VALUE_BITS ) - 1;
+    static final int BUCKETS = bucketIndex( MAX_TRACKABLE ) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray( BUCKETS );
+    private final StripedCounter sum = new StripedCounter( 4 );
+    private final AtomicLong min = new AtomicLong( Long.MAX_VALUE );
+    private final AtomicLong max = new AtomicLong( Long.MIN_VALUE );
+
+    static int bucketIndex( long value ) {
+        if ( value < 2 * SUB_BUCKETS ) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros( value ) - SUB_BUCKET_BITS;
+        return ( shift << SUB_BUCKET_BITS ) + (int) ( value >>> shift );
+    }
+
+    static long bucketLowerBound( int index ) {
+        if ( index < 2 * SUB_BUCKETS ) {
+            return index;
+        }
+        int shift = ( index >>> SUB_BUCKET_BITS ) - 1;
+        long mantissa = SUB_BUCKETS + ( index & ( SUB_BUCKETS - 1 ) );
+        return mantissa << shift;
+    }
+
+    /**
+     * @return the middle of the range of values counted in a bucket
+     */
+    static long bucketMidpoint( int index ) {
+        long lower = bucketLowerBound( index );
+        long upper = index + 1 < BUCKETS ? bucketLowerBound( index + 1 ) - 1 : MAX_TRACKABLE;
+        return lower + ( upper - lower ) / 2;
+    }
+
+    public void record( long value ) {
+        if ( value < 0 ) {
+            value = 0;
+        }
+        counts.incrementAndGet( bucketIndex( Math.min( value, MAX_TRACKABLE ) ) );
+        sum.add( value );
+        long m;
+        while ( value < ( m = min.get() ) && !min.compareAndSet( m, value ) ) {
+            // retry
+        }
+        while ( value > ( m = max.get() ) && !max.compareAndSet( m, value ) ) {
+            // retry
+        }
+    }
+
+    /**
+     * Moves everything recorded since the last call into <code>into</code>.
+     */
+    public void snapshotAndReset( Snapshot into ) {
+        long count = 0;
+        for ( int i = 0; i < BUCKETS; i++ ) {
+            long c = counts.getAndSet( i, 0L );
+            into.counts[i] = c;
+            count += c;
+        }
+        into.count = count;
+        into.sum = sum.sumThenReset();
+        into.min = min.getAndSet( Long.MAX_VALUE );
+        into.max = max.getAndSet( Long.MIN_VALUE );
+    }
+
+    /**
+     * A reusable, single-threaded copy of one interval's worth of data.
+     */
+    public static class Snapshot {
+
+        final long[] counts = new long[BUCKETS];
+        long count;
+        long sum;
+        long min;
+        long max;
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMin() {
+            return count == 0 ? 0 : min;
+        }
+
+        public long getMax() {
+            return count == 0 ? 0 : max;
+        }
+
+        public long getMean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        /**
+         * @param quantile
+         *            between 0 and 1, e.g. 0.99
+         * @return the value at that quantile, clamped to [min, max]
+         */
+        public long getValueAtQuantile( double quantile ) {
+            if ( count == 0 ) {
+                return 0;
+            }
+            long rank = (long) Math.ceil( quantile * count );
+            if ( rank < 1 ) {
+                rank = 1;
+            }
+            long seen = 0;
+            for ( int i = 0; i < BUCKETS; i++ ) {
+                seen += counts[i];
+                if ( seen >= rank ) {
+                    return Math.max( getMin(), Math.min( getMax(), bucketMidpoint( i ) ) );
+                }
+            }
+            return getMax();
+        }
+    }
+}
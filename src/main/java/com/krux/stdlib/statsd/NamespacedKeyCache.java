@@ -0,0 +1,148 @@
+package com.krux.stdlib.statsd;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, concurrent cache from a raw application key to the encoded bytes of
+ * its fully namespaced statsd key (<code>prefix + key.toLowerCase() + suffix</code>).
+ * <p/>
+ * Apps normally use a small, fixed set of keys, so each distinct key is
+ * lowercased, concatenated and encoded once instead of on every stat. To keep
+ * a runaway key space from leaking memory, the cache holds at most
+ * <code>maxSize</code> entries; inserting beyond that evicts an entry picked
+ * uniformly at random. Every cached key owns one of <code>maxSize</code>
+ * slots, and a new key takes over a random slot, evicting the key in it, so
+ * eviction costs O(1) and favors no part of the key space.
+ */
+public class NamespacedKeyCache {
+
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    private final String prefix;
+    private final String suffix;
+    private final Charset charset;
+    private final int maxSize;
+
+    private final ConcurrentMap<String, byte[]> keys;
+    private final AtomicReferenceArray<String> slots;
+    private final AtomicInteger filledSlots = new AtomicInteger();
+
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+    private final StripedCounter evictions = new StripedCounter();
+
+    public NamespacedKeyCache( String prefix, String suffix, Charset charset ) {
+        this( prefix, suffix, charset, DEFAULT_MAX_SIZE );
+    }
+
+    public NamespacedKeyCache( String prefix, String suffix, Charset charset, int maxSize ) {
+        if ( maxSize < 1 ) {
+            throw new IllegalArgumentException( "maxSize must be positive: " + maxSize );
+        }
+        this.prefix = prefix;
+        this.suffix = suffix;
+        this.charset = charset;
+        this.maxSize = maxSize;
+        this.keys = new ConcurrentHashMap<String, byte[]>( Math.min( maxSize, 1024 ) );
+        this.slots = new AtomicReferenceArray<String>( maxSize );
+    }
+
+    /**
+     * @return the encoded, namespaced key. The returned array is shared and
+     *         must not be modified.
+     */
+    public byte[] get( String appKey ) {
+        byte[] encoded = keys.get( appKey );
+        if ( encoded != null ) {
+            hits.increment();
+            return encoded;
+        }
+        misses.increment();
+        encoded = fullKey( appKey ).getBytes( charset );
+        byte[] raced = keys.putIfAbsent( appKey, encoded );
+        if ( raced != null ) {
+            return raced;
+        }
+        takeSlot( appKey );
+        return encoded;
+    }
+
+    /**
+     * @return the encoded, namespaced key if it is cached, otherwise null
+     *         (counted as a miss only by the {@link #get(String)} that
+     *         follows)
+     */
+    public byte[] getIfCached( String appKey ) {
+        byte[] encoded = keys.get( appKey );
+        if ( encoded != null ) {
+            hits.increment();
+        }
+        return encoded;
+    }
+
+    public String fullKey( String appKey ) {
+        return prefix + appKey.toLowerCase() + suffix;
+    }
+
+    private void takeSlot( String appKey ) {
+        int filled;
+        while ( ( filled = filledSlots.get() ) < maxSize ) {
+            if ( filledSlots.compareAndSet( filled, filled + 1 ) ) {
+                slots.set( filled, appKey );
+                return;
+            }
+        }
+        String victim = slots.getAndSet( ThreadLocalRandom.current().nextInt( maxSize ), appKey );
+        if ( victim != null && keys.remove( victim ) != null ) {
+            evictions.increment();
+        }
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return hits / (hits + misses), or 1.0 before the first lookup
+     */
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 1.0D : (double) h / total;
+    }
+
+    public void clear() {
+        keys.clear();
+        for ( int i = 0; i < maxSize; i++ ) {
+            slots.set( i, null );
+        }
+        filledSlots.set( 0 );
+    }
+
+    @Override
+    public String toString() {
+        return "NamespacedKeyCache[size=" + size() + ", hitRate=" + getHitRate() + ", evictions="
+                + getEvictionCount() + "]";
+    }
+}
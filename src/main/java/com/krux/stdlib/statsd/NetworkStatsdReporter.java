@@ -0,0 +1,145 @@
+package com.krux.stdlib.statsd;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import com.krux.stdlib.KruxStdLib;
+
+/**
+ * Reports the kernel's UDP and TCP error counters, as deltas since the last
+ * run, from <code>/proc/net/snmp</code> and <code>/proc/net/netstat</code>:
+ * <ul>
+ * <li><code>net.udp.in_errors</code>, <code>net.udp.rcvbuf_errors</code> and
+ * <code>net.udp.sndbuf_errors</code>: datagrams dropped, most often because
+ * a socket's receive (or send) buffer was full, as happens to statsd
+ * servers</li>
+ * <li><code>net.tcp.retrans_segs</code>: retransmitted segments</li>
+ * <li><code>net.tcp.listen_overflows</code> and
+ * <code>net.tcp.listen_drops</code>: connections dropped because a listen
+ * backlog (e.g. <code>StdHttpServer</code>'s <code>SO_BACKLOG</code>) was
+ * full</li>
+ * </ul>
+ * Both files hold pairs of lines per protocol, a header naming the columns
+ * and the values (<code>Udp: InDatagrams NoPorts ...</code> then
+ * <code>Udp: 6001551 56 ...</code>). The headers are parsed once, on the
+ * first run; after that each run re-reads the files through {@link ProcFile}
+ * and picks values by column index. The counters are per network namespace,
+ * so in a container they cover the container. The first run reports no
+ * deltas.
+ */
+public class NetworkStatsdReporter implements StatsdReporter {
+
+    private final ProcFile snmp;
+    private final ProcFile netstat;
+    private final List<Section> sections;
+
+    public NetworkStatsdReporter() {
+        this( "/proc" );
+    }
+
+    NetworkStatsdReporter( String procRoot ) {
+        snmp = new ProcFile( procRoot + "/net/snmp" );
+        netstat = new ProcFile( procRoot + "/net/netstat" );
+        sections = Arrays.asList( new Section( snmp, "Udp:", //
+                "InErrors", "net.udp.in_errors", //
+                "RcvbufErrors", "net.udp.rcvbuf_errors", //
+                "SndbufErrors", "net.udp.sndbuf_errors" ), //
+                new Section( snmp, "Tcp:", //
+                        "RetransSegs", "net.tcp.retrans_segs" ), //
+                new Section( netstat, "TcpExt:", //
+                        "ListenOverflows", "net.tcp.listen_overflows", //
+                        "ListenDrops", "net.tcp.listen_drops" ) );
+    }
+
+    /**
+     * @return true if there is a <code>/proc/net/snmp</code> to read
+     */
+    public boolean isAvailable() {
+        return snmp.exists();
+    }
+
+    @Override
+    public void report() {
+        try {
+            snmp.read();
+            if ( netstat.exists() ) {
+                netstat.read();
+            }
+            for ( Section section : sections ) {
+                section.report();
+            }
+        } catch ( IOException err ) {
+            KruxStdLib.STATSD.time( "net_collection_error", 1 );
+        }
+    }
+
+    /**
+     * Some columns of one protocol's pair of lines.
+     */
+    private static class Section {
+
+        private final ProcFile file;
+        private final String prefix;
+        private final String[] columns;
+        private final String[] keys;
+
+        private int[] indexes;
+        private long[] previous;
+        private long[] values = new long[64];
+        private boolean havePrevious;
+
+        /**
+         * @param columnsAndKeys
+         *            column name, stat key, column name, stat key, ...
+         */
+        Section( ProcFile file, String prefix, String... columnsAndKeys ) {
+            this.file = file;
+            this.prefix = prefix;
+            this.columns = new String[columnsAndKeys.length / 2];
+            this.keys = new String[columns.length];
+            for ( int i = 0; i < columns.length; i++ ) {
+                columns[i] = columnsAndKeys[2 * i];
+                keys[i] = columnsAndKeys[2 * i + 1];
+            }
+            this.previous = new long[columns.length];
+        }
+
+        void report() {
+            file.rewind();
+            if ( !file.findLine( prefix ) ) {
+                return;
+            }
+            if ( indexes == null ) {
+                // column order is fixed for the kernel's lifetime
+                List<String> header = Arrays.asList( file.restOfLine().trim().split( "\\s+" ) );
+                indexes = new int[columns.length];
+                for ( int i = 0; i < columns.length; i++ ) {
+                    indexes[i] = header.indexOf( columns[i] );
+                }
+            }
+            if ( !file.nextLine() || !file.startsWith( prefix ) ) {
+                return;
+            }
+            int n = 0;
+            file.skipFields( 1 );
+            while ( file.hasMoreFields() ) {
+                if ( n == values.length ) {
+                    values = Arrays.copyOf( values, n * 2 );
+                }
+                values[n++] = file.nextLong();
+            }
+            for ( int i = 0; i < columns.length; i++ ) {
+                if ( indexes[i] < 0 || indexes[i] >= n ) {
+                    continue;
+                }
+                long current = values[indexes[i]];
+                if ( havePrevious ) {
+                    KruxStdLib.STATSD.count( keys[i], (int) ( current - previous[i] ) );
+                }
+                previous[i] = current;
+            }
+            havePrevious = true;
+        }
+    }
+}
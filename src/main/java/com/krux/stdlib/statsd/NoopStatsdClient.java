@@ -17,14 +17,52 @@ public class NoopStatsdClient extends StatsdClient {
         return NoopStatsdClient.class.getName();
     }
 
+    @Deprecated
     public long getQueueOfferTimeout() {
         return 0;
     }
 
+    @Deprecated
     public void setQueueOfferTimeout( long queueOfferTimeout ) {
         return;
     }
 
+    public void setBatching( int maxPacketSize, long maxLatencyMs ) {
+        return;
+    }
+
+    public void setAggregation( long flushIntervalMs ) {
+        return;
+    }
+
+    public void setTimerHistograms( long flushIntervalMs ) {
+        return;
+    }
+
+    public void setAdaptiveSampling( long maxPerKeyPerSecond ) {
+        return;
+    }
+
+    public void setTelemetry( long reportIntervalMs ) {
+        return;
+    }
+
+    public void setUniques( long flushIntervalMs ) {
+        return;
+    }
+
+    public boolean unique( String key, long id ) {
+        return false;
+    }
+
+    public boolean unique( String key, String id ) {
+        return false;
+    }
+
+    public void flush() {
+        return;
+    }
+
     public void shutdown() {
         return;
     }
@@ -53,6 +91,10 @@ public class NoopStatsdClient extends StatsdClient {
         return false;
     }
 
+    public boolean timeNanos( String key, long nanos ) {
+        return false;
+    }
+
     public boolean gauge( String key, long value ) {
         return false;
     }
@@ -61,4 +103,16 @@ public class NoopStatsdClient extends StatsdClient {
         return false;
     }
 
+    public StatsdCounter counter( String key, double sampleRate ) {
+        return StatsdCounter.NOOP;
+    }
+
+    public StatsdTimer timer( String key, double sampleRate ) {
+        return StatsdTimer.NOOP;
+    }
+
+    public StatsdGauge gauge( String key ) {
+        return StatsdGauge.NOOP;
+    }
+
 }
@@ -0,0 +1,273 @@
+package com.krux.stdlib.statsd;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Re-reads a small procfs (or sysfs, cgroupfs) file into a reused byte buffer
+ * and parses numbers out of it in place, with no Strings, regexes or forked
+ * processes.
+ * <p/>
+ * The file is opened once and kept open; each {@link #read()} seeks back to
+ * the start, which makes the kernel regenerate the contents, so a sample
+ * costs one or two read syscalls. After a read, a cursor walks the buffer:
+ * {@link #findLine(String)} / {@link #nextLine()} position it at lines, and
+ * {@link #nextLong()} / {@link #nextFixed(int)} parse the next number after
+ * it.
+ * <p/>
+ * Not thread safe; use one instance per reading thread.
+ */
+public class ProcFile {
+
+    private final File file;
+    private RandomAccessFile raf;
+    private byte[] buf = new byte[4096];
+    private int length;
+    private int pos;
+
+    public ProcFile( String path ) {
+        this.file = new File( path );
+    }
+
+    public boolean exists() {
+        return file.exists();
+    }
+
+    public String getPath() {
+        return file.getPath();
+    }
+
+    /**
+     * Reads the whole file into the buffer and puts the cursor at its start.
+     */
+    public void read() throws IOException {
+        if ( raf == null ) {
+            raf = new RandomAccessFile( file, "r" );
+        }
+        raf.seek( 0 );
+        length = 0;
+        while ( true ) {
+            if ( length == buf.length ) {
+                byte[] bigger = new byte[buf.length * 2];
+                System.arraycopy( buf, 0, bigger, 0, length );
+                buf = bigger;
+            }
+            int n = raf.read( buf, length, buf.length - length );
+            if ( n < 0 ) {
+                break;
+            }
+            length += n;
+        }
+        pos = 0;
+    }
+
+    /**
+     * Puts the cursor back at the start, to look for lines in any order
+     * without reading the file again.
+     */
+    public void rewind() {
+        pos = 0;
+    }
+
+    /**
+     * @return the rest of the current line as a String (for parsing headers
+     *         once), leaving the cursor at its end
+     */
+    public String restOfLine() {
+        int start = pos;
+        while ( pos < length && buf[pos] != '\n' ) {
+            pos++;
+        }
+        return new String( buf, start, pos - start, StandardCharsets.US_ASCII );
+    }
+
+    /**
+     * Moves the cursor past the next line (from the cursor on) starting with
+     * <code>prefix</code>.
+     * 
+     * @return false, leaving the cursor at the end, if there is none
+     */
+    public boolean findLine( String prefix ) {
+        while ( pos < length ) {
+            if ( startsWith( prefix ) ) {
+                pos += prefix.length();
+                return true;
+            }
+            if ( !nextLine() ) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the bytes at the cursor are <code>s</code> (ASCII)
+     */
+    public boolean startsWith( String s ) {
+        if ( pos + s.length() > length ) {
+            return false;
+        }
+        for ( int i = 0; i < s.length(); i++ ) {
+            if ( buf[pos + i] != s.charAt( i ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves the cursor to the start of the next line.
+     * 
+     * @return false if there is no next line
+     */
+    public boolean nextLine() {
+        while ( pos < length && buf[pos] != '\n' ) {
+            pos++;
+        }
+        if ( pos < length ) {
+            pos++;
+            return pos < length;
+        }
+        return false;
+    }
+
+    /**
+     * Moves the cursor just past the last occurrence of <code>b</code> in the
+     * file (e.g. the ')' closing the command name in
+     * <code>/proc/self/stat</code>).
+     */
+    public boolean skipPastLast( byte b ) {
+        for ( int i = length - 1; i >= pos; i-- ) {
+            if ( buf[i] == b ) {
+                pos = i + 1;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Skips <code>n</code> whitespace separated fields.
+     */
+    public void skipFields( int n ) {
+        for ( int i = 0; i < n; i++ ) {
+            while ( pos < length && isSpace( buf[pos] ) ) {
+                pos++;
+            }
+            while ( pos < length && !isSpace( buf[pos] ) ) {
+                pos++;
+            }
+        }
+    }
+
+    /**
+     * Moves the cursor past the next whitespace separated field equal to
+     * <code>s</code> on the current line.
+     * 
+     * @return false, leaving the cursor at the end of the line, if there is
+     *         none
+     */
+    public boolean skipPastField( String s ) {
+        while ( pos < length && buf[pos] != '\n' ) {
+            while ( pos < length && ( buf[pos] == ' ' || buf[pos] == '\t' ) ) {
+                pos++;
+            }
+            boolean match = startsWith( s )
+                    && ( pos + s.length() == length || isSpace( buf[pos + s.length()] ) );
+            while ( pos < length && !isSpace( buf[pos] ) ) {
+                pos++;
+            }
+            if ( match ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Skips blanks.
+     * 
+     * @return true if there is another field on the current line (to tell a
+     *         -1 value from the end of the line)
+     */
+    public boolean hasMoreFields() {
+        while ( pos < length && ( buf[pos] == ' ' || buf[pos] == '\t' ) ) {
+            pos++;
+        }
+        return pos < length && buf[pos] != '\n';
+    }
+
+    /**
+     * Parses the next integer on the current line.
+     * 
+     * @return the number, or -1 if the line has no more numbers
+     */
+    public long nextLong() {
+        while ( pos < length && buf[pos] != '\n' && !isDigit( buf[pos] ) && buf[pos] != '-' ) {
+            pos++;
+        }
+        if ( pos >= length || buf[pos] == '\n' ) {
+            return -1;
+        }
+        boolean negative = buf[pos] == '-';
+        if ( negative ) {
+            pos++;
+        }
+        long value = 0;
+        while ( pos < length && isDigit( buf[pos] ) ) {
+            value = value * 10 + ( buf[pos++] - '0' );
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses the next decimal number on the current line as a fixed point
+     * value, e.g. <code>"0.52"</code> with 2 decimals gives 52.
+     * 
+     * @return the scaled number, or -1 if the line has no more numbers
+     */
+    public long nextFixed( int decimals ) {
+        long whole = nextLong();
+        if ( whole < 0 ) {
+            return -1;
+        }
+        long scale = 1;
+        for ( int i = 0; i < decimals; i++ ) {
+            scale *= 10;
+        }
+        long fraction = 0;
+        long fractionScale = scale;
+        if ( pos < length && buf[pos] == '.' ) {
+            pos++;
+            while ( pos < length && isDigit( buf[pos] ) ) {
+                if ( fractionScale > 1 ) {
+                    fractionScale /= 10;
+                    fraction += ( buf[pos] - '0' ) * fractionScale;
+                }
+                pos++;
+            }
+        }
+        return whole * scale + fraction;
+    }
+
+    public void close() {
+        if ( raf != null ) {
+            try {
+                raf.close();
+            } catch ( IOException e ) {
+                // nothing useful to do
+            }
+            raf = null;
+        }
+    }
+
+    private static boolean isDigit( byte b ) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static boolean isSpace( byte b ) {
+        return b == ' ' || b == '\t' || b == '\n';
+    }
+}
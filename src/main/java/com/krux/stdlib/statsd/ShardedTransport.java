@@ -0,0 +1,353 @@
+package com.krux.stdlib.statsd;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+/**
+ * Spreads stats over several statsd endpoints by consistent hashing of their
+ * wire keys, so every stat of a given key lands on, and is aggregated by, the
+ * same relay.
+ * <p/>
+ * Packets handed to {@link #send(byte[], int, int)} are split into their
+ * newline separated stats, and each stat is routed by its key (the bytes
+ * before the first ':') to an endpoint on a hash ring with
+ * {@link #VIRTUAL_NODES} points per endpoint. Every endpoint has its own
+ * {@link StatsdPacketBatcher} send buffer and {@link DatagramChannelTransport},
+ * whose connected channel is what tells an endpoint with nothing listening
+ * apart from a live one.
+ * <p/>
+ * An endpoint whose send fails, or that is known unreachable, is marked down
+ * for <code>backoffMs</code>. While it is down its keys go to the next
+ * endpoint along the ring, leaving every other key where it was; once the
+ * backoff has passed its keys are routed back to it. The packet whose send
+ * failed is re-routed the same way, stat by stat. When no endpoint is up,
+ * sends are skipped and return false.
+ */
+public class ShardedTransport implements BufferedTransport {
+
+    public static final int VIRTUAL_NODES = 160;
+    public static final long DEFAULT_BACKOFF_MS = 5000;
+
+    private static final byte NEWLINE = '\n';
+    private static final byte COLON = ':';
+
+    private final Endpoint[] endpoints;
+    // ring point hashes, sorted, and the endpoint owning each point
+    private final long[] ring;
+    private final Endpoint[] owners;
+
+    public ShardedTransport( List<InetAddress> hosts, List<Integer> ports, int maxPacketSize, long maxLatencyMs,
+            Logger logger ) throws SocketException {
+        this( hosts, ports, maxPacketSize, maxLatencyMs, DEFAULT_BACKOFF_MS, logger );
+    }
+
+    public ShardedTransport( List<InetAddress> hosts, List<Integer> ports, int maxPacketSize, long maxLatencyMs,
+            long backoffMs, Logger logger ) throws SocketException {
+        if ( hosts.isEmpty() || hosts.size() != ports.size() ) {
+            throw new IllegalArgumentException( "need one port per host, and at least one host" );
+        }
+        endpoints = new Endpoint[hosts.size()];
+        for ( int i = 0; i < endpoints.length; i++ ) {
+            // ring points are named by ip:port, so every client builds the
+            // same ring whatever names it was given for the hosts
+            String address = hosts.get( i ).getHostAddress() + ":" + ports.get( i );
+            endpoints[i] = new Endpoint( this, address, new DatagramChannelTransport( hosts.get( i ), ports.get( i ) ),
+                    maxPacketSize, maxLatencyMs, backoffMs, logger );
+        }
+
+        int points = endpoints.length * VIRTUAL_NODES;
+        long[] hashes = new long[points];
+        Endpoint[] byHash = new Endpoint[points];
+        int n = 0;
+        for ( Endpoint e : endpoints ) {
+            for ( int v = 0; v < VIRTUAL_NODES; v++ ) {
+                byte[] point = ( e.getAddress() + "-" + v ).getBytes( StatsdClient.CHARSET );
+                hashes[n] = hash( point, 0, point.length );
+                byHash[n] = e;
+                n++;
+            }
+        }
+        // sort points by hash, keeping each point's owner alongside
+        Integer[] order = new Integer[points];
+        for ( int i = 0; i < points; i++ ) {
+            order[i] = i;
+        }
+        final long[] unsorted = hashes;
+        Arrays.sort( order, new Comparator<Integer>() {
+            @Override
+            public int compare( Integer a, Integer b ) {
+                long x = unsorted[a], y = unsorted[b];
+                return x < y ? -1 : ( x == y ? 0 : 1 );
+            }
+        } );
+        ring = new long[points];
+        owners = new Endpoint[points];
+        for ( int i = 0; i < points; i++ ) {
+            ring[i] = hashes[order[i]];
+            owners[i] = byHash[order[i]];
+        }
+    }
+
+    /**
+     * 64 bit FNV-1a, finished with a murmur3 mix so that similar keys spread
+     * evenly around the ring.
+     */
+    static long hash( byte[] data, int offset, int length ) {
+        long h = 0xcbf29ce484222325L;
+        for ( int i = offset; i < offset + length; i++ ) {
+            h ^= data[i] & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * @return the endpoint a key hashing to <code>keyHash</code> goes to:
+     *         the first one that is up, clockwise from the hash, or its
+     *         owner if none is up
+     */
+    Endpoint route( long keyHash ) {
+        int i = Arrays.binarySearch( ring, keyHash );
+        if ( i < 0 ) {
+            i = -i - 1;
+        }
+        long now = System.nanoTime();
+        for ( int n = 0; n < ring.length; n++ ) {
+            Endpoint e = owners[( i + n ) % ring.length];
+            if ( e.isUp( now ) ) {
+                return e;
+            }
+        }
+        return owners[i % ring.length];
+    }
+
+    @Override
+    public boolean send( byte[] data, int offset, int length ) {
+        return route( data, offset, length, false );
+    }
+
+    /**
+     * Routes each stat of a packet to its endpoint: into the endpoint's send
+     * buffer, or if <code>direct</code> straight to its socket, as is done
+     * when re-routing a packet an endpoint failed to send.
+     * 
+     * @return false if any stat was dropped because no endpoint is up
+     */
+    private boolean route( byte[] data, int offset, int length, boolean direct ) {
+        boolean routed = true;
+        long now = System.nanoTime();
+        int end = offset + length;
+        int lineStart = offset;
+        while ( lineStart < end ) {
+            int keyEnd = -1;
+            int lineEnd = lineStart;
+            while ( lineEnd < end && data[lineEnd] != NEWLINE ) {
+                if ( keyEnd < 0 && data[lineEnd] == COLON ) {
+                    keyEnd = lineEnd;
+                }
+                lineEnd++;
+            }
+            if ( lineEnd > lineStart ) {
+                long keyHash = hash( data, lineStart, ( keyEnd < 0 ? lineEnd : keyEnd ) - lineStart );
+                Endpoint e = route( keyHash );
+                if ( !e.isUp( now ) ) {
+                    routed = false;
+                } else if ( direct ) {
+                    routed &= e.sendDirect( data, lineStart, lineEnd - lineStart );
+                } else {
+                    e.batcher.append( data, lineStart, lineEnd - lineStart );
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        return routed;
+    }
+
+    /**
+     * Sends what the endpoints have buffered.
+     */
+    @Override
+    public void flush() {
+        for ( Endpoint e : endpoints ) {
+            e.batcher.flush();
+        }
+    }
+
+    @Override
+    public long getPackets() {
+        long sum = 0;
+        for ( Endpoint e : endpoints ) {
+            sum += e.getPackets();
+        }
+        return sum;
+    }
+
+    @Override
+    public long getBytes() {
+        long sum = 0;
+        for ( Endpoint e : endpoints ) {
+            sum += e.getBytes();
+        }
+        return sum;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        long now = System.nanoTime();
+        for ( Endpoint e : endpoints ) {
+            if ( e.isUp( now ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        for ( Endpoint e : endpoints ) {
+            e.batcher.shutdown();
+            e.transport.close();
+        }
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return Collections.unmodifiableList( Arrays.asList( endpoints ) );
+    }
+
+    @Override
+    public String toString() {
+        List<String> addresses = new ArrayList<String>();
+        for ( Endpoint e : endpoints ) {
+            addresses.add( e.getAddress() );
+        }
+        return addresses.toString();
+    }
+
+    /**
+     * One statsd relay, with its own send buffer and health.
+     */
+    public static class Endpoint {
+
+        private final ShardedTransport shards;
+        private final String address;
+        private final DatagramChannelTransport transport;
+        private final StatsdPacketBatcher batcher;
+        private final long backoffNanos;
+        private final Logger logger;
+
+        private volatile boolean down;
+        private volatile long downUntil;
+        private final AtomicLong packets = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong downCount = new AtomicLong();
+
+        Endpoint( ShardedTransport shards, String address, DatagramChannelTransport transport, int maxPacketSize,
+                long maxLatencyMs, long backoffMs, Logger logger ) {
+            this.shards = shards;
+            this.address = address;
+            this.transport = transport;
+            this.backoffNanos = TimeUnit.MILLISECONDS.toNanos( backoffMs );
+            this.logger = logger;
+            this.batcher = new StatsdPacketBatcher( maxPacketSize, maxLatencyMs ) {
+                @Override
+                protected void sendPacket( byte[] data, int offset, int length ) {
+                    Endpoint.this.sendPacket( data, offset, length );
+                }
+            };
+        }
+
+        private void sendPacket( byte[] data, int offset, int length ) {
+            if ( !sendDirect( data, offset, length ) ) {
+                // this endpoint is down now, so its stats go to the next ones
+                // along the ring, straight to their sockets: taking their send
+                // buffers' locks while holding ours could deadlock
+                shards.route( data, offset, length, true );
+            }
+        }
+
+        /**
+         * Sends a packet straight to the socket, marking the endpoint down
+         * if that fails.
+         * 
+         * @return true if the packet was sent
+         */
+        boolean sendDirect( byte[] data, int offset, int length ) {
+            try {
+                if ( transport.send( data, offset, length ) ) {
+                    packets.incrementAndGet();
+                    bytes.addAndGet( length );
+                    return true;
+                }
+            } catch ( IOException e ) {
+                failures.incrementAndGet();
+            }
+            markDown();
+            return false;
+        }
+
+        private void markDown() {
+            downUntil = System.nanoTime() + backoffNanos;
+            if ( !down ) {
+                down = true;
+                downCount.incrementAndGet();
+                if ( logger != null ) {
+                    logger.warn( "statsd endpoint {} is down, sending its keys to the other endpoints for {}ms",
+                            address, TimeUnit.NANOSECONDS.toMillis( backoffNanos ) );
+                }
+            }
+        }
+
+        boolean isUp( long now ) {
+            if ( down ) {
+                if ( now - downUntil < 0 ) {
+                    return false;
+                }
+                down = false;
+            }
+            return transport.isAvailable();
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public boolean isUp() {
+            return isUp( System.nanoTime() );
+        }
+
+        public long getPackets() {
+            return packets.get();
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        /**
+         * @return how many times the endpoint has been marked down
+         */
+        public long getDownCount() {
+            return downCount.get();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.krux.stdlib.statsd;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client-side pre-aggregation of counters and gauges.
+ * <p/>
+ * Counters are summed per key in {@link StripedCounter}s, so concurrent
+ * increments of the same hot key don't fight over one CAS target. Gauges keep
+ * the last value set. Every <code>flushIntervalMs</code> each key that saw
+ * activity is emitted once: the interval's counter total (unsampled, since
+ * every increment was seen) or the gauge's latest value. The statsd server
+ * therefore ends up with the same totals from one line per key per interval
+ * instead of one per call.
+ * <p/>
+ * At most <code>maxKeys</code> counters and as many gauges are tracked; stats
+ * for keys beyond that are not absorbed and go out directly as before.
+ */
+public abstract class StatsdAggregator {
+
+    public static final int DEFAULT_MAX_KEYS = 1000;
+
+    // a few stripes per key is plenty and keeps per-key memory small
+    private static final int STRIPES_PER_KEY = Math.min( Runtime.getRuntime().availableProcessors(), 8 );
+
+    private final int maxKeys;
+    private final ConcurrentMap<String, CounterKey> counters = new ConcurrentHashMap<String, CounterKey>();
+    private final ConcurrentMap<String, GaugeKey> gauges = new ConcurrentHashMap<String, GaugeKey>();
+
+    private final ScheduledFuture<?> flusher;
+
+    public StatsdAggregator( long flushIntervalMs ) {
+        this( flushIntervalMs, DEFAULT_MAX_KEYS );
+    }
+
+    public StatsdAggregator( long flushIntervalMs, int maxKeys ) {
+        if ( flushIntervalMs < 1 ) {
+            throw new IllegalArgumentException( "flushIntervalMs must be positive: " + flushIntervalMs );
+        }
+        this.maxKeys = maxKeys;
+        flusher = StatsdBackground.atFixedRate( new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, flushIntervalMs );
+    }
+
+    /**
+     * @return the encoded wire key for an app key, or null to have the raw key
+     *         encoded at send time
+     */
+    protected abstract byte[] encodeKey( String key );
+
+    /**
+     * Sends one aggregated stat, bypassing aggregation.
+     */
+    protected abstract void emit( StatsdStatType type, String key, byte[] encodedKey, long value );
+
+    /**
+     * @return true if the stat was absorbed, false if the caller should send
+     *         it as usual (timers, or too many distinct keys)
+     */
+    public boolean record( StatsdStatType type, String key, long value ) {
+        switch ( type ) {
+            case COUNTER: {
+                StripedCounter c = counter( key );
+                if ( c == null ) {
+                    return false;
+                }
+                c.add( value );
+                return true;
+            }
+            case GAUGE: {
+                GaugeKey g = gauge( key );
+                if ( g == null ) {
+                    return false;
+                }
+                g.set( value );
+                return true;
+            }
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return the accumulator of a counter key, or null if no more keys can
+     *         be tracked
+     */
+    StripedCounter counter( String key ) {
+        CounterKey c = counters.get( key );
+        if ( c == null ) {
+            if ( counters.size() >= maxKeys ) {
+                return null;
+            }
+            c = new CounterKey( key, encodeKey( key ) );
+            CounterKey raced = counters.putIfAbsent( key, c );
+            if ( raced != null ) {
+                c = raced;
+            }
+        }
+        return c.sum;
+    }
+
+    /**
+     * @return the last-value holder of a gauge key, or null if no more keys
+     *         can be tracked
+     */
+    GaugeKey gauge( String key ) {
+        GaugeKey g = gauges.get( key );
+        if ( g == null ) {
+            if ( gauges.size() >= maxKeys ) {
+                return null;
+            }
+            g = new GaugeKey( key, encodeKey( key ) );
+            GaugeKey raced = gauges.putIfAbsent( key, g );
+            if ( raced != null ) {
+                g = raced;
+            }
+        }
+        return g;
+    }
+
+    /**
+     * Emits one line per key that changed since the last flush.
+     */
+    public synchronized void flush() {
+        for ( CounterKey c : counters.values() ) {
+            long sum = c.sum.sumThenReset();
+            if ( sum != 0 ) {
+                emit( StatsdStatType.COUNTER, c.key, c.encodedKey, sum );
+            }
+        }
+        for ( GaugeKey g : gauges.values() ) {
+            if ( g.dirty ) {
+                g.dirty = false;
+                emit( StatsdStatType.GAUGE, g.key, g.encodedKey, g.value.get() );
+            }
+        }
+    }
+
+    /**
+     * Stops the periodic flush and emits what has been aggregated so far.
+     */
+    public void shutdown() {
+        flusher.cancel( false );
+        flush();
+    }
+
+    public int getCounterKeyCount() {
+        return counters.size();
+    }
+
+    public int getGaugeKeyCount() {
+        return gauges.size();
+    }
+
+    private static final class CounterKey {
+        final String key;
+        final byte[] encodedKey;
+        final StripedCounter sum = new StripedCounter( STRIPES_PER_KEY );
+
+        CounterKey( String key, byte[] encodedKey ) {
+            this.key = key;
+            this.encodedKey = encodedKey;
+        }
+    }
+
+    static final class GaugeKey {
+        final String key;
+        final byte[] encodedKey;
+        final AtomicLong value = new AtomicLong();
+        volatile boolean dirty;
+
+        GaugeKey( String key, byte[] encodedKey ) {
+            this.key = key;
+            this.encodedKey = encodedKey;
+        }
+
+        void set( long v ) {
+            value.set( v );
+            dirty = true;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.krux.stdlib.statsd;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The one daemon thread that runs the statsd client's own periodic work for
+ * every client in the JVM: packet batch flushes, aggregation, timer histogram
+ * and unique count intervals, adaptive sampling adjustments and telemetry, and
+ * the {@link StatsdReporter}s of a {@link StatsdReporterScheduler}.
+ * <p/>
+ * All of these are short, non-blocking bursts of encoding, procfs reads and
+ * UDP sends, so they share a thread instead of each starting its own. A component stops
+ * its task by cancelling the returned future; the thread itself lives as
+ * long as the JVM.
+ */
+final class StatsdBackground {
+
+    private static final ScheduledThreadPoolExecutor EXECUTOR = new ScheduledThreadPoolExecutor( 1,
+            new DaemonThreadFactory( "statsd-background" ) );
+
+    static {
+        // components come and go as settings change; drop their tasks with them
+        EXECUTOR.setRemoveOnCancelPolicy( true );
+    }
+
+    private StatsdBackground() {
+    }
+
+    static ScheduledFuture<?> atFixedRate( Runnable task, long periodMs ) {
+        return EXECUTOR.scheduleAtFixedRate( task, periodMs, periodMs, TimeUnit.MILLISECONDS );
+    }
+
+    static ScheduledFuture<?> schedule( Runnable task, long delayNanos ) {
+        return EXECUTOR.schedule( task, delayNanos, TimeUnit.NANOSECONDS );
+    }
+
+    static ScheduledFuture<?> withFixedDelay( Runnable task, long delayMs ) {
+        return EXECUTOR.scheduleWithFixedDelay( task, delayMs, delayMs, TimeUnit.MILLISECONDS );
+    }
+}
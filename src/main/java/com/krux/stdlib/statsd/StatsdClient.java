@@ -1,17 +1,15 @@
 package com.krux.stdlib.statsd;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.nio.charset.Charset;
-import java.util.Locale;
-import java.util.Random;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import org.slf4j.Logger;
 
@@ -24,23 +22,50 @@ import org.slf4j.Logger;
  * class, the <code>host</code> and <code>port</code> parameters determine where
  * to connect to the statsd server. Only the <code>host</code> parameter is
  * required. If the <code>port</code> parameter is less than zero, the default
- * port (8125) will be used.
+ * port (8125) will be used. Packets are written through a
+ * {@link StatsdTransport}; by default a {@link DatagramSocketTransport}.
+ * Other transports, such as a connected {@link DatagramChannelTransport} that
+ * notices when nothing is listening and backs off for a while instead of
+ * sending into the void, can be passed to the
+ * {@link #StatsdClient(StatsdTransport, Logger, int)} constructor.
  * <p/>
- * The <code>queueSize</code> parameter is greater than 0, this instance will
- * operate an asychronous blocking queue of the given size. Instead of sending
- * stats to the server in the calling thread, new stats are enqueued. A
- * background daemon thread watching the queue takes care of sending newly
- * queued stats to the server. In this mode of operation, the
- * {@link #shutdown()} method may be called to cause the background thread to
- * terminate. If the <code>queueSize</code> parameter is 0 or less, no queueing
- * is performed (and the shutdown() method does nothing).
+ * If the <code>queueSize</code> parameter is greater than 0, this instance will
+ * operate an asychronous, lock-free ring buffer ({@link StatsdRingBuffer}) of
+ * the given size. Instead of sending stats to the server in the calling thread,
+ * new stats are enqueued. A background daemon thread draining the ring takes
+ * care of encoding and sending them. Enqueueing never blocks: when the ring is
+ * full the stat is dropped and counted (see {@link #getDroppedCount()}). In this
+ * mode of operation, the {@link #shutdown()} method may be called to send what
+ * is still queued and stop the background thread. If the
+ * <code>queueSize</code> parameter is 0 or less, no queueing is performed.
+ * <p/>
+ * By default every stat is sent in its own UDP packet. Calling
+ * {@link #setBatching(int, long)} packs stats into newline separated
+ * multi-metric packets instead, which cuts the packet rate (and send syscalls)
+ * by however many stats fit in a packet.
+ * <p/>
+ * {@link #unique(String, long)} counts distinct ids per key client-side (see
+ * {@link #setUniques(long)}), sending one estimated-cardinality gauge per key
+ * and interval instead of the ids.
+ * <p/>
+ * Sampling decisions use a per-thread random source. Calling
+ * {@link #setAdaptiveSampling(long)} additionally caps how many stats a second
+ * any one counter or timer key sends, by lowering that key's sample rate when
+ * it runs hot (see {@link StatsdSampler}).
+ * <p/>
+ * The client counts what it sends, drops and fails to send in a
+ * {@link StatsdTelemetry} (see {@link #getTelemetry()}), and
+ * {@link #setTelemetry(long)} has it report those counts as
+ * <code>statsd_client.*</code> stats.
  * <p/>
  * The <code>logger</code> parameter can be used for reporting errors during
  * logging. This class has a set of protected <code>errorXxx(...)</code> methods
  * that are invoked in response to certain error conditions. The default
  * implementations of these method delegate to a single (also protected)
  * {@link #handleError(String, String, Exception)} method. By default this
- * method will log an error level message to the supplier <code>logger</code>.
+ * method logs to the supplied <code>logger</code> through a
+ * {@link StatsdErrorLog}, which logs the first error of a kind and then at
+ * most one summary line per 10 seconds.
  * This parameter may be null, in which case no error reporting will be done by
  * default. Users may subclass this class in order to customise error handling
  * for their own requirements.
@@ -50,9 +75,9 @@ import org.slf4j.Logger;
  * you wish to send. See the <code>count(...)</code>, <code>time(...)</code> and
  * <code>stat(...)</code> methods in their various forms.
  * <p/>
- * When sending a stat to the statsd server, the message is constructed as a
- * Java string and then converted to bytes, normally using the platform default
- * charset. This choice of charset can be overridden by specifying the charset
+ * When sending a stat to the statsd server, the message is encoded straight
+ * into a per-thread byte buffer by a {@link StatsdEncoder}, normally using the
+ * platform default charset. This choice of charset can be overridden by specifying the charset
  * name using the system property:
  * <code>org.ubercraft.statsd.StatsdClient.CHARSET</code>.
  */
@@ -60,15 +85,9 @@ public class StatsdClient {
 
     public static final int DEFAULT_PORT = 8125;
 
-    private static final String COUNTER_FORMAT = "%s:%d|c";
-    private static final String TIMER_FORMAT = "%s:%d|ms";
-    private static final String GAUGE_FORMAT = "%s:%d|g";
-
-    private static final String SAMPLE_RATE_FORMAT = "%s|@%f";
-
     private static final String CHARSET_SYS_PROP = "org.ubercraft.statsd.StatsdClient.CHARSET";
 
-    private static final Charset CHARSET;
+    static final Charset CHARSET;
 
     static {
         Charset charset = null;
@@ -86,28 +105,68 @@ public class StatsdClient {
         CHARSET = charset;
     }
 
-    private static final Random RANDOM = new Random();
-
     protected final InetAddress host;
     protected final int port;
 
     protected final DatagramSocket sock;
 
+    protected final StatsdTransport transport;
+
     protected final Logger logger;
 
     private final String hostPortString;
 
-    private final BlockingQueue<String> queue;
+    // upper bound on how long an idle sender sleeps; producers normally wake it sooner
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos( 100 );
+    private static final int DRAIN_BATCH = 1024;
+
+    private static final String SEND_FAILED = "Send failed";
+
+    private final StatsdRingBuffer queue;
+
+    // each sending thread reuses its own encoder buffer
+    private final ThreadLocal<StatsdEncoder> encoders = new ThreadLocal<StatsdEncoder>() {
+        @Override
+        protected StatsdEncoder initialValue() {
+            return new StatsdEncoder( CHARSET );
+        }
+    };
 
-    private SendThread thread;
+    private volatile SendThread thread;
     private long queueOfferTimeout = 0;
 
+    private volatile StatsdPacketBatcher batcher;
+    private volatile StatsdAggregator aggregator;
+    private volatile StatsdTimerHistograms timerHistograms;
+    private volatile StatsdSampler sampler;
+    private volatile StatsdUniques uniques;
+
+    private final StatsdTelemetry telemetry = new StatsdTelemetry( this );
+    private final StatsdErrorLog errorLog;
+    // subclasses handling errors themselves see every failed send as a String
+    private final boolean customErrorHandling = overridesErrorHandling( getClass() );
+    // subclasses that still override sendToServer(String) get each packet through it
+    private final boolean stringSend = overrides( getClass(), "sendToServer", String.class );
+    // the transport's skipped sends are only seen when sendToServer is not overridden
+    private final boolean customSend = stringSend
+            || overrides( getClass(), "sendToServer", byte[].class, int.class, int.class );
+    private volatile ScheduledFuture<?> telemetryReporter;
+    // last reported totals; only touched by the reporter
+    private long reportedSent;
+    private long reportedDropped;
+    private long reportedFailed;
+    private long reportedSkipped;
+    private long reportedBytes;
+    private long reportedPackets;
+
     public StatsdClient() {
         sock = null;
+        transport = null;
         queue = null;
         port = 0;
         logger = null;
         hostPortString = null;
+        errorLog = new StatsdErrorLog( null );
         host = null;
     }
 
@@ -151,19 +210,49 @@ public class StatsdClient {
         this.host = host;
         this.port = port;
 
-        this.sock = new DatagramSocket();
+        DatagramSocketTransport socketTransport = new DatagramSocketTransport( host, port );
+        this.transport = socketTransport;
+        this.sock = socketTransport.socket();
 
         this.logger = logger;
         this.hostPortString = host + ":" + port;
 
+        this.errorLog = new StatsdErrorLog( logger );
+        this.queue = startQueue( queueSize );
+    }
+
+    /**
+     * Sends through the given transport instead of the default connected UDP
+     * channel.
+     */
+    public StatsdClient( StatsdTransport transport, Logger logger, int queueSize ) {
+        if ( transport == null ) {
+            throw new IllegalArgumentException( "null transport" );
+        }
+        this.transport = transport;
+        this.host = null;
+        this.port = 0;
+        this.sock = transport instanceof DatagramSocketTransport ? ( (DatagramSocketTransport) transport ).socket()
+                : null;
+        this.logger = logger;
+        this.hostPortString = transport.toString();
+        this.errorLog = new StatsdErrorLog( logger );
+        this.queue = startQueue( queueSize );
+    }
+
+    private StatsdRingBuffer startQueue( int queueSize ) {
         if ( queueSize > 0 ) {
-            queue = new ArrayBlockingQueue<String>( queueSize );
-            thread = new SendThread();
+            StatsdRingBuffer ring = new StatsdRingBuffer( queueSize );
+            thread = new SendThread( ring );
             thread.start();
-        } else {
-            queue = null;
-            thread = null;
+            return ring;
         }
+        thread = null;
+        return null;
+    }
+
+    public StatsdTransport getTransport() {
+        return transport;
     }
 
     @Override
@@ -171,37 +260,376 @@ public class StatsdClient {
         return hostPortString;
     }
 
+    /**
+     * @deprecated the async queue never blocks producers; this value is kept
+     *             for compatibility and ignored
+     */
+    @Deprecated
     public long getQueueOfferTimeout() {
         return queueOfferTimeout;
     }
 
+    /**
+     * @deprecated the async queue never blocks producers; this value is kept
+     *             for compatibility and ignored
+     */
+    @Deprecated
     public void setQueueOfferTimeout( long queueOfferTimeout ) {
         this.queueOfferTimeout = queueOfferTimeout;
     }
 
+    /**
+     * @return the capacity of the async queue, or 0 if stats are sent on the
+     *         calling thread
+     */
+    public int getQueueCapacity() {
+        return queue == null ? 0 : queue.capacity();
+    }
+
+    /**
+     * @return the approximate number of stats waiting in the async queue
+     */
+    public int getQueueDepth() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * @return the number of stats dropped because the async queue was full
+     */
+    public long getDroppedCount() {
+        return queue == null ? 0 : queue.getDroppedCount();
+    }
+
+    /**
+     * Turns on multi-metric packets: stats are packed, newline separated, into
+     * packets of at most <code>maxPacketSize</code> payload bytes, which are
+     * sent when full or at the latest <code>maxLatencyMs</code> after being
+     * started. A <code>maxPacketSize</code> of 0 or less goes back to one
+     * packet per stat.
+     */
+    public synchronized void setBatching( int maxPacketSize, long maxLatencyMs ) {
+        StatsdPacketBatcher old = batcher;
+        if ( maxPacketSize > 0 ) {
+            batcher = new StatsdPacketBatcher( maxPacketSize, maxLatencyMs ) {
+                @Override
+                protected void sendPacket( byte[] data, int offset, int length ) {
+                    doSend( data, offset, length );
+                }
+            };
+        } else {
+            batcher = null;
+        }
+        if ( old != null ) {
+            old.shutdown();
+        }
+    }
+
+    /**
+     * Turns on client-side aggregation: counters are summed and gauges keep
+     * their last value, and each key is sent once every
+     * <code>flushIntervalMs</code> (see {@link StatsdAggregator}). Timers are
+     * unaffected. A <code>flushIntervalMs</code> of 0 or less turns
+     * aggregation off again.
+     */
+    public synchronized void setAggregation( long flushIntervalMs ) {
+        StatsdAggregator old = aggregator;
+        if ( flushIntervalMs > 0 ) {
+            aggregator = new StatsdAggregator( flushIntervalMs ) {
+                @Override
+                protected byte[] encodeKey( String key ) {
+                    return StatsdClient.this.encodeKey( key );
+                }
+
+                @Override
+                protected void emit( StatsdStatType type, String key, byte[] encodedKey, long value ) {
+                    send( type, key, encodedKey, value, 1.0D );
+                }
+            };
+        } else {
+            aggregator = null;
+        }
+        if ( old != null ) {
+            old.shutdown();
+        }
+    }
+
+    /**
+     * Turns on client-side timer summaries: instead of one timer line per
+     * sample, each timer key records into a fixed-size histogram and every
+     * <code>flushIntervalMs</code> its count, min, max, mean, p50, p90, p99
+     * and p999 are sent as gauges (see {@link StatsdTimerHistograms}). A
+     * <code>flushIntervalMs</code> of 0 or less turns this off again.
+     */
+    public synchronized void setTimerHistograms( long flushIntervalMs ) {
+        StatsdTimerHistograms old = timerHistograms;
+        if ( flushIntervalMs > 0 ) {
+            timerHistograms = new StatsdTimerHistograms( flushIntervalMs ) {
+                @Override
+                protected byte[][] encodeKeys( String key, String[] suffixes ) {
+                    return StatsdClient.this.encodeKeys( key, suffixes );
+                }
+
+                @Override
+                protected void emit( String key, byte[] encodedKey, long value ) {
+                    send( StatsdStatType.GAUGE, key, encodedKey, value, 1.0D );
+                }
+            };
+        } else {
+            timerHistograms = null;
+        }
+        if ( old != null ) {
+            old.shutdown();
+        }
+    }
+
+    /**
+     * Turns on unique counts: ids passed to <code>unique(...)</code> go into
+     * a {@link HyperLogLog} sketch per key, and every
+     * <code>flushIntervalMs</code> each key's estimated number of distinct ids
+     * is sent as a gauge (see {@link StatsdUniques}). A
+     * <code>flushIntervalMs</code> of 0 or less turns this off again, and
+     * <code>unique(...)</code> then returns false.
+     */
+    public synchronized void setUniques( long flushIntervalMs ) {
+        StatsdUniques old = uniques;
+        if ( flushIntervalMs > 0 ) {
+            uniques = new StatsdUniques( flushIntervalMs ) {
+                @Override
+                protected byte[] encodeKey( String key ) {
+                    return StatsdClient.this.encodeKey( key );
+                }
+
+                @Override
+                protected void emit( String key, byte[] encodedKey, long value ) {
+                    send( StatsdStatType.GAUGE, key, encodedKey, value, 1.0D );
+                }
+            };
+        } else {
+            uniques = null;
+        }
+        if ( old != null ) {
+            old.shutdown();
+        }
+    }
+
+    /**
+     * Turns on adaptive sampling: each counter and timer key that is sent
+     * more than <code>maxPerKeyPerSecond</code> times a second has its sample
+     * rate lowered until it is not (see {@link StatsdSampler}). The rate
+     * applied is sent along, so server-side totals stay unbiased. A
+     * <code>maxPerKeyPerSecond</code> of 0 or less turns this off again.
+     */
+    public synchronized void setAdaptiveSampling( long maxPerKeyPerSecond ) {
+        StatsdSampler old = sampler;
+        sampler = maxPerKeyPerSecond > 0 ? new StatsdSampler( maxPerKeyPerSecond ) : null;
+        if ( old != null ) {
+            old.shutdown();
+        }
+    }
+
+    /**
+     * @return the adaptive sampler, or null if adaptive sampling is off
+     */
+    public StatsdSampler getSampler() {
+        return sampler;
+    }
+
+    /**
+     * @return the client's counts of what it sent, dropped and failed to send
+     */
+    public StatsdTelemetry getTelemetry() {
+        return telemetry;
+    }
+
+    /**
+     * Sends the client's own telemetry every <code>reportIntervalMs</code>:
+     * <code>statsd_client.sent</code>, <code>.dropped</code>,
+     * <code>.failed</code>, <code>.skipped</code>, <code>.bytes</code> and
+     * <code>.packets</code> counters for the interval, and
+     * <code>statsd_client.queue_depth</code> and
+     * <code>statsd_client.send_latency_us.p50</code>, <code>.p99</code> and
+     * <code>.max</code> gauges. A <code>reportIntervalMs</code> of 0 or less
+     * stops reporting.
+     */
+    public synchronized void setTelemetry( long reportIntervalMs ) {
+        ScheduledFuture<?> old = telemetryReporter;
+        if ( reportIntervalMs > 0 ) {
+            telemetryReporter = StatsdBackground.atFixedRate( new Runnable() {
+                @Override
+                public void run() {
+                    reportTelemetry();
+                }
+            }, reportIntervalMs );
+        } else {
+            telemetryReporter = null;
+        }
+        if ( old != null ) {
+            old.cancel( false );
+        }
+    }
+
+    /**
+     * Sends the telemetry deltas since the last report, and logs error
+     * summaries that are due.
+     */
+    synchronized void reportTelemetry() {
+        long sent = telemetry.getSent();
+        long dropped = telemetry.getDropped();
+        long failed = telemetry.getFailed();
+        long skipped = telemetry.getSkipped();
+        long bytes = telemetry.getBytes();
+        long packets = telemetry.getPackets();
+        LogLinearHistogram.Snapshot latency = telemetry.rollLatency();
+
+        sendTelemetry( StatsdStatType.COUNTER, "statsd_client.sent", sent - reportedSent );
+        sendTelemetry( StatsdStatType.COUNTER, "statsd_client.dropped", dropped - reportedDropped );
+        sendTelemetry( StatsdStatType.COUNTER, "statsd_client.failed", failed - reportedFailed );
+        sendTelemetry( StatsdStatType.COUNTER, "statsd_client.skipped", skipped - reportedSkipped );
+        sendTelemetry( StatsdStatType.COUNTER, "statsd_client.bytes", bytes - reportedBytes );
+        sendTelemetry( StatsdStatType.COUNTER, "statsd_client.packets", packets - reportedPackets );
+        sendTelemetry( StatsdStatType.GAUGE, "statsd_client.queue_depth", telemetry.getQueueDepth() );
+        if ( latency.getCount() > 0 ) {
+            sendTelemetry( StatsdStatType.GAUGE, "statsd_client.send_latency_us.p50", telemetry.getSendLatencyP50Us() );
+            sendTelemetry( StatsdStatType.GAUGE, "statsd_client.send_latency_us.p99", telemetry.getSendLatencyP99Us() );
+            sendTelemetry( StatsdStatType.GAUGE, "statsd_client.send_latency_us.max", telemetry.getSendLatencyMaxUs() );
+        }
+        reportedSent = sent;
+        reportedDropped = dropped;
+        reportedFailed = failed;
+        reportedSkipped = skipped;
+        reportedBytes = bytes;
+        reportedPackets = packets;
+
+        errorLog.flush( false );
+    }
+
+    private void sendTelemetry( StatsdStatType type, String key, long value ) {
+        if ( type == StatsdStatType.COUNTER && value == 0 ) {
+            return;
+        }
+        // straight out, past aggregation and sampling
+        send( type, key, encodeKey( key ), value, 1.0D );
+    }
+
+    /**
+     * @return the max payload size of batched packets, or 0 if every stat is
+     *         sent in its own packet
+     */
+    public int getMaxPacketSize() {
+        StatsdPacketBatcher b = batcher;
+        return b == null ? 0 : b.getMaxPacketSize();
+    }
+
+    /**
+     * Sends any aggregated stats, and those still waiting in a partially
+     * filled packet.
+     */
+    public void flush() {
+        StatsdAggregator agg = aggregator;
+        if ( agg != null ) {
+            agg.flush();
+        }
+        StatsdTimerHistograms th = timerHistograms;
+        if ( th != null ) {
+            th.flush();
+        }
+        StatsdUniques u = uniques;
+        if ( u != null ) {
+            u.flush();
+        }
+        StatsdPacketBatcher b = batcher;
+        if ( b != null ) {
+            b.flush();
+        }
+        if ( transport instanceof BufferedTransport ) {
+            ( (BufferedTransport) transport ).flush();
+        }
+    }
+
     public void shutdown() {
-        if ( thread != null ) {
-            thread.interrupt();
+        ScheduledFuture<?> reporter = telemetryReporter;
+        if ( reporter != null ) {
+            reporter.cancel( false );
+        }
+        StatsdAggregator agg = aggregator;
+        if ( agg != null ) {
+            agg.shutdown();
+        }
+        StatsdTimerHistograms th = timerHistograms;
+        if ( th != null ) {
+            th.shutdown();
+        }
+        StatsdUniques u = uniques;
+        if ( u != null ) {
+            u.shutdown();
+        }
+        StatsdSampler s = sampler;
+        if ( s != null ) {
+            s.shutdown();
+        }
+        SendThread t = thread;
+        if ( t != null ) {
             thread = null;
+            LockSupport.unpark( t );
+            try {
+                // give it a moment to send what is still queued
+                t.join( 1000 );
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
         }
+        StatsdPacketBatcher b = batcher;
+        if ( b != null ) {
+            b.shutdown();
+        }
+        if ( transport != null ) {
+            transport.close();
+        }
+        errorLog.flush( true );
     }
 
-    private class SendThread extends Thread {
+    private class SendThread extends Thread implements StatsdRingBuffer.Handler {
+
+        private final StatsdEncoder encoder = new StatsdEncoder( CHARSET );
+        private final StatsdRingBuffer ring;
 
-        SendThread() {
+        // set while parked on an empty ring, so producers know to unpark us
+        volatile boolean idle;
+
+        SendThread( StatsdRingBuffer ring ) {
+            super( "statsd-sender" );
             setDaemon( true );
+            this.ring = ring;
         }
 
         @Override
         public void run() {
-            try {
-                while ( thread != null ) {
-                    doSend( queue.take() );
+            while ( thread == this ) {
+                if ( ring.drain( this, DRAIN_BATCH ) == 0 ) {
+                    idle = true;
+                    // re-check after publishing the flag so a racing offer is not missed
+                    if ( ring.drain( this, DRAIN_BATCH ) == 0 && thread == this ) {
+                        LockSupport.parkNanos( this, IDLE_PARK_NANOS );
+                    }
+                    idle = false;
                 }
-            } catch ( InterruptedException e ) {
-                // done;
+            }
+            // shutting down: send whatever made it into the queue
+            while ( ring.drain( this, DRAIN_BATCH ) > 0 ) {
+                // keep draining
             }
         }
+
+        @Override
+        public void onStat( StatsdStatType type, String key, byte[] encodedKey, long value, double sampleRate ) {
+            encoder.reset();
+            if ( encodedKey != null ) {
+                encoder.encode( type, encodedKey, value, sampleRate );
+            } else {
+                encoder.encode( type, key, value, sampleRate );
+            }
+            dispatch( encoder.buffer(), 0, encoder.position() );
+        }
     }
 
     public boolean count( String key ) {
@@ -228,77 +656,263 @@ public class StatsdClient {
         return stat( StatsdStatType.TIMER, key, millis, sampleRate );
     }
 
+    /**
+     * Records a timing with nanosecond precision. Timer histograms keep the
+     * full precision; plain statsd timers are sent in (truncated) millis.
+     */
+    public boolean timeNanos( String key, long nanos ) {
+        StatsdTimerHistograms th = timerHistograms;
+        if ( th != null && th.record( key, nanos ) ) {
+            return true;
+        }
+        return stat( StatsdStatType.TIMER, key, TimeUnit.NANOSECONDS.toMillis( nanos ), 1.0 );
+    }
+
     public boolean gauge( String key, long value ) {
         return stat( StatsdStatType.GAUGE, key, value, 1.0 );
     }
 
+    /**
+     * Counts <code>id</code> towards the number of distinct ids seen for
+     * <code>key</code> this interval.
+     * 
+     * @return false if unique counts are off (see {@link #setUniques(long)})
+     *         or too many keys are tracked
+     */
+    public boolean unique( String key, long id ) {
+        StatsdUniques u = uniques;
+        return u != null && u.add( key, id );
+    }
+
+    /**
+     * @see #unique(String, long)
+     */
+    public boolean unique( String key, String id ) {
+        StatsdUniques u = uniques;
+        return u != null && u.add( key, id );
+    }
+
     public boolean stat( StatsdStatType type, String key, long value, double sampleRate ) {
-        String format;
-        switch ( type ) {
-            case COUNTER:
-                format = COUNTER_FORMAT;
-                break;
-            case TIMER:
-                format = TIMER_FORMAT;
-                break;
-            case GAUGE:
-                format = GAUGE_FORMAT;
-                break;
-            default:
-                throw new IllegalStateException();
-        }
-        String stat = String.format( format, key, value );
-        return send( stat, sampleRate );
-    }
-
-    private boolean send( String stat, double sampleRate ) {
-        if ( sampleRate < 1.0D ) {
-            if ( RANDOM.nextDouble() <= sampleRate ) {
-                stat = String.format( //
-                        Locale.US, // To use "." in "%f" disregarding the system
-                                   // locale
-                        SAMPLE_RATE_FORMAT, //
-                        stat, //
-                        sampleRate );
-                return send( stat );
-            } else {
-                return false;
+        if ( type == StatsdStatType.TIMER ) {
+            StatsdTimerHistograms th = timerHistograms;
+            if ( th != null && th.record( key, TimeUnit.MILLISECONDS.toNanos( value ) ) ) {
+                return true;
+            }
+        }
+        StatsdAggregator agg = aggregator;
+        if ( agg != null && agg.record( type, key, value ) ) {
+            return true;
+        }
+        if ( sampleRate < 1.0D && ThreadLocalRandom.current().nextDouble() > sampleRate ) {
+            return false;
+        }
+        StatsdSampler s = sampler;
+        if ( s != null && type != StatsdStatType.GAUGE ) {
+            double adaptiveRate = s.admit( key );
+            if ( adaptiveRate < 1.0D ) {
+                double rate = StatsdSampler.combine( sampleRate, adaptiveRate );
+                if ( rate <= 0 || ThreadLocalRandom.current().nextDouble() * sampleRate > rate ) {
+                    return false;
+                }
+                sampleRate = rate;
             }
-        } else {
-            return send( stat );
         }
+        return send( type, key, encodeKey( key ), value, sampleRate );
     }
 
-    private boolean send( String stat ) {
-        if ( queue != null ) {
-            try {
-                if ( queue.offer( stat, queueOfferTimeout, TimeUnit.MILLISECONDS ) ) {
-                    return true;
+    /**
+     * @return a reusable counter handle for <code>key</code>, see
+     *         {@link StatsdHandle}
+     */
+    public StatsdCounter counter( String key ) {
+        return counter( key, 1.0D );
+    }
+
+    public StatsdCounter counter( String key, double sampleRate ) {
+        return new StatsdCounter( this, key, sampleRate );
+    }
+
+    /**
+     * @return a reusable timer handle for <code>key</code>, see
+     *         {@link StatsdHandle}
+     */
+    public StatsdTimer timer( String key ) {
+        return timer( key, 1.0D );
+    }
+
+    public StatsdTimer timer( String key, double sampleRate ) {
+        return new StatsdTimer( this, key, sampleRate );
+    }
+
+    /**
+     * @return a reusable gauge handle for <code>key</code>, see
+     *         {@link StatsdHandle}
+     */
+    public StatsdGauge gauge( String key ) {
+        return new StatsdGauge( this, key );
+    }
+
+    StatsdAggregator aggregator() {
+        return aggregator;
+    }
+
+    StatsdTimerHistograms timerHistograms() {
+        return timerHistograms;
+    }
+
+    /**
+     * Sends a value for a handle, writing it between the handle's
+     * precomputed line prefix and suffix.
+     */
+    boolean send( StatsdHandle h, long value ) {
+        if ( h.sampleRate < 1.0D && ThreadLocalRandom.current().nextDouble() > h.sampleRate ) {
+            return false;
+        }
+        StatsdSampler s = sampler;
+        if ( s != null && h.type != StatsdStatType.GAUGE ) {
+            StatsdSampler.KeyRate k = h.keyRate( s );
+            if ( k != null ) {
+                k.events.increment();
+                double adaptiveRate = k.rate;
+                if ( adaptiveRate < 1.0D ) {
+                    // the precomputed suffix carries the wrong rate now
+                    double rate = StatsdSampler.combine( h.sampleRate, adaptiveRate );
+                    if ( rate <= 0 || ThreadLocalRandom.current().nextDouble() * h.sampleRate > rate ) {
+                        return false;
+                    }
+                    return send( h.type, h.key, h.encodedKey, value, rate );
                 }
-            } catch ( Exception e ) {
-                errorEnqueueFailed( stat, e );
-                return false;
             }
-            errorQueueFull( stat );
-            return false;
+        }
+        if ( queue != null ) {
+            return offer( h.type, h.key, h.encodedKey, value, h.sampleRate );
+        }
+        StatsdEncoder encoder = encoders.get();
+        if ( !encoder.isAsciiCompatible() ) {
+            return send( h.type, h.key, h.encodedKey, value, h.sampleRate );
+        }
+        encoder.reset();
+        encoder.writeBytes( h.linePrefix );
+        encoder.writeLong( value );
+        encoder.writeBytes( h.lineSuffix );
+        return dispatch( encoder.buffer(), 0, encoder.position() );
+    }
+
+    /**
+     * Turns a stat key into the bytes that go on the wire. Subclasses may
+     * override this to namespace and cache keys (see
+     * {@link NamespacedKeyCache}); the default returns null, meaning the key
+     * is encoded as is when the stat is written.
+     */
+    protected byte[] encodeKey( String key ) {
+        return null;
+    }
+
+    /**
+     * Turns the keys derived from the stat key <code>key</code> (timer
+     * summaries such as <code>key.p99</code>) into wire bytes. Subclasses
+     * limiting key cardinality check <code>key</code> itself here, once, so
+     * derived keys count, and overflow, with the key they come from. The
+     * default encodes each <code>key + suffix</code>.
+     */
+    protected byte[][] encodeKeys( String key, String[] suffixes ) {
+        byte[][] encoded = new byte[suffixes.length][];
+        for ( int i = 0; i < suffixes.length; i++ ) {
+            encoded[i] = encodeKey( key + suffixes[i] );
+        }
+        return encoded;
+    }
+
+    private boolean send( StatsdStatType type, String key, byte[] encodedKey, long value, double sampleRate ) {
+        if ( queue != null ) {
+            return offer( type, key, encodedKey, value, sampleRate );
+        }
+        StatsdEncoder encoder = encoders.get();
+        encoder.reset();
+        if ( encodedKey != null ) {
+            encoder.encode( type, encodedKey, value, sampleRate );
         } else {
-            return doSend( stat );
+            encoder.encode( type, key, value, sampleRate );
+        }
+        return dispatch( encoder.buffer(), 0, encoder.position() );
+    }
+
+    private boolean offer( StatsdStatType type, String key, byte[] encodedKey, long value, double sampleRate ) {
+        if ( queue.offer( type, encodedKey == null ? key : null, encodedKey, value, sampleRate ) ) {
+            SendThread t = thread;
+            if ( t != null && t.idle ) {
+                t.idle = false;
+                LockSupport.unpark( t );
+            }
+            return true;
+        }
+        errorQueueFull( key );
+        return false;
+    }
+
+    private boolean dispatch( byte[] data, int offset, int length ) {
+        telemetry.sent.increment();
+        StatsdPacketBatcher b = batcher;
+        if ( b != null ) {
+            b.append( data, offset, length );
+            return true;
         }
+        return doSend( data, offset, length );
     }
 
-    private boolean doSend( String stat ) {
+    private boolean doSend( byte[] data, int offset, int length ) {
+        if ( !transport.isAvailable() ) {
+            telemetry.skipped.increment();
+            return false;
+        }
+        long start = System.nanoTime();
         try {
-            sendToServer( stat );
+            if ( stringSend ) {
+                sendToServer( new String( data, offset, length, CHARSET ) );
+            } else if ( customSend ) {
+                sendToServer( data, offset, length );
+            } else if ( !transport.send( data, offset, length ) ) {
+                // e.g. no shard up for one of its stats, or both sides of a
+                // fallback skipping
+                telemetry.skipped.increment();
+                return false;
+            }
+            telemetry.recordPacket( length, System.nanoTime() - start );
             return true;
         } catch ( Exception e ) {
-            errorSendFailed( stat, e );
+            telemetry.failed.increment();
+            if ( customErrorHandling || errorLog.isDue( SEND_FAILED ) ) {
+                errorSendFailed( new String( data, offset, length, CHARSET ), e );
+            } else {
+                // only summarised later, so skip decoding the packet
+                errorLog.count( SEND_FAILED, toString(), e );
+            }
             return false;
         }
     }
 
+    /**
+     * Sends one packet (one or more newline separated stats). Only called if
+     * a subclass overrides it, in which case it is called instead of
+     * {@link #sendToServer(byte[], int, int)} for every packet.
+     *
+     * @deprecated decoding each packet into a String costs an allocation per
+     *             send; override {@link #sendToServer(byte[], int, int)}
+     *             instead.
+     */
+    @Deprecated
     protected void sendToServer( String stat ) throws IOException {
         byte[] data = stat.getBytes( CHARSET );
-        sock.send( new DatagramPacket( data, data.length, host, port ) );
+        sendToServer( data, 0, data.length );
+    }
+
+    /**
+     * Sends one encoded packet through the transport. Not called while the
+     * transport knows the server to be unreachable. When this is overridden,
+     * sends the transport itself skips cannot be told apart from sent ones.
+     */
+    protected void sendToServer( byte[] data, int offset, int length ) throws IOException {
+        transport.send( data, offset, length );
     }
 
     protected void errorQueueFull( String stat ) {
@@ -310,12 +924,31 @@ public class StatsdClient {
     }
 
     protected void errorSendFailed( String stat, Exception e ) {
-        handleError( "Send failed", stat, e );
+        handleError( SEND_FAILED, stat, e );
     }
 
-    protected void handleError( String message, String stat, Exception e ) {
-        if ( logger != null && logger.isErrorEnabled() ) {
-            logger.error( "{}: sending {} to {}", new Object[] { message, stat, toString(), e } );
+    private static boolean overridesErrorHandling( Class<?> c ) {
+        return overrides( c, "errorSendFailed", String.class, Exception.class )
+                || overrides( c, "handleError", String.class, String.class, Exception.class );
+    }
+
+    /**
+     * @return true if <code>c</code> or a superclass below StatsdClient
+     *         declares the given method
+     */
+    private static boolean overrides( Class<?> c, String name, Class<?>... parameterTypes ) {
+        for ( ; c != StatsdClient.class; c = c.getSuperclass() ) {
+            try {
+                c.getDeclaredMethod( name, parameterTypes );
+                return true;
+            } catch ( NoSuchMethodException e ) {
+                // keep looking
+            }
         }
+        return false;
+    }
+
+    protected void handleError( String message, String stat, Exception e ) {
+        errorLog.error( message, stat, toString(), e );
     }
 }
@@ -0,0 +1,51 @@
+package com.krux.stdlib.statsd;
+
+/**
+ * A pre-bound counter, obtained from {@link StatsdClient#counter(String)}.
+ * <p/>
+ * <pre>
+ * private static final StatsdCounter REQUESTS = KruxStdLib.STATSD.counter( "requests" );
+ * ...
+ * REQUESTS.increment();
+ * </pre>
+ */
+public class StatsdCounter extends StatsdHandle {
+
+    /**
+     * Shared handle of disabled clients.
+     */
+    public static final StatsdCounter NOOP = new StatsdCounter();
+
+    private volatile Binding<StatsdAggregator, StripedCounter> binding;
+
+    private StatsdCounter() {
+        super( StatsdStatType.COUNTER );
+    }
+
+    StatsdCounter( StatsdClient client, String key, double sampleRate ) {
+        super( client, StatsdStatType.COUNTER, key, sampleRate );
+    }
+
+    public boolean increment() {
+        return add( 1L );
+    }
+
+    public boolean add( long delta ) {
+        if ( client == null ) {
+            return false;
+        }
+        StatsdAggregator agg = client.aggregator();
+        if ( agg != null ) {
+            Binding<StatsdAggregator, StripedCounter> b = binding;
+            if ( b == null || b.owner != agg ) {
+                b = new Binding<StatsdAggregator, StripedCounter>( agg, agg.counter( key ) );
+                binding = b;
+            }
+            if ( b.target != null ) {
+                b.target.add( delta );
+                return true;
+            }
+        }
+        return client.send( this, delta );
+    }
+}
@@ -0,0 +1,282 @@
+package com.krux.stdlib.statsd;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Writes statsd lines (<code>key:value|type[|@rate]</code>) straight into a
+ * reusable byte buffer.
+ * <p/>
+ * The output is byte-for-byte what
+ * <code>String.format( "%s:%d|c", key, value ).getBytes( charset )</code>
+ * (plus <code>String.format( Locale.US, "%s|@%f", stat, rate )</code> for
+ * sampled stats) would produce, but without building any intermediate
+ * Strings or Formatters. Instances are not thread safe; each sending thread
+ * keeps its own.
+ * <p/>
+ * If the configured charset does not encode ASCII as single bytes (e.g.
+ * UTF-16), the encoder falls back to the String based formatting so the wire
+ * format is preserved.
+ */
+public class StatsdEncoder {
+
+    private static final int INITIAL_CAPACITY = 512;
+
+    private static final byte[] COUNTER_SUFFIX = { '|', 'c' };
+    private static final byte[] TIMER_SUFFIX = { '|', 'm', 's' };
+    private static final byte[] GAUGE_SUFFIX = { '|', 'g' };
+
+    private static final byte[] LONG_MIN_VALUE = { '-', '9', '2', '2', '3', '3', '7', '2', '0', '3', '6', '8', '5', '4',
+            '7', '7', '5', '8', '0', '8' };
+
+    private final Charset charset;
+    private final boolean asciiCompatible;
+
+    private byte[] buf;
+    private int position;
+
+    // sample rates are nearly always per-call-site constants, so remembering
+    // the last rendered one avoids formatting on every sampled stat
+    private double lastSampleRate = Double.NaN;
+    private byte[] lastSampleRateBytes;
+
+    public StatsdEncoder( Charset charset ) {
+        this( charset, INITIAL_CAPACITY );
+    }
+
+    public StatsdEncoder( Charset charset, int initialCapacity ) {
+        this.charset = charset;
+        this.asciiCompatible = isAsciiCompatible( charset );
+        this.buf = new byte[Math.max( initialCapacity, 16 )];
+    }
+
+    /**
+     * @return true if every ASCII character encodes to the identical single
+     *         byte in the given charset
+     */
+    static boolean isAsciiCompatible( Charset charset ) {
+        char[] ascii = new char[128];
+        for ( int i = 0; i < ascii.length; i++ ) {
+            ascii[i] = (char) i;
+        }
+        byte[] encoded = new String( ascii ).getBytes( charset );
+        if ( encoded.length != ascii.length ) {
+            return false;
+        }
+        for ( int i = 0; i < encoded.length; i++ ) {
+            if ( encoded[i] != i ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * @return false if the charset does not write ASCII as single bytes, in
+     *         which case only the <code>encode(...)</code> methods produce
+     *         correct output
+     */
+    public boolean isAsciiCompatible() {
+        return asciiCompatible;
+    }
+
+    /**
+     * @return the backing array; valid bytes are <code>[0, position())</code>.
+     *         The array may be replaced when the encoder grows, so callers
+     *         must re-read it after every append.
+     */
+    public byte[] buffer() {
+        return buf;
+    }
+
+    public int position() {
+        return position;
+    }
+
+    /**
+     * Discards everything written so far.
+     */
+    public void reset() {
+        position = 0;
+    }
+
+    /**
+     * Moves the write position back, e.g. to drop a partially written line.
+     */
+    public void truncate( int newPosition ) {
+        if ( newPosition < 0 || newPosition > position ) {
+            throw new IllegalArgumentException( "bad position " + newPosition );
+        }
+        position = newPosition;
+    }
+
+    /**
+     * Appends one complete stat line (without trailing newline).
+     */
+    public void encode( StatsdStatType type, String key, long value, double sampleRate ) {
+        if ( !asciiCompatible ) {
+            writeBytes( legacyFormat( type, key, value, sampleRate ).getBytes( charset ) );
+            return;
+        }
+        writeString( key );
+        finishLine( type, value, sampleRate );
+    }
+
+    /**
+     * Appends one complete stat line whose key has already been encoded in
+     * this encoder's charset.
+     */
+    public void encode( StatsdStatType type, byte[] key, long value, double sampleRate ) {
+        if ( !asciiCompatible ) {
+            writeBytes( legacyFormat( type, new String( key, charset ), value, sampleRate ).getBytes( charset ) );
+            return;
+        }
+        writeBytes( key );
+        finishLine( type, value, sampleRate );
+    }
+
+    private void finishLine( StatsdStatType type, long value, double sampleRate ) {
+        writeByte( (byte) ':' );
+        writeLong( value );
+        writeBytes( typeSuffix( type ) );
+        if ( sampleRate < 1.0D ) {
+            writeBytes( sampleRateBytes( sampleRate ) );
+        }
+    }
+
+    /**
+     * The statsd wire suffix ("|c", "|ms", "|g") for a type.
+     */
+    static byte[] typeSuffix( StatsdStatType type ) {
+        switch ( type ) {
+            case COUNTER:
+                return COUNTER_SUFFIX;
+            case TIMER:
+                return TIMER_SUFFIX;
+            case GAUGE:
+                return GAUGE_SUFFIX;
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    private byte[] sampleRateBytes( double sampleRate ) {
+        // compare bit patterns so NaN and -0.0 are handled like any other value
+        if ( lastSampleRateBytes == null
+                || Double.doubleToLongBits( sampleRate ) != Double.doubleToLongBits( lastSampleRate ) ) {
+            lastSampleRateBytes = formatSampleRate( sampleRate, charset );
+            lastSampleRate = sampleRate;
+        }
+        return lastSampleRateBytes;
+    }
+
+    /**
+     * Renders the "|@rate" suffix exactly as the original
+     * <code>String.format( Locale.US, "%s|@%f", ... )</code> did.
+     */
+    static byte[] formatSampleRate( double sampleRate, Charset charset ) {
+        return String.format( Locale.US, "|@%f", sampleRate ).getBytes( charset );
+    }
+
+    static String legacyFormat( StatsdStatType type, String key, long value, double sampleRate ) {
+        String stat;
+        switch ( type ) {
+            case COUNTER:
+                stat = String.format( "%s:%d|c", key, value );
+                break;
+            case TIMER:
+                stat = String.format( "%s:%d|ms", key, value );
+                break;
+            case GAUGE:
+                stat = String.format( "%s:%d|g", key, value );
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+        if ( sampleRate < 1.0D ) {
+            stat = String.format( Locale.US, "%s|@%f", stat, sampleRate );
+        }
+        return stat;
+    }
+
+    public void writeByte( byte b ) {
+        ensureCapacity( 1 );
+        buf[position++] = b;
+    }
+
+    public void writeBytes( byte[] bytes ) {
+        writeBytes( bytes, 0, bytes.length );
+    }
+
+    public void writeBytes( byte[] bytes, int offset, int length ) {
+        ensureCapacity( length );
+        System.arraycopy( bytes, offset, buf, position, length );
+        position += length;
+    }
+
+    private void writeString( String s ) {
+        int len = s.length();
+        ensureCapacity( len );
+        int pos = position;
+        for ( int i = 0; i < len; i++ ) {
+            char c = s.charAt( i );
+            if ( c >= 0x80 ) {
+                // rare: let the charset deal with anything beyond ASCII
+                position = pos;
+                writeBytes( s.substring( i ).getBytes( charset ) );
+                return;
+            }
+            buf[pos++] = (byte) c;
+        }
+        position = pos;
+    }
+
+    /**
+     * Writes a long in decimal ASCII.
+     */
+    public void writeLong( long value ) {
+        if ( value == Long.MIN_VALUE ) {
+            writeBytes( LONG_MIN_VALUE );
+            return;
+        }
+        ensureCapacity( 20 );
+        if ( value < 0 ) {
+            buf[position++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for ( long v = value; v >= 10; v /= 10 ) {
+            digits++;
+        }
+        int pos = position + digits;
+        position = pos;
+        do {
+            buf[--pos] = (byte) ( '0' + ( value % 10 ) );
+            value /= 10;
+        } while ( value != 0 );
+    }
+
+    private void ensureCapacity( int extra ) {
+        int required = position + extra;
+        if ( required > buf.length ) {
+            buf = Arrays.copyOf( buf, Math.max( required, buf.length * 2 ) );
+        }
+    }
+
+    /**
+     * Decodes the current contents; only meant for error reporting.
+     */
+    public String toString( int offset, int length ) {
+        return new String( buf, offset, length, charset );
+    }
+
+    @Override
+    public String toString() {
+        return toString( 0, position );
+    }
+}
@@ -0,0 +1,150 @@
+package com.krux.stdlib.statsd;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+/**
+ * Collapses repeated client errors into periodic summaries.
+ * <p/>
+ * The first error of a kind is logged right away. After that, errors of the
+ * same kind (same message) are only counted, and at most once per
+ * <code>windowMs</code> one line like
+ * <code>"Send failed 1234 times in the last 10s sending to host:8125 (last: key:1|c)"</code>
+ * is logged, with the most recent exception. That way a statsd relay going
+ * down costs a handful of log lines rather than one per stat.
+ */
+public class StatsdErrorLog {
+
+    public static final long DEFAULT_WINDOW_MS = 10000;
+
+    private final Logger logger;
+    private final long windowNanos;
+    private final ConcurrentMap<String, Window> windows = new ConcurrentHashMap<String, Window>();
+
+    public StatsdErrorLog( Logger logger ) {
+        this( logger, DEFAULT_WINDOW_MS );
+    }
+
+    public StatsdErrorLog( Logger logger, long windowMs ) {
+        this.logger = logger;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos( windowMs );
+    }
+
+    public void error( String message, String stat, String destination, Exception e ) {
+        if ( logger == null || !logger.isErrorEnabled() ) {
+            return;
+        }
+        Window w = window( message );
+        w.count.incrementAndGet();
+        w.lastStat = stat;
+        w.lastError = e;
+        w.destination = destination;
+        log( message, w, false );
+    }
+
+    /**
+     * Counts an error without its stat, for callers that only render the stat
+     * when {@link #isDue(String)}. The next summary then leaves out the last
+     * stat.
+     */
+    public void count( String message, String destination, Exception e ) {
+        if ( logger == null || !logger.isErrorEnabled() ) {
+            return;
+        }
+        Window w = window( message );
+        w.count.incrementAndGet();
+        w.lastStat = null;
+        w.lastError = e;
+        w.destination = destination;
+    }
+
+    /**
+     * @return true if an error of this kind would be logged right away, so
+     *         its stat is worth rendering
+     */
+    public boolean isDue( String message ) {
+        if ( logger == null || !logger.isErrorEnabled() ) {
+            return false;
+        }
+        Window w = windows.get( message );
+        return w == null || System.nanoTime() - w.start.get() >= windowNanos;
+    }
+
+    private Window window( String message ) {
+        Window w = windows.get( message );
+        if ( w == null ) {
+            w = new Window( System.nanoTime() - windowNanos );
+            Window raced = windows.putIfAbsent( message, w );
+            if ( raced != null ) {
+                w = raced;
+            }
+        }
+        return w;
+    }
+
+    /**
+     * Logs the summaries of windows that have passed, or of all pending
+     * errors if <code>force</code> is set.
+     */
+    public void flush( boolean force ) {
+        for ( Map.Entry<String, Window> entry : windows.entrySet() ) {
+            log( entry.getKey(), entry.getValue(), force );
+        }
+    }
+
+    /**
+     * @return the number of errors counted but not yet logged
+     */
+    public long getPendingCount() {
+        long n = 0;
+        for ( Window w : windows.values() ) {
+            n += w.count.get();
+        }
+        return n;
+    }
+
+    private void log( String message, Window w, boolean force ) {
+        long now = System.nanoTime();
+        long start = w.start.get();
+        if ( !force && now - start < windowNanos ) {
+            return;
+        }
+        if ( !w.start.compareAndSet( start, now ) ) {
+            // someone else is logging this window
+            return;
+        }
+        long n = w.count.getAndSet( 0 );
+        if ( n == 0 ) {
+            return;
+        }
+        String stat = w.lastStat;
+        if ( n == 1 && stat != null ) {
+            logger.error( "{}: sending {} to {}", new Object[] { message, stat, w.destination, w.lastError } );
+        } else if ( stat != null ) {
+            long seconds = Math.max( 1, TimeUnit.NANOSECONDS.toSeconds( now - start ) );
+            logger.error( "{} {} times in the last {}s sending to {} (last: {})", new Object[] { message, n, seconds,
+                    w.destination, stat, w.lastError } );
+        } else {
+            long seconds = Math.max( 1, TimeUnit.NANOSECONDS.toSeconds( now - start ) );
+            logger.error( "{} {} times in the last {}s sending to {}", new Object[] { message, n, seconds,
+                    w.destination, w.lastError } );
+        }
+    }
+
+    private static final class Window {
+        final AtomicLong start;
+        final AtomicLong count = new AtomicLong();
+        volatile String lastStat;
+        volatile Exception lastError;
+        volatile String destination;
+
+        Window( long start ) {
+            this.start = new AtomicLong( start );
+        }
+    }
+}
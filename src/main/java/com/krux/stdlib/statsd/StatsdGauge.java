@@ -0,0 +1,41 @@
+package com.krux.stdlib.statsd;
+
+/**
+ * A pre-bound gauge, obtained from {@link StatsdClient#gauge(String)}.
+ */
+public class StatsdGauge extends StatsdHandle {
+
+    /**
+     * Shared handle of disabled clients.
+     */
+    public static final StatsdGauge NOOP = new StatsdGauge();
+
+    private volatile Binding<StatsdAggregator, StatsdAggregator.GaugeKey> binding;
+
+    private StatsdGauge() {
+        super( StatsdStatType.GAUGE );
+    }
+
+    StatsdGauge( StatsdClient client, String key ) {
+        super( client, StatsdStatType.GAUGE, key, 1.0D );
+    }
+
+    public boolean set( long value ) {
+        if ( client == null ) {
+            return false;
+        }
+        StatsdAggregator agg = client.aggregator();
+        if ( agg != null ) {
+            Binding<StatsdAggregator, StatsdAggregator.GaugeKey> b = binding;
+            if ( b == null || b.owner != agg ) {
+                b = new Binding<StatsdAggregator, StatsdAggregator.GaugeKey>( agg, agg.gauge( key ) );
+                binding = b;
+            }
+            if ( b.target != null ) {
+                b.target.set( value );
+                return true;
+            }
+        }
+        return client.send( this, value );
+    }
+}
@@ -0,0 +1,112 @@
+package com.krux.stdlib.statsd;
+
+/**
+ * Base of the pre-bound metric handles ({@link StatsdCounter},
+ * {@link StatsdTimer}, {@link StatsdGauge}) handed out by
+ * {@link StatsdClient}.
+ * <p/>
+ * A handle resolves everything that does not depend on the value once, when
+ * it is created: the namespaced wire key, the type suffix and the sample rate
+ * suffix. Recording a value then only writes the number between precomputed
+ * bytes (or drops it straight into the aggregator / histogram it is bound
+ * to), with no key building, type switch or map lookup. Handles are thread
+ * safe and meant to be kept in fields.
+ */
+public abstract class StatsdHandle {
+
+    final StatsdClient client;
+    final StatsdStatType type;
+    final String key;
+    final byte[] encodedKey;
+    final double sampleRate;
+
+    // "<wire key>:" and "|<type>[|@<rate>]", written around the value
+    final byte[] linePrefix;
+    final byte[] lineSuffix;
+
+    private volatile Binding<StatsdSampler, StatsdSampler.KeyRate> samplerBinding;
+
+    /**
+     * No-op handle; every recording call returns false.
+     */
+    StatsdHandle( StatsdStatType type ) {
+        this.client = null;
+        this.type = type;
+        this.key = null;
+        this.encodedKey = null;
+        this.sampleRate = 1.0D;
+        this.linePrefix = null;
+        this.lineSuffix = null;
+    }
+
+    StatsdHandle( StatsdClient client, StatsdStatType type, String key, double sampleRate ) {
+        this.client = client;
+        this.type = type;
+        this.key = key;
+        this.encodedKey = client.encodeKey( key );
+        this.sampleRate = sampleRate;
+
+        byte[] wireKey = encodedKey != null ? encodedKey : key.getBytes( StatsdClient.CHARSET );
+        linePrefix = new byte[wireKey.length + 1];
+        System.arraycopy( wireKey, 0, linePrefix, 0, wireKey.length );
+        linePrefix[wireKey.length] = ':';
+
+        byte[] typeSuffix = StatsdEncoder.typeSuffix( type );
+        byte[] rateSuffix = sampleRate < 1.0D ? StatsdEncoder.formatSampleRate( sampleRate, StatsdClient.CHARSET )
+                : new byte[0];
+        lineSuffix = new byte[typeSuffix.length + rateSuffix.length];
+        System.arraycopy( typeSuffix, 0, lineSuffix, 0, typeSuffix.length );
+        System.arraycopy( rateSuffix, 0, lineSuffix, typeSuffix.length, rateSuffix.length );
+    }
+
+    /**
+     * @return this handle's key rate in the client's adaptive sampler, or
+     *         null if the sampler tracks no more keys
+     */
+    StatsdSampler.KeyRate keyRate( StatsdSampler sampler ) {
+        Binding<StatsdSampler, StatsdSampler.KeyRate> b = samplerBinding;
+        if ( b == null || b.owner != sampler || ( b.target != null && b.target.removed ) ) {
+            b = new Binding<StatsdSampler, StatsdSampler.KeyRate>( sampler, sampler.keyRate( key ) );
+            samplerBinding = b;
+        }
+        return b.target;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public StatsdStatType getType() {
+        return type;
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * @return true for the shared handles of a disabled client
+     */
+    public boolean isNoop() {
+        return client == null;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + ( client == null ? "noop" : key ) + "]";
+    }
+
+    /**
+     * Immutable pairing of an aggregating component with the per-key target a
+     * handle resolved from it, so both are read and replaced together.
+     */
+    static final class Binding<O, T> {
+        final O owner;
+        final T target;
+
+        Binding( O owner, T target ) {
+            this.owner = owner;
+            this.target = target;
+        }
+    }
+}
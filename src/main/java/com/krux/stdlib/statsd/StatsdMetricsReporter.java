@@ -0,0 +1,153 @@
+package com.krux.stdlib.statsd;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Counting;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+/**
+ * Reports a Codahale {@link MetricRegistry} through a {@link StatsdClient},
+ * so its keys get the client's namespace. Once per reporting period:
+ * <ul>
+ * <li>gauges with a numeric (or boolean) value become statsd gauges</li>
+ * <li>counters become gauges of their current count</li>
+ * <li>meters, histograms and timers send how much their count grew as
+ * <code>&lt;name&gt;.count</code> statsd counters, from which statsd derives
+ * the rate</li>
+ * <li>histograms and timers also send their reservoir snapshot as
+ * <code>.min</code>, <code>.max</code>, <code>.mean</code>,
+ * <code>.p50</code>, <code>.p75</code>, <code>.p95</code>, <code>.p99</code>
+ * and <code>.p999</code> gauges; timer values are in the duration unit
+ * (microseconds by default, statsd gauges being integers)</li>
+ * </ul>
+ * Characters statsd would choke on (':', '|', '@' and whitespace) in metric
+ * names are replaced with '_'.
+ * <p/>
+ * This is a {@link StatsdReporter}, scheduled like any other (see
+ * {@link com.krux.stdlib.KruxStdLib#registerReporter(String, StatsdReporter, long)}),
+ * rather than a Codahale <code>ScheduledReporter</code>, which would start
+ * an executor of its own.
+ */
+public class StatsdMetricsReporter implements StatsdReporter {
+
+    private final MetricRegistry registry;
+    private final StatsdClient client;
+    private final MetricFilter filter;
+    private final double durationFactor;
+    // last count seen per metered name, to send deltas; names no longer in
+    // the registry are dropped at the end of each report
+    private final Map<String, Long> lastCounts = new HashMap<String, Long>();
+    private final Set<String> counted = new HashSet<String>();
+
+    public StatsdMetricsReporter( MetricRegistry registry, StatsdClient client ) {
+        this( registry, client, MetricFilter.ALL, TimeUnit.MICROSECONDS );
+    }
+
+    public StatsdMetricsReporter( MetricRegistry registry, StatsdClient client, MetricFilter filter,
+            TimeUnit durationUnit ) {
+        this.registry = registry;
+        this.client = client;
+        this.filter = filter;
+        this.durationFactor = 1.0D / durationUnit.toNanos( 1 );
+    }
+
+    @Override
+    public synchronized void report() {
+        report( registry.getGauges( filter ), registry.getCounters( filter ), registry.getHistograms( filter ),
+                registry.getMeters( filter ), registry.getTimers( filter ) );
+    }
+
+    @SuppressWarnings( "rawtypes" )
+    synchronized void report( SortedMap<String, Gauge> gauges, SortedMap<String, Counter> counters,
+            SortedMap<String, Histogram> histograms, SortedMap<String, Meter> meters, SortedMap<String, Timer> timers ) {
+        for ( Map.Entry<String, Gauge> e : gauges.entrySet() ) {
+            reportGauge( statName( e.getKey() ), e.getValue().getValue() );
+        }
+        for ( Map.Entry<String, Counter> e : counters.entrySet() ) {
+            gauge( statName( e.getKey() ), e.getValue().getCount() );
+        }
+        for ( Map.Entry<String, Histogram> e : histograms.entrySet() ) {
+            String name = statName( e.getKey() );
+            reportCount( name, e.getValue() );
+            reportSnapshot( name, e.getValue().getSnapshot(), false );
+        }
+        for ( Map.Entry<String, Meter> e : meters.entrySet() ) {
+            reportCount( statName( e.getKey() ), e.getValue() );
+        }
+        for ( Map.Entry<String, Timer> e : timers.entrySet() ) {
+            String name = statName( e.getKey() );
+            reportCount( name, e.getValue() );
+            reportSnapshot( name, e.getValue().getSnapshot(), true );
+        }
+        if ( lastCounts.size() > counted.size() ) {
+            lastCounts.keySet().retainAll( counted );
+        }
+        counted.clear();
+    }
+
+    private void reportGauge( String name, Object value ) {
+        if ( value instanceof Number ) {
+            gauge( name, Math.round( ( (Number) value ).doubleValue() ) );
+        } else if ( value instanceof Boolean ) {
+            gauge( name, ( (Boolean) value ) ? 1 : 0 );
+        }
+    }
+
+    private void reportCount( String name, Counting counting ) {
+        long count = counting.getCount();
+        counted.add( name );
+        Long last = lastCounts.put( name, count );
+        long delta = last == null ? count : count - last;
+        if ( delta != 0 ) {
+            client.stat( StatsdStatType.COUNTER, name + ".count", delta, 1.0D );
+        }
+    }
+
+    private void reportSnapshot( String name, Snapshot s, boolean durations ) {
+        if ( s.size() == 0 ) {
+            return;
+        }
+        gauge( name + ".min", value( s.getMin(), durations ) );
+        gauge( name + ".max", value( s.getMax(), durations ) );
+        gauge( name + ".mean", value( s.getMean(), durations ) );
+        gauge( name + ".p50", value( s.getMedian(), durations ) );
+        gauge( name + ".p75", value( s.get75thPercentile(), durations ) );
+        gauge( name + ".p95", value( s.get95thPercentile(), durations ) );
+        gauge( name + ".p99", value( s.get99thPercentile(), durations ) );
+        gauge( name + ".p999", value( s.get999thPercentile(), durations ) );
+    }
+
+    private long value( double v, boolean duration ) {
+        return Math.round( duration ? v * durationFactor : v );
+    }
+
+    private void gauge( String name, long value ) {
+        client.stat( StatsdStatType.GAUGE, name, value, 1.0D );
+    }
+
+    static String statName( String metricName ) {
+        StringBuilder sb = null;
+        for ( int i = 0; i < metricName.length(); i++ ) {
+            char c = metricName.charAt( i );
+            if ( c == ':' || c == '|' || c == '@' || Character.isWhitespace( c ) ) {
+                if ( sb == null ) {
+                    sb = new StringBuilder( metricName );
+                }
+                sb.setCharAt( i, '_' );
+            }
+        }
+        return sb == null ? metricName : sb.toString();
+    }
+}
@@ -0,0 +1,92 @@
+package com.krux.stdlib.statsd;
+
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Packs encoded stats into newline separated multi-metric packets (which
+ * statsd has accepted since forever) of at most <code>maxPacketSize</code>
+ * payload bytes. A packet is handed to {@link #sendPacket(byte[], int, int)}
+ * as soon as the next stat would not fit, and the shared statsd background
+ * thread flushes whatever has been buffered every <code>maxLatencyMs</code>,
+ * so no stat waits longer than that.
+ * <p/>
+ * Typical payload sizes are 1432 bytes (1500 byte Ethernet MTU minus IP/UDP
+ * headers, with some headroom) or 8932 for jumbo frames. A single stat larger
+ * than the payload size is sent on its own.
+ */
+public abstract class StatsdPacketBatcher {
+
+    public static final int DEFAULT_MAX_PACKET_SIZE = 1432;
+    public static final long DEFAULT_MAX_LATENCY_MS = 100;
+
+    private static final byte NEWLINE = '\n';
+
+    private final byte[] packet;
+    private int position;
+
+    private final ScheduledFuture<?> flusher;
+
+    public StatsdPacketBatcher( int maxPacketSize, long maxLatencyMs ) {
+        if ( maxPacketSize < 1 ) {
+            throw new IllegalArgumentException( "maxPacketSize must be positive: " + maxPacketSize );
+        }
+        if ( maxLatencyMs < 1 ) {
+            throw new IllegalArgumentException( "maxLatencyMs must be positive: " + maxLatencyMs );
+        }
+        packet = new byte[maxPacketSize];
+        flusher = StatsdBackground.withFixedDelay( new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, maxLatencyMs );
+    }
+
+    /**
+     * Sends one complete packet. Called with the batcher's lock held, so
+     * implementations see packets one at a time and in order.
+     */
+    protected abstract void sendPacket( byte[] data, int offset, int length );
+
+    public int getMaxPacketSize() {
+        return packet.length;
+    }
+
+    /**
+     * Buffers one encoded stat, sending the current packet first if the stat
+     * does not fit in it.
+     */
+    public synchronized void append( byte[] stat, int offset, int length ) {
+        if ( position > 0 && position + 1 + length > packet.length ) {
+            flush();
+        }
+        if ( length > packet.length ) {
+            sendPacket( stat, offset, length );
+            return;
+        }
+        if ( position > 0 ) {
+            packet[position++] = NEWLINE;
+        }
+        System.arraycopy( stat, offset, packet, position, length );
+        position += length;
+    }
+
+    /**
+     * Sends whatever is buffered.
+     */
+    public synchronized void flush() {
+        if ( position > 0 ) {
+            int length = position;
+            position = 0;
+            sendPacket( packet, 0, length );
+        }
+    }
+
+    /**
+     * Flushes pending stats and stops the background flusher.
+     */
+    public void shutdown() {
+        flusher.cancel( false );
+        flush();
+    }
+}
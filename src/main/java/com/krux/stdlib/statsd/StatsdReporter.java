@@ -0,0 +1,16 @@
+package com.krux.stdlib.statsd;
+
+/**
+ * Something that periodically sends stats, run by a
+ * {@link StatsdReporterScheduler}. Register one from application code with
+ * {@link com.krux.stdlib.KruxStdLib#registerReporter(String, StatsdReporter, long)}.
+ * <p/>
+ * Reporters share one thread with each other and with the statsd client's
+ * batch flushes, so {@link #report()} should take no more than a few
+ * milliseconds and must not block indefinitely. Exceptions it
+ * throws are logged and counted; the reporter keeps being scheduled.
+ */
+public interface StatsdReporter {
+
+    void report() throws Exception;
+}
@@ -0,0 +1,213 @@
+package com.krux.stdlib.statsd;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+
+import com.krux.stdlib.KruxStdLib;
+
+/**
+ * Runs any number of {@link StatsdReporter}s, each at its own interval, on the
+ * same daemon thread as the statsd client's own periodic work (see
+ * {@link StatsdBackground}).
+ * <p/>
+ * Each reporter runs on a fixed rate grid that starts at a random phase
+ * within its first interval, plus a random delay of up to
+ * <code>jitterPercent</code> of the interval on every run, so reporters (and
+ * hosts) do not all sample and send in the same instant. A run that overruns
+ * into the following interval does not cause the missed runs to bunch up:
+ * they are skipped and counted. A reporter that throws is logged and counted,
+ * and keeps its schedule.
+ * <p/>
+ * For every reporter the scheduler sends <code>reporter.&lt;name&gt;.time</code>
+ * (how long each run took), <code>reporter.&lt;name&gt;.skipped</code> and
+ * <code>reporter.&lt;name&gt;.errors</code>; {@link #getReporters()} exposes
+ * the same for status pages.
+ */
+public class StatsdReporterScheduler {
+
+    public static final int DEFAULT_JITTER_PERCENT = 10;
+
+    private final List<Registration> registrations = new CopyOnWriteArrayList<Registration>();
+    // held while a reporter runs, so shutdown can wait for it
+    private final ReentrantLock running = new ReentrantLock();
+    private volatile boolean shutdown;
+    private final int jitterPercent;
+    private final Logger log;
+
+    public StatsdReporterScheduler( Logger log ) {
+        this( DEFAULT_JITTER_PERCENT, log );
+    }
+
+    public StatsdReporterScheduler( int jitterPercent, Logger log ) {
+        this.jitterPercent = jitterPercent;
+        this.log = log;
+    }
+
+    /**
+     * Starts running <code>reporter</code> every <code>intervalMs</code>.
+     * 
+     * @param name
+     *            names the reporter's own stats and status entry
+     * @throws IllegalStateException
+     *             if the scheduler was shut down
+     */
+    public Registration register( String name, StatsdReporter reporter, long intervalMs ) {
+        if ( intervalMs <= 0 ) {
+            throw new IllegalArgumentException( "intervalMs must be positive, was " + intervalMs );
+        }
+        if ( shutdown ) {
+            throw new IllegalStateException( "Reporter scheduler is shut down, cannot register " + name );
+        }
+        Registration r = new Registration( name, reporter, TimeUnit.MILLISECONDS.toNanos( intervalMs ) );
+        registrations.add( r );
+        r.schedule( System.nanoTime() + ThreadLocalRandom.current().nextLong( r.intervalNanos ) );
+        return r;
+    }
+
+    public List<Registration> getReporters() {
+        return registrations;
+    }
+
+    /**
+     * Cancels all reporters, waiting up to a second for a run in progress.
+     */
+    public void shutdown() {
+        shutdown = true;
+        for ( Registration r : registrations ) {
+            r.cancel();
+        }
+        try {
+            if ( running.tryLock( 1, TimeUnit.SECONDS ) ) {
+                running.unlock();
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A registered reporter, and how its runs went.
+     */
+    public class Registration implements Runnable {
+
+        private final String name;
+        private final StatsdReporter reporter;
+        private final long intervalNanos;
+        private final long jitterNanos;
+        private final String timeKey;
+        private final String skippedKey;
+        private final String errorsKey;
+
+        // only touched by the background thread; volatile for readers
+        private long deadline;
+        private volatile ScheduledFuture<?> future;
+        private volatile boolean cancelled;
+        private volatile long runs;
+        private volatile long skipped;
+        private volatile long errors;
+        private volatile long lastDurationNanos;
+        private volatile long maxDurationNanos;
+
+        Registration( String name, StatsdReporter reporter, long intervalNanos ) {
+            this.name = name;
+            this.reporter = reporter;
+            this.intervalNanos = intervalNanos;
+            this.jitterNanos = intervalNanos * jitterPercent / 100;
+            this.timeKey = "reporter." + name + ".time";
+            this.skippedKey = "reporter." + name + ".skipped";
+            this.errorsKey = "reporter." + name + ".errors";
+        }
+
+        private void schedule( long deadline ) {
+            this.deadline = deadline;
+            long jitter = jitterNanos > 0 ? ThreadLocalRandom.current().nextLong( jitterNanos ) : 0;
+            future = StatsdBackground.schedule( this, deadline + jitter - System.nanoTime() );
+        }
+
+        @Override
+        public void run() {
+            if ( cancelled ) {
+                return;
+            }
+            long start = System.nanoTime();
+            running.lock();
+            try {
+                reporter.report();
+            } catch ( Throwable t ) {
+                // an Error too (say a reporter's NoClassDefFoundError) must
+                // not end its schedule
+                errors++;
+                KruxStdLib.STATSD.count( errorsKey );
+                log.warn( "Reporter " + name + " failed", t );
+            } finally {
+                running.unlock();
+            }
+            long end = System.nanoTime();
+            long duration = end - start;
+            runs++;
+            lastDurationNanos = duration;
+            if ( duration > maxDurationNanos ) {
+                maxDurationNanos = duration;
+            }
+            KruxStdLib.STATSD.timeNanos( timeKey, duration );
+
+            long next = deadline + intervalNanos;
+            if ( end - next > 0 ) {
+                // overran the next slot(s): skip rather than run back to back
+                long missed = ( end - next ) / intervalNanos + 1;
+                next += missed * intervalNanos;
+                skipped += missed;
+                KruxStdLib.STATSD.count( skippedKey, (int) missed );
+            }
+            if ( !cancelled ) {
+                schedule( next );
+            }
+        }
+
+        /**
+         * Stops running the reporter; a run in progress completes.
+         */
+        public void cancel() {
+            cancelled = true;
+            ScheduledFuture<?> f = future;
+            if ( f != null ) {
+                f.cancel( false );
+            }
+            registrations.remove( this );
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getIntervalMs() {
+            return TimeUnit.NANOSECONDS.toMillis( intervalNanos );
+        }
+
+        public long getRuns() {
+            return runs;
+        }
+
+        public long getSkipped() {
+            return skipped;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getLastDurationUs() {
+            return TimeUnit.NANOSECONDS.toMicros( lastDurationNanos );
+        }
+
+        public long getMaxDurationUs() {
+            return TimeUnit.NANOSECONDS.toMicros( maxDurationNanos );
+        }
+    }
+}
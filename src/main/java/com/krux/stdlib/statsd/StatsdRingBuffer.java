@@ -0,0 +1,138 @@
+package com.krux.stdlib.statsd;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock-free, multi-producer / single-consumer ring of pending stats.
+ * <p/>
+ * Slots are preallocated columns (type, key, value, sample rate), so offering
+ * a stat never allocates. Each slot carries a sequence number (Dmitry Vyukov's
+ * bounded queue design): a producer claims a slot with one CAS on the tail,
+ * fills it and publishes it by advancing the slot's sequence; the consumer
+ * reads published slots in order and hands them back by advancing the
+ * sequence again. When the ring is full {@link #offer} fails immediately
+ * instead of blocking, and the stat is counted as dropped.
+ */
+public class StatsdRingBuffer {
+
+    /**
+     * Receives drained stats on the consumer thread. Exactly one of
+     * <code>key</code> / <code>encodedKey</code> is non-null.
+     */
+    public interface Handler {
+        void onStat( StatsdStatType type, String key, byte[] encodedKey, long value, double sampleRate );
+    }
+
+    private final int mask;
+    private final AtomicLongArray sequences;
+
+    private final StatsdStatType[] types;
+    private final String[] keys;
+    private final byte[][] encodedKeys;
+    private final long[] values;
+    private final double[] sampleRates;
+
+    private final AtomicLong tail = new AtomicLong();
+    // only written by the consumer; volatile so depth can be read anywhere
+    private volatile long head;
+
+    private final StripedCounter dropped = new StripedCounter();
+
+    public StatsdRingBuffer( int capacity ) {
+        if ( capacity < 1 ) {
+            throw new IllegalArgumentException( "capacity must be positive: " + capacity );
+        }
+        int n = 1;
+        while ( n < capacity ) {
+            n <<= 1;
+        }
+        mask = n - 1;
+        sequences = new AtomicLongArray( n );
+        for ( int i = 0; i < n; i++ ) {
+            sequences.set( i, i );
+        }
+        types = new StatsdStatType[n];
+        keys = new String[n];
+        encodedKeys = new byte[n][];
+        values = new long[n];
+        sampleRates = new double[n];
+    }
+
+    /**
+     * Enqueues a stat without ever blocking.
+     *
+     * @return false if the ring was full and the stat was dropped
+     */
+    public boolean offer( StatsdStatType type, String key, byte[] encodedKey, long value, double sampleRate ) {
+        long pos = tail.get();
+        for ( ;; ) {
+            int index = (int) pos & mask;
+            long dif = sequences.get( index ) - pos;
+            if ( dif == 0 ) {
+                if ( tail.compareAndSet( pos, pos + 1 ) ) {
+                    types[index] = type;
+                    keys[index] = key;
+                    encodedKeys[index] = encodedKey;
+                    values[index] = value;
+                    sampleRates[index] = sampleRate;
+                    sequences.lazySet( index, pos + 1 );
+                    return true;
+                }
+                pos = tail.get();
+            } else if ( dif < 0 ) {
+                dropped.increment();
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Hands up to <code>max</code> published stats to the handler. Must only
+     * be called from the single consumer thread.
+     *
+     * @return the number of stats drained
+     */
+    public int drain( Handler handler, int max ) {
+        long pos = head;
+        int drained = 0;
+        while ( drained < max ) {
+            int index = (int) pos & mask;
+            if ( sequences.get( index ) != pos + 1 ) {
+                break;
+            }
+            StatsdStatType type = types[index];
+            String key = keys[index];
+            byte[] encodedKey = encodedKeys[index];
+            long value = values[index];
+            double sampleRate = sampleRates[index];
+            // don't pin keys that may otherwise be collected
+            keys[index] = null;
+            encodedKeys[index] = null;
+            sequences.lazySet( index, pos + mask + 1 );
+            pos++;
+            head = pos;
+            drained++;
+            handler.onStat( type, key, encodedKey, value, sampleRate );
+        }
+        return drained;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return the approximate number of stats waiting to be drained
+     */
+    public int size() {
+        long size = tail.get() - head;
+        return (int) Math.max( 0, Math.min( size, capacity() ) );
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+}
@@ -0,0 +1,187 @@
+package com.krux.stdlib.statsd;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Adaptive per-key sampling of counters and timers.
+ * <p/>
+ * Every stat that gets past the caller's own sample rate is counted against
+ * its key. Once per <code>adjustIntervalMs</code> each key's rate is
+ * re-estimated and its adaptive sample rate set to the largest step of
+ * 1, 0.5, 0.25, 0.1, 0.05, ... 0.0001 that keeps it within
+ * <code>maxPerKeyPerSecond</code> stats a second. Rates drop as soon as a key
+ * spikes and recover as the smoothed rate comes down. The caller's own rate
+ * and the step are combined with {@link #combine(double, double)}, which
+ * keeps the result exact in the six decimals of <code>|@rate</code>, so the
+ * rate the server scales by is the rate that was actually sampled at, and
+ * totals stay unbiased.
+ * <p/>
+ * At most <code>maxKeys</code> keys are tracked; others are never throttled.
+ * Keys idle for a whole interval at full rate are forgotten.
+ */
+public class StatsdSampler {
+
+    public static final int DEFAULT_MAX_KEYS = 1000;
+    public static final long DEFAULT_ADJUST_INTERVAL_MS = 1000;
+
+    static final double[] RATE_STEPS = { 1.0D, 0.5D, 0.25D, 0.1D, 0.05D, 0.025D, 0.01D, 0.005D, 0.0025D, 0.001D,
+            0.0005D, 0.00025D, 0.0001D };
+
+    // |@rate is printed with six decimals
+    private static final double RATE_GRID = 1e6D;
+
+    private static final int STRIPES_PER_KEY = Math.min( Runtime.getRuntime().availableProcessors(), 8 );
+
+    private final double maxPerKeyPerSecond;
+    private final long adjustIntervalMs;
+    private final int maxKeys;
+    private final ConcurrentMap<String, KeyRate> keys = new ConcurrentHashMap<String, KeyRate>();
+
+    private final ScheduledFuture<?> adjuster;
+
+    public StatsdSampler( long maxPerKeyPerSecond ) {
+        this( maxPerKeyPerSecond, DEFAULT_ADJUST_INTERVAL_MS, DEFAULT_MAX_KEYS );
+    }
+
+    public StatsdSampler( long maxPerKeyPerSecond, long adjustIntervalMs, int maxKeys ) {
+        if ( maxPerKeyPerSecond < 1 ) {
+            throw new IllegalArgumentException( "maxPerKeyPerSecond must be positive: " + maxPerKeyPerSecond );
+        }
+        if ( adjustIntervalMs < 1 ) {
+            throw new IllegalArgumentException( "adjustIntervalMs must be positive: " + adjustIntervalMs );
+        }
+        this.maxPerKeyPerSecond = maxPerKeyPerSecond;
+        this.adjustIntervalMs = adjustIntervalMs;
+        this.maxKeys = maxKeys;
+        adjuster = StatsdBackground.atFixedRate( new Runnable() {
+            @Override
+            public void run() {
+                adjust();
+            }
+        }, adjustIntervalMs );
+    }
+
+    /**
+     * Counts one stat against its key.
+     * 
+     * @return the key's current adaptive sample rate, to be applied on top of
+     *         the caller's
+     */
+    public double admit( String key ) {
+        KeyRate k = keyRate( key );
+        if ( k == null ) {
+            return 1.0D;
+        }
+        k.events.increment();
+        return k.rate;
+    }
+
+    /**
+     * @return the rate tracker of a key, or null if no more keys can be
+     *         tracked
+     */
+    KeyRate keyRate( String key ) {
+        KeyRate k = keys.get( key );
+        if ( k == null ) {
+            if ( keys.size() >= maxKeys ) {
+                return null;
+            }
+            k = new KeyRate();
+            KeyRate raced = keys.putIfAbsent( key, k );
+            if ( raced != null ) {
+                k = raced;
+            }
+        }
+        return k;
+    }
+
+    /**
+     * Re-estimates every key's rate and picks its sample rate step.
+     */
+    public synchronized void adjust() {
+        double seconds = adjustIntervalMs / 1000.0D;
+        Iterator<KeyRate> it = keys.values().iterator();
+        while ( it.hasNext() ) {
+            KeyRate k = it.next();
+            long events = k.events.sumThenReset();
+            if ( events == 0 && k.rate == 1.0D ) {
+                k.removed = true;
+                it.remove();
+                continue;
+            }
+            double perSecond = events / seconds;
+            k.smoothed = k.smoothed == 0 ? perSecond : ( perSecond + k.smoothed ) / 2;
+            // events counted here are those that got past the caller's rate,
+            // i.e. what would be sent without adaptive sampling
+            k.rate = rateFor( Math.max( perSecond, k.smoothed ) );
+        }
+    }
+
+    /**
+     * Combines the caller's sample rate with an adaptive one, rounding down
+     * to the six decimals <code>|@rate</code> is sent with. A stat that got
+     * past the caller's rate should then be kept with probability
+     * <code>combined / sampleRate</code>.
+     * 
+     * @return the rate to sample at and send, or 0 if it is below 0.000001
+     *         and the stat should be dropped
+     */
+    public static double combine( double sampleRate, double adaptiveRate ) {
+        // the small bias absorbs products like 0.01 * 0.25 landing just under the grid
+        return Math.floor( sampleRate * adaptiveRate * RATE_GRID + 1e-6D ) / RATE_GRID;
+    }
+
+    double rateFor( double perSecond ) {
+        for ( double step : RATE_STEPS ) {
+            if ( perSecond * step <= maxPerKeyPerSecond ) {
+                return step;
+            }
+        }
+        return RATE_STEPS[RATE_STEPS.length - 1];
+    }
+
+    public void shutdown() {
+        adjuster.cancel( false );
+    }
+
+    /**
+     * @return the current adaptive sample rate of a key (1 if untracked)
+     */
+    public double getRate( String key ) {
+        KeyRate k = keys.get( key );
+        return k == null ? 1.0D : k.rate;
+    }
+
+    public int getTrackedKeyCount() {
+        return keys.size();
+    }
+
+    /**
+     * @return the number of keys currently sampled below 1
+     */
+    public int getThrottledKeyCount() {
+        int n = 0;
+        for ( KeyRate k : keys.values() ) {
+            if ( k.rate < 1.0D ) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    public long getMaxPerKeyPerSecond() {
+        return (long) maxPerKeyPerSecond;
+    }
+
+    static final class KeyRate {
+        final StripedCounter events = new StripedCounter( STRIPES_PER_KEY );
+        volatile double rate = 1.0D;
+        // only touched by the adjuster
+        double smoothed;
+        // set once the key is forgotten, so handles bound to it rebind
+        volatile boolean removed;
+    }
+}
@@ -0,0 +1,122 @@
+package com.krux.stdlib.statsd;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counters a {@link StatsdClient} keeps about itself: stats sent, dropped
+ * because the queue was full, packets that failed or were skipped (transport
+ * known unreachable), bytes and packets written, and how long writing a
+ * packet (or handing it to a {@link BufferedTransport}) takes.
+ * <p/>
+ * The getters return running totals (and the send latency of the last
+ * report interval), so an instance can be handed to
+ * {@link com.krux.server.http.StdHttpServerHandler#addAdditionalStatus(String, Object)}
+ * and is serialized live into <code>/__status</code>. The client also
+ * sends the per-interval deltas as <code>statsd_client.*</code> stats (see
+ * {@link StatsdClient#setTelemetry(long)}).
+ */
+public class StatsdTelemetry {
+
+    private final StatsdClient client;
+
+    final StripedCounter sent = new StripedCounter();
+    final StripedCounter failed = new StripedCounter();
+    final StripedCounter skipped = new StripedCounter();
+    final StripedCounter bytes = new StripedCounter();
+    final StripedCounter packets = new StripedCounter();
+    final LogLinearHistogram sendLatency = new LogLinearHistogram();
+
+    private final LogLinearHistogram.Snapshot latencySnapshot = new LogLinearHistogram.Snapshot();
+    private volatile long latencyP50Us;
+    private volatile long latencyP99Us;
+    private volatile long latencyMaxUs;
+
+    StatsdTelemetry( StatsdClient client ) {
+        this.client = client;
+    }
+
+    void recordPacket( int length, long nanos ) {
+        packets.increment();
+        bytes.add( length );
+        sendLatency.record( nanos );
+    }
+
+    /**
+     * Takes the send latency summary of the interval just ended.
+     */
+    synchronized LogLinearHistogram.Snapshot rollLatency() {
+        sendLatency.snapshotAndReset( latencySnapshot );
+        if ( latencySnapshot.getCount() > 0 ) {
+            latencyP50Us = TimeUnit.NANOSECONDS.toMicros( latencySnapshot.getValueAtQuantile( 0.5D ) );
+            latencyP99Us = TimeUnit.NANOSECONDS.toMicros( latencySnapshot.getValueAtQuantile( 0.99D ) );
+            latencyMaxUs = TimeUnit.NANOSECONDS.toMicros( latencySnapshot.getMax() );
+        } else {
+            latencyP50Us = latencyP99Us = latencyMaxUs = 0;
+        }
+        return latencySnapshot;
+    }
+
+    /**
+     * @return stats handed to the transport (or to a packet being batched)
+     */
+    public long getSent() {
+        return sent.sum();
+    }
+
+    /**
+     * @return stats dropped because the async queue was full
+     */
+    public long getDropped() {
+        return client.getDroppedCount();
+    }
+
+    /**
+     * @return packets whose send threw
+     */
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * @return packets not sent, or sent only in part, because the transport
+     *         knew the server to be unreachable
+     */
+    public long getSkipped() {
+        return skipped.sum();
+    }
+
+    /**
+     * @return bytes written; through a {@link BufferedTransport}, what it has
+     *         written out itself
+     */
+    public long getBytes() {
+        StatsdTransport t = client.getTransport();
+        return t instanceof BufferedTransport ? ( (BufferedTransport) t ).getBytes() : bytes.sum();
+    }
+
+    /**
+     * @return packets written; through a {@link BufferedTransport} (which
+     *         may split sends into stats and batch those differently), the
+     *         packets it has written out itself
+     */
+    public long getPackets() {
+        StatsdTransport t = client.getTransport();
+        return t instanceof BufferedTransport ? ( (BufferedTransport) t ).getPackets() : packets.sum();
+    }
+
+    public int getQueueDepth() {
+        return client.getQueueDepth();
+    }
+
+    public long getSendLatencyP50Us() {
+        return latencyP50Us;
+    }
+
+    public long getSendLatencyP99Us() {
+        return latencyP99Us;
+    }
+
+    public long getSendLatencyMaxUs() {
+        return latencyMaxUs;
+    }
+}
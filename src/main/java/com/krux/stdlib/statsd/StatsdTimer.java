@@ -0,0 +1,71 @@
+package com.krux.stdlib.statsd;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pre-bound timer, obtained from {@link StatsdClient#timer(String)}.
+ * <p/>
+ * <pre>
+ * long start = System.nanoTime();
+ * ...
+ * LATENCY.timeNanos( System.nanoTime() - start );
+ * </pre>
+ */
+public class StatsdTimer extends StatsdHandle {
+
+    /**
+     * Shared handle of disabled clients.
+     */
+    public static final StatsdTimer NOOP = new StatsdTimer();
+
+    private volatile Binding<StatsdTimerHistograms, LogLinearHistogram> binding;
+
+    private StatsdTimer() {
+        super( StatsdStatType.TIMER );
+    }
+
+    StatsdTimer( StatsdClient client, String key, double sampleRate ) {
+        super( client, StatsdStatType.TIMER, key, sampleRate );
+    }
+
+    public boolean time( long millis ) {
+        if ( client == null ) {
+            return false;
+        }
+        LogLinearHistogram h = histogram();
+        if ( h != null ) {
+            h.record( TimeUnit.MILLISECONDS.toNanos( millis ) );
+            return true;
+        }
+        return client.send( this, millis );
+    }
+
+    /**
+     * Records with full precision when timer histograms are on; plain statsd
+     * timers are sent in (truncated) millis.
+     */
+    public boolean timeNanos( long nanos ) {
+        if ( client == null ) {
+            return false;
+        }
+        LogLinearHistogram h = histogram();
+        if ( h != null ) {
+            h.record( nanos );
+            return true;
+        }
+        return client.send( this, TimeUnit.NANOSECONDS.toMillis( nanos ) );
+    }
+
+    private LogLinearHistogram histogram() {
+        StatsdTimerHistograms th = client.timerHistograms();
+        if ( th == null ) {
+            return null;
+        }
+        Binding<StatsdTimerHistograms, LogLinearHistogram> b = binding;
+        if ( b == null || b.owner != th ) {
+            b = new Binding<StatsdTimerHistograms, LogLinearHistogram>( th, th.histogram( key ) );
+            binding = b;
+        }
+        return b.target;
+    }
+}
@@ -0,0 +1,148 @@
+package com.krux.stdlib.statsd;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client-side timer summaries. Each timer key records into its own
+ * {@link LogLinearHistogram} (nanosecond resolution, ~10KB per key), and every
+ * <code>flushIntervalMs</code> each key that saw samples is sent as a handful
+ * of gauges instead of one timer line per sample:
+ * <code>key.count</code>, <code>key.min</code>, <code>key.max</code>,
+ * <code>key.mean</code>, <code>key.p50</code>, <code>key.p90</code>,
+ * <code>key.p99</code> and <code>key.p999</code>. All but the count are in
+ * microseconds.
+ * <p/>
+ * At most <code>maxKeys</code> timers are tracked; timings for further keys
+ * are not absorbed and go out as plain timers.
+ */
+public abstract class StatsdTimerHistograms {
+
+    public static final int DEFAULT_MAX_KEYS = 256;
+
+    static final String[] SUFFIXES = { ".count", ".min", ".max", ".mean", ".p50", ".p90", ".p99", ".p999" };
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private final int maxKeys;
+    private final ConcurrentMap<String, TimerKey> timers = new ConcurrentHashMap<String, TimerKey>();
+
+    // only touched by flush(), which is synchronized
+    private final LogLinearHistogram.Snapshot snapshot = new LogLinearHistogram.Snapshot();
+
+    private final ScheduledFuture<?> flusher;
+
+    public StatsdTimerHistograms( long flushIntervalMs ) {
+        this( flushIntervalMs, DEFAULT_MAX_KEYS );
+    }
+
+    public StatsdTimerHistograms( long flushIntervalMs, int maxKeys ) {
+        if ( flushIntervalMs < 1 ) {
+            throw new IllegalArgumentException( "flushIntervalMs must be positive: " + flushIntervalMs );
+        }
+        this.maxKeys = maxKeys;
+        flusher = StatsdBackground.atFixedRate( new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, flushIntervalMs );
+    }
+
+    /**
+     * @return the encoded wire keys for a timer key with each summary suffix;
+     *         a null key has the raw key encoded at send time
+     */
+    protected abstract byte[][] encodeKeys( String key, String[] suffixes );
+
+    /**
+     * Sends one summary gauge.
+     */
+    protected abstract void emit( String key, byte[] encodedKey, long value );
+
+    /**
+     * @return true if the timing was recorded, false if the caller should
+     *         send it as a plain timer (too many distinct keys)
+     */
+    public boolean record( String key, long nanos ) {
+        LogLinearHistogram h = histogram( key );
+        if ( h == null ) {
+            return false;
+        }
+        h.record( nanos );
+        return true;
+    }
+
+    /**
+     * @return the histogram of a timer key, or null if no more keys can be
+     *         tracked
+     */
+    LogLinearHistogram histogram( String key ) {
+        TimerKey t = timers.get( key );
+        if ( t == null ) {
+            if ( timers.size() >= maxKeys ) {
+                return null;
+            }
+            t = new TimerKey( key );
+            TimerKey raced = timers.putIfAbsent( key, t );
+            if ( raced != null ) {
+                t = raced;
+            }
+        }
+        return t.histogram;
+    }
+
+    /**
+     * Emits the summary gauges of every timer that recorded something since
+     * the last flush.
+     */
+    public synchronized void flush() {
+        for ( TimerKey t : timers.values() ) {
+            t.histogram.snapshotAndReset( snapshot );
+            if ( snapshot.getCount() == 0 ) {
+                continue;
+            }
+            emit( t, 0, snapshot.getCount() );
+            emit( t, 1, micros( snapshot.getMin() ) );
+            emit( t, 2, micros( snapshot.getMax() ) );
+            emit( t, 3, micros( snapshot.getMean() ) );
+            for ( int q = 0; q < QUANTILES.length; q++ ) {
+                emit( t, 4 + q, micros( snapshot.getValueAtQuantile( QUANTILES[q] ) ) );
+            }
+        }
+    }
+
+    private void emit( TimerKey t, int stat, long value ) {
+        emit( t.keys[stat], t.encodedKeys[stat], value );
+    }
+
+    private static long micros( long nanos ) {
+        return TimeUnit.NANOSECONDS.toMicros( nanos );
+    }
+
+    /**
+     * Stops the periodic flush and emits what has been recorded so far.
+     */
+    public void shutdown() {
+        flusher.cancel( false );
+        flush();
+    }
+
+    public int getKeyCount() {
+        return timers.size();
+    }
+
+    private final class TimerKey {
+        final LogLinearHistogram histogram = new LogLinearHistogram();
+        final String[] keys = new String[SUFFIXES.length];
+        final byte[][] encodedKeys;
+
+        TimerKey( String key ) {
+            for ( int i = 0; i < SUFFIXES.length; i++ ) {
+                keys[i] = key + SUFFIXES[i];
+            }
+            encodedKeys = encodeKeys( key, SUFFIXES );
+        }
+    }
+}
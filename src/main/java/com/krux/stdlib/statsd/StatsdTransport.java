@@ -0,0 +1,28 @@
+package com.krux.stdlib.statsd;
+
+import java.io.IOException;
+
+/**
+ * Delivers encoded stat packets to a statsd server. Implementations must be
+ * safe for use by several threads at once; those that buffer packets
+ * implement {@link BufferedTransport}.
+ */
+public interface StatsdTransport {
+
+    /**
+     * Sends one packet.
+     *
+     * @return false if the packet was skipped because the destination is
+     *         currently known to be unreachable
+     * @throws IOException
+     *             if sending failed
+     */
+    boolean send( byte[] data, int offset, int length ) throws IOException;
+
+    /**
+     * @return false while the destination is known to be unreachable
+     */
+    boolean isAvailable();
+
+    void close();
+}
@@ -0,0 +1,155 @@
+package com.krux.stdlib.statsd;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Client-side unique counts (what statsd sets are for, without sending every
+ * id to the server).
+ * <p/>
+ * Each key has a {@link HyperLogLog} sketch the ids are added to. Every
+ * <code>flushIntervalMs</code> each key is emitted once, as a gauge of the
+ * estimated number of distinct ids in the interval, and its sketch cleared.
+ * A key that saw no ids is emitted as 0 (so the gauge does not keep its last
+ * value) and forgotten until it sees ids again. At most <code>maxKeys</code>
+ * keys are tracked at once (about 4 KB each); ids for keys beyond that are
+ * not counted.
+ */
+public abstract class StatsdUniques {
+
+    public static final int DEFAULT_MAX_KEYS = 100;
+
+    private final int maxKeys;
+    private final ConcurrentMap<String, UniqueKey> uniques = new ConcurrentHashMap<String, UniqueKey>();
+
+    private final ScheduledFuture<?> flusher;
+
+    public StatsdUniques( long flushIntervalMs ) {
+        this( flushIntervalMs, DEFAULT_MAX_KEYS );
+    }
+
+    public StatsdUniques( long flushIntervalMs, int maxKeys ) {
+        if ( flushIntervalMs < 1 ) {
+            throw new IllegalArgumentException( "flushIntervalMs must be positive: " + flushIntervalMs );
+        }
+        this.maxKeys = maxKeys;
+        flusher = StatsdBackground.atFixedRate( new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, flushIntervalMs );
+    }
+
+    /**
+     * @return the encoded wire key for an app key, or null to have the raw key
+     *         encoded at send time
+     */
+    protected abstract byte[] encodeKey( String key );
+
+    /**
+     * Sends one estimate.
+     */
+    protected abstract void emit( String key, byte[] encodedKey, long value );
+
+    /**
+     * @return false if the key could not be tracked
+     */
+    public boolean add( String key, long id ) {
+        while ( true ) {
+            UniqueKey u = unique( key );
+            if ( u == null ) {
+                return false;
+            }
+            u.sketch.add( id );
+            u.dirty = true;
+            if ( !u.removed ) {
+                return true;
+            }
+            // the key was just forgotten; add to its replacement
+        }
+    }
+
+    /**
+     * @return false if the key could not be tracked
+     */
+    public boolean add( String key, String id ) {
+        while ( true ) {
+            UniqueKey u = unique( key );
+            if ( u == null ) {
+                return false;
+            }
+            u.sketch.add( id );
+            u.dirty = true;
+            if ( !u.removed ) {
+                return true;
+            }
+            // the key was just forgotten; add to its replacement
+        }
+    }
+
+    private UniqueKey unique( String key ) {
+        UniqueKey u = uniques.get( key );
+        if ( u == null ) {
+            if ( uniques.size() >= maxKeys ) {
+                return null;
+            }
+            u = new UniqueKey( key, encodeKey( key ) );
+            UniqueKey raced = uniques.putIfAbsent( key, u );
+            if ( raced != null ) {
+                u = raced;
+            }
+        }
+        return u;
+    }
+
+    /**
+     * Emits the estimate of every key, forgetting those that saw no ids since
+     * the last flush.
+     */
+    public synchronized void flush() {
+        for ( UniqueKey u : uniques.values() ) {
+            if ( u.dirty ) {
+                u.dirty = false;
+                emit( u.key, u.encodedKey, u.sketch.estimateAndReset() );
+                continue;
+            }
+            // flag first, then re-check: an add() racing with this either
+            // shows up as dirty here or sees the flag and retries
+            u.removed = true;
+            if ( u.dirty ) {
+                u.removed = false;
+                continue;
+            }
+            uniques.remove( u.key, u );
+            emit( u.key, u.encodedKey, 0 );
+        }
+    }
+
+    /**
+     * Stops the periodic flush and emits the current estimates.
+     */
+    public void shutdown() {
+        flusher.cancel( false );
+        flush();
+    }
+
+    public int getKeyCount() {
+        return uniques.size();
+    }
+
+    private static final class UniqueKey {
+        final String key;
+        final byte[] encodedKey;
+        final HyperLogLog sketch = new HyperLogLog();
+        volatile boolean dirty;
+        // set once the key is forgotten, so adds move to a new entry
+        volatile boolean removed;
+
+        UniqueKey( String key, byte[] encodedKey ) {
+            this.key = key;
+            this.encodedKey = encodedKey;
+        }
+    }
+}
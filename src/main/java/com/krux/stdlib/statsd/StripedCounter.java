@@ -0,0 +1,67 @@
+package com.krux.stdlib.statsd;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A long counter spread over several cache-line separated cells so that many
+ * threads can bump it without contending on a single CAS target. Reads sum
+ * the cells and are therefore only weakly consistent with concurrent writes.
+ */
+public class StripedCounter {
+
+    // 8 longs == 64 bytes, keeps neighbouring cells off the same cache line
+    private static final int STRIDE = 8;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    public StripedCounter() {
+        this( Runtime.getRuntime().availableProcessors() * 2 );
+    }
+
+    public StripedCounter( int stripes ) {
+        int n = 1;
+        while ( n < stripes ) {
+            n <<= 1;
+        }
+        mask = n - 1;
+        cells = new AtomicLongArray( n * STRIDE );
+    }
+
+    public void increment() {
+        add( 1L );
+    }
+
+    public void add( long x ) {
+        cells.addAndGet( cellIndex(), x );
+    }
+
+    public long sum() {
+        long sum = 0;
+        for ( int i = 0; i < cells.length(); i += STRIDE ) {
+            sum += cells.get( i );
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the current total and zeroes every cell. Increments racing with
+     * the reset land either in this sum or the next one, never neither.
+     */
+    public long sumThenReset() {
+        long sum = 0;
+        for ( int i = 0; i < cells.length(); i += STRIDE ) {
+            sum += cells.getAndSet( i, 0L );
+        }
+        return sum;
+    }
+
+    private int cellIndex() {
+        return ( (int) Thread.currentThread().getId() & mask ) * STRIDE;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString( sum() );
+    }
+}
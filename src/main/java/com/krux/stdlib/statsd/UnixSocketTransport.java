@@ -0,0 +1,172 @@
+package com.krux.stdlib.statsd;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.unix.DomainSocketAddress;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends packets to a co-located statsd agent over a Unix domain stream socket,
+ * skipping the UDP/IP stack (and the loopback drops it causes under bursty
+ * load). Each packet is written as one frame prefixed with its length as a
+ * 4-byte little-endian integer, which is what dogstatsd expects on a stream
+ * socket; a batched packet keeps its newline-separated stats inside one frame.
+ * <p/>
+ * Needs Netty's native epoll transport, which the Netty 4.0 line this library
+ * builds on only loads on Linux with Java 8: it relies on JDK internals that
+ * Java 9 and later close off, so there {@link #isSupported()} is false (see
+ * {@link #unavailabilityCause()}). Check it first. The socket is written from a single Netty event loop thread; if the
+ * agent falls behind and the outbound buffer passes
+ * <code>maxPendingBytes</code>, sends return false rather than queueing
+ * without bound. If the connection is lost, sends return false and a
+ * reconnect is attempted at most once per <code>backoffMs</code>. Wrap in a
+ * {@link FallbackTransport} to send over UDP meanwhile.
+ */
+public class UnixSocketTransport implements StatsdTransport {
+
+    public static final long DEFAULT_BACKOFF_MS = 1000;
+    public static final int DEFAULT_MAX_PENDING_BYTES = 1024 * 1024;
+
+    private static final long CONNECT_TIMEOUT_MS = 1000;
+
+    private final String path;
+    private final EventLoopGroup group;
+    private final Bootstrap bootstrap;
+    private final long backoffNanos;
+
+    private volatile Channel channel;
+    private volatile long nextConnectAttempt;
+    private volatile boolean closed;
+
+    /**
+     * @return true if Netty's native epoll transport, and so Unix domain
+     *         sockets, can be used on this platform
+     */
+    public static boolean isSupported() {
+        return Epoll.isAvailable();
+    }
+
+    /**
+     * @return why {@link #isSupported()} is false, or null if it is true
+     */
+    public static Throwable unavailabilityCause() {
+        return Epoll.unavailabilityCause();
+    }
+
+    public UnixSocketTransport( String path ) throws IOException {
+        this( path, DEFAULT_BACKOFF_MS, DEFAULT_MAX_PENDING_BYTES );
+    }
+
+    /**
+     * Connects to the socket at <code>path</code>, failing if that is not
+     * possible right now.
+     */
+    public UnixSocketTransport( String path, long backoffMs, int maxPendingBytes ) throws IOException {
+        if ( !isSupported() ) {
+            throw new IOException( "Unix domain sockets are not supported here", Epoll.unavailabilityCause() );
+        }
+        this.path = path;
+        this.backoffNanos = TimeUnit.MILLISECONDS.toNanos( backoffMs );
+        this.group = new EpollEventLoopGroup( 1, new DaemonThreadFactory( "statsd-unix-socket" ) );
+        this.bootstrap = new Bootstrap().group( group ).channel( EpollDomainSocketChannel.class )
+                .option( ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, maxPendingBytes )
+                .option( ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, maxPendingBytes / 2 )
+                .handler( new ChannelInboundHandlerAdapter() {
+                    @Override
+                    public void exceptionCaught( ChannelHandlerContext ctx, Throwable cause ) {
+                        // the agent went away; reconnect on a later send
+                        ctx.close();
+                    }
+                } );
+
+        ChannelFuture f = bootstrap.connect( new DomainSocketAddress( path ) );
+        if ( !f.awaitUninterruptibly( CONNECT_TIMEOUT_MS ) || !f.isSuccess() ) {
+            f.cancel( false );
+            group.shutdownGracefully( 0, 0, TimeUnit.MILLISECONDS );
+            throw new IOException( "Cannot connect to " + path, f.cause() );
+        }
+        channel = f.channel();
+    }
+
+    @Override
+    public boolean send( byte[] data, int offset, int length ) throws IOException {
+        Channel ch = channel;
+        if ( ch == null || !ch.isActive() ) {
+            reconnect();
+            return false;
+        }
+        if ( !ch.isWritable() ) {
+            return false;
+        }
+        ch.writeAndFlush( frame( ch.alloc(), data, offset, length ), ch.voidPromise() );
+        return true;
+    }
+
+    /**
+     * @return a buffer holding <code>length</code> bytes of <code>data</code>
+     *         behind their 4-byte little-endian length
+     */
+    static ByteBuf frame( ByteBufAllocator alloc, byte[] data, int offset, int length ) {
+        ByteBuf buf = alloc.directBuffer( length + 4 );
+        return buf.writeInt( Integer.reverseBytes( length ) ).writeBytes( data, offset, length );
+    }
+
+    private void reconnect() {
+        long now = System.nanoTime();
+        if ( closed || now - nextConnectAttempt < 0 ) {
+            return;
+        }
+        synchronized ( this ) {
+            if ( now - nextConnectAttempt < 0 ) {
+                return;
+            }
+            nextConnectAttempt = now + backoffNanos;
+        }
+        bootstrap.connect( new DomainSocketAddress( path ) ).addListener( new ChannelFutureListener() {
+            @Override
+            public void operationComplete( ChannelFuture future ) {
+                if ( future.isSuccess() ) {
+                    channel = future.channel();
+                    if ( closed ) {
+                        future.channel().close();
+                    }
+                }
+            }
+        } );
+    }
+
+    @Override
+    public boolean isAvailable() {
+        Channel ch = channel;
+        return ch != null && ch.isActive();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Channel ch = channel;
+        if ( ch != null ) {
+            // let pending writes go out before the loop stops
+            ch.close().awaitUninterruptibly( CONNECT_TIMEOUT_MS );
+        }
+        group.shutdownGracefully( 0, CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS );
+    }
+
+    @Override
+    public String toString() {
+        return "unix:" + path;
+    }
+}
@@ -0,0 +1,33 @@
+package com.krux.server.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.CharsetUtil;
+
+import org.junit.Test;
+
+public class ChunkedTextWriterTest {
+
+    @Test
+    public void writesChunksThenTheRestAsTheLastChunk() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        ChunkedTextWriter writer = new ChunkedTextWriter( channel, 8 );
+        writer.append( "abc" ).append( ';' ).append( "defgh\n" ).append( "xyz", 1, 3 );
+        writer.finish();
+
+        HttpContent first = (HttpContent) channel.readOutbound();
+        assertFalse( first instanceof LastHttpContent );
+        assertEquals( "abc;defgh\n", first.content().toString( CharsetUtil.UTF_8 ) );
+        first.release();
+        HttpContent last = (HttpContent) channel.readOutbound();
+        assertTrue( last instanceof LastHttpContent );
+        assertEquals( "yz", last.content().toString( CharsetUtil.UTF_8 ) );
+        last.release();
+        assertNull( channel.readOutbound() );
+    }
+}
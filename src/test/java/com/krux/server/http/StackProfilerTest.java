@@ -0,0 +1,80 @@
+package com.krux.server.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class StackProfilerTest {
+
+    private static StackTraceElement frame( String method ) {
+        return frame( method, 1 );
+    }
+
+    private static StackTraceElement frame( String method, int line ) {
+        return new StackTraceElement( "com.example.App", method, "App.java", line );
+    }
+
+    @Test
+    public void collapsesStacksRootFirst() {
+        StackProfiler profiler = new StackProfiler( 0, 1 );
+        StackTraceElement[] work = { frame( "work" ), frame( "run" ), frame( "main" ) };
+        profiler.add( "pool-1-thread-1", work );
+        profiler.add( "pool-1-thread-2", work );
+        profiler.add( "pool-1-thread-2", new StackTraceElement[] { frame( "run" ), frame( "main" ) } );
+        assertEquals( "[pool-*-thread-*];com.example.App.main;com.example.App.run 1\n"
+                + "[pool-*-thread-*];com.example.App.main;com.example.App.run;com.example.App.work 2\n",
+                profiler.collapsed() );
+    }
+
+    @Test
+    public void mergesLinesOfAMethod() {
+        StackProfiler profiler = new StackProfiler( 0, 1 );
+        profiler.add( "main", new StackTraceElement[] { frame( "work", 10 ), frame( "main", 3 ) } );
+        profiler.add( "main", new StackTraceElement[] { frame( "work", 12 ), frame( "main", 4 ) } );
+        assertEquals( "[main];com.example.App.main;com.example.App.work 2\n", profiler.collapsed() );
+        assertEquals( 3, profiler.getFrameCount() );
+    }
+
+    @Test
+    public void keepsTheTrieBounded() {
+        // room for the root, the thread group and one frame
+        StackProfiler profiler = new StackProfiler( 0, 1, 3 );
+        profiler.add( "main", new StackTraceElement[] { frame( "a" ), frame( "main" ) } );
+        profiler.add( "main", new StackTraceElement[] { frame( "b" ), frame( "main" ) } );
+        assertEquals( "[main];com.example.App.main 2\n", profiler.collapsed() );
+        assertEquals( 2, profiler.getTruncatedSamples() );
+        for ( int i = 0; i < 100; i++ ) {
+            profiler.add( "main", new StackTraceElement[] { frame( "m" + i ), frame( "main" ) } );
+        }
+        assertEquals( 3, profiler.getFrameCount() );
+    }
+
+    @Test
+    public void samplesRunnableThreadsOnItsOwnThread() throws Exception {
+        final CountDownLatch done = new CountDownLatch( 1 );
+        final StackProfiler profiler = new StackProfiler( 200, 100 );
+        Thread busy = new Thread( new Runnable() {
+            @Override
+            public void run() {
+                while ( done.getCount() > 0 ) {
+                    Math.sqrt( System.nanoTime() );
+                }
+            }
+        }, "busy-spinner" );
+        busy.start();
+        profiler.start( new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        } );
+        assertTrue( done.await( 5, TimeUnit.SECONDS ) );
+        busy.join();
+        assertTrue( profiler.getSamples() > 5 );
+        assertTrue( profiler.collapsed(), profiler.collapsed().contains( "[busy-spinner];" ) );
+    }
+}
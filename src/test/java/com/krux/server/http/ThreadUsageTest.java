@@ -0,0 +1,55 @@
+package com.krux.server.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ThreadUsageTest {
+
+    @Test
+    public void groupsNumberedThreadNames() {
+        assertEquals( "nioEventLoopGroup-*", ThreadUsage.group( "nioEventLoopGroup-2-1" ) );
+        assertEquals( "pool-*-thread-*", ThreadUsage.group( "pool-3-thread-12" ) );
+        assertEquals( "statsd-background", ThreadUsage.group( "statsd-background" ) );
+    }
+
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void findsTheBusiestThreads() throws Exception {
+        final Object[] sink = new Object[1];
+        Thread busy = new Thread( new Runnable() {
+            @Override
+            public void run() {
+                long end = System.nanoTime() + 200000000L;
+                while ( System.nanoTime() < end ) {
+                    // escapes, so it is really allocated
+                    sink[0] = new byte[1024];
+                }
+            }
+        }, "busy-worker-1" );
+        ThreadUsage.Sample before = ThreadUsage.sample();
+        busy.start();
+        Thread.sleep( 150 );
+        Map<String, Object> report = ThreadUsage.report( before, ThreadUsage.sample(), 3 );
+        busy.join();
+
+        List<Map<String, Object>> byCpu = (List<Map<String, Object>>) report.get( "threads_by_cpu" );
+        assertEquals( 3, byCpu.size() );
+        assertEquals( "busy-worker-1", byCpu.get( 0 ).get( "name" ) );
+        assertTrue( (Double) byCpu.get( 0 ).get( "cpu_pct" ) > 10 );
+        List<Map<String, Object>> groups = (List<Map<String, Object>>) report.get( "groups_by_allocation" );
+        assertEquals( "busy-worker-*", groups.get( 0 ).get( "name" ) );
+    }
+
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void reportsAtLeastOneThread() {
+        ThreadUsage.Sample before = ThreadUsage.sample();
+        Map<String, Object> report = ThreadUsage.report( before, ThreadUsage.sample(), -5 );
+        assertEquals( 1, ( (List<Map<String, Object>>) report.get( "threads_by_cpu" ) ).size() );
+    }
+}
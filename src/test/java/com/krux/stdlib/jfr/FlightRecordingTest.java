@@ -0,0 +1,47 @@
+package com.krux.stdlib.jfr;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.krux.stdlib.statsd.RecordingStatsdClient;
+import com.krux.stdlib.statsd.StatsdStatType;
+
+public class FlightRecordingTest {
+
+    @Rule
+    public final RecordingStatsdClient stats = new RecordingStatsdClient();
+
+    @Before
+    public void setUp() {
+        assumeTrue( FlightRecordingSupport.isSupported() );
+    }
+
+    @Test
+    public void forwardsGcPausesAndSafepointsAndDumpsTheRecording() throws Exception {
+        FlightRecording recording = new FlightRecording( 1 );
+        File file = File.createTempFile( "recording", ".jfr" );
+        try {
+            long deadline = System.currentTimeMillis() + 10000;
+            while ( !stats.keys( StatsdStatType.TIMER ).containsAll( Arrays.asList( "jfr.gc_pause", "jfr.safepoint_us" ) )
+                    && System.currentTimeMillis() < deadline ) {
+                System.gc();
+                Thread.sleep( 100 );
+            }
+            Set<String> timers = stats.keys( StatsdStatType.TIMER );
+            assertTrue( timers.toString(), timers.contains( "jfr.gc_pause" ) );
+            assertTrue( timers.toString(), timers.contains( "jfr.safepoint_us" ) );
+            assertTrue( recording.dump( file ) > 0 );
+        } finally {
+            recording.stop();
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.krux.stdlib.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+public class CgroupStatsdReporterTest {
+
+    @Rule
+    public final ProcFixture root = new ProcFixture();
+
+    @Rule
+    public final RecordingStatsdClient stats = new RecordingStatsdClient();
+
+    @Test
+    public void readsCgroupV1() throws Exception {
+        root.write( "proc/self/cgroup", "4:memory:/docker/abc\n3:cpu,cpuacct:/docker/abc\n1:name=systemd:/\n" );
+        // container view: the cgroup is the root of each hierarchy
+        root.write( "cg/cpu,cpuacct/cpu.cfs_quota_us", "150000\n" );
+        root.write( "cg/cpu,cpuacct/cpu.cfs_period_us", "100000\n" );
+        root.write( "cg/cpu,cpuacct/cpu.stat", "nr_periods 10\nnr_throttled 2\nthrottled_time 5000000\n" );
+        root.write( "cg/cpu,cpuacct/cpuacct.usage", "1000000000\n" );
+        root.write( "cg/memory/memory.usage_in_bytes", "268435456\n" );
+        root.write( "cg/memory/memory.limit_in_bytes", "1073741824\n" );
+        root.write( "cg/memory/memory.oom_control", "oom_kill_disable 0\nunder_oom 0\noom_kill 3\n" );
+
+        CgroupStatsdReporter reporter = new CgroupStatsdReporter( root.getPath() + "/proc", root.getPath() + "/cg" );
+        assertTrue( reporter.isAvailable() );
+        assertEquals( "v1", reporter.getVersion() );
+        reporter.report();
+        assertEquals( 1500L, (long) stats.get( "container.cpu_limit_millicores" ) );
+        assertEquals( 268435456L, (long) stats.get( "container.memory_used" ) );
+        assertEquals( 1073741824L, (long) stats.get( "container.memory_limit" ) );
+        assertEquals( 25L, (long) stats.get( "container.memory_used_pct" ) );
+        assertFalse( stats.containsKey( "container.cpu_throttled" ) );
+        assertFalse( stats.containsKey( "container.oom_kills" ) );
+
+        root.write( "cg/cpu,cpuacct/cpu.stat", "nr_periods 20\nnr_throttled 7\nthrottled_time 45000000\n" );
+        root.write( "cg/cpu,cpuacct/cpuacct.usage", "9000000000\n" );
+        root.write( "cg/memory/memory.oom_control", "oom_kill_disable 0\nunder_oom 0\noom_kill 4\n" );
+        reporter.report();
+        assertEquals( 10L, (long) stats.get( "container.cpu_periods" ) );
+        assertEquals( 5L, (long) stats.get( "container.cpu_throttled" ) );
+        assertEquals( 40L, (long) stats.get( "container.throttled_time_ms" ) );
+        assertEquals( 1L, (long) stats.get( "container.oom_kills" ) );
+        assertTrue( stats.get( "container.cpu_usage" ) > 0 );
+        assertTrue( stats.get( "container.cpu_quota_used" ) > 0 );
+    }
+
+    @Test
+    public void readsCgroupV2() throws Exception {
+        root.write( "proc/self/cgroup", "0::/\n" );
+        root.write( "cg/cgroup.controllers", "cpu memory\n" );
+        root.write( "cg/cpu.max", "max 100000\n" );
+        root.write( "cg/cpu.stat", "usage_usec 100\nuser_usec 50\nsystem_usec 50\nnr_periods 1\nnr_throttled 0\n"
+                + "throttled_usec 0\n" );
+        root.write( "cg/memory.current", "1000\n" );
+        root.write( "cg/memory.max", "max\n" );
+        root.write( "cg/memory.events", "low 0\nhigh 0\nmax 0\noom 0\noom_kill 0\n" );
+
+        CgroupStatsdReporter reporter = new CgroupStatsdReporter( root.getPath() + "/proc", root.getPath() + "/cg" );
+        assertEquals( "v2", reporter.getVersion() );
+        reporter.report();
+        assertFalse( stats.containsKey( "container.cpu_limit_millicores" ) );
+        assertFalse( stats.containsKey( "container.memory_limit" ) );
+        assertEquals( 1000L, (long) stats.get( "container.memory_used" ) );
+
+        root.write( "cg/cpu.max", "50000 100000\n" );
+        root.write( "cg/cpu.stat", "usage_usec 900\nuser_usec 450\nsystem_usec 450\nnr_periods 9\nnr_throttled 3\n"
+                + "throttled_usec 7000\n" );
+        root.write( "cg/memory.max", "4000\n" );
+        reporter.report();
+        assertEquals( 500L, (long) stats.get( "container.cpu_limit_millicores" ) );
+        assertEquals( 8L, (long) stats.get( "container.cpu_periods" ) );
+        assertEquals( 3L, (long) stats.get( "container.cpu_throttled" ) );
+        assertEquals( 7L, (long) stats.get( "container.throttled_time_ms" ) );
+        assertEquals( 25L, (long) stats.get( "container.memory_used_pct" ) );
+    }
+
+    @Test
+    public void isUnavailableWithoutCgroups() {
+        assertFalse( new CgroupStatsdReporter( root.getPath() + "/proc", root.getPath() + "/cg" ).isAvailable() );
+    }
+}
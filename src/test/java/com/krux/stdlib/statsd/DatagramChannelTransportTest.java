@@ -0,0 +1,62 @@
+package com.krux.stdlib.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.PortUnreachableException;
+
+import org.junit.Test;
+
+public class DatagramChannelTransportTest {
+
+    @Test
+    public void sendsToConnectedPeer() throws Exception {
+        DatagramSocket server = new DatagramSocket( 0, InetAddress.getLoopbackAddress() );
+        server.setSoTimeout( 2000 );
+        DatagramChannelTransport transport = new DatagramChannelTransport( InetAddress.getLoopbackAddress(),
+                server.getLocalPort() );
+        try {
+            byte[] data = "xxa:1|cxx".getBytes( StatsdClient.CHARSET );
+            assertTrue( transport.send( data, 2, 5 ) );
+            byte[] buf = new byte[64];
+            DatagramPacket p = new DatagramPacket( buf, buf.length );
+            server.receive( p );
+            assertEquals( "a:1|c", new String( buf, 0, p.getLength(), StatsdClient.CHARSET ) );
+        } finally {
+            transport.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void backsOffWhenNothingListens() throws Exception {
+        DatagramSocket closed = new DatagramSocket( 0, InetAddress.getLoopbackAddress() );
+        int port = closed.getLocalPort();
+        closed.close();
+
+        DatagramChannelTransport transport = new DatagramChannelTransport( InetAddress.getLoopbackAddress(), port,
+                60000 );
+        try {
+            byte[] data = "a:1|c".getBytes( StatsdClient.CHARSET );
+            boolean refused = false;
+            // the ICMP reply surfaces on a later write
+            for ( int i = 0; i < 100 && !refused; i++ ) {
+                try {
+                    transport.send( data, 0, data.length );
+                    Thread.sleep( 10 );
+                } catch ( PortUnreachableException e ) {
+                    refused = true;
+                }
+            }
+            assertTrue( refused );
+            assertFalse( transport.isAvailable() );
+            assertFalse( transport.send( data, 0, data.length ) );
+        } finally {
+            transport.close();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.krux.stdlib.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class DiskIoStatsdReporterTest {
+
+    @Rule
+    public final ProcFixture proc = new ProcFixture();
+
+    @Rule
+    public final RecordingStatsdClient stats = new RecordingStatsdClient();
+
+    @Before
+    public void setUp() throws Exception {
+        proc.write( "self/mountinfo", "23 28 0:22 / /proc rw,relatime - proc proc rw\n"
+                + "28 1 254:0 / / rw,relatime - ext4 /dev/vda rw\n"
+                + "40 28 8:1 / /data rw,relatime - ext4 /dev/sda1 rw\n"
+                + "41 28 0:40 / /data/tmp rw,relatime - tmpfs tmpfs rw\n"
+                + "42 28 8:16 / /data2 rw,relatime - ext4 /dev/sdb rw\n" );
+    }
+
+    private void writeSample( long readBytes, long writeBytes, long reads, long writes, long ioMs ) throws Exception {
+        proc.write( "self/io", "rchar: 3980\nwchar: 100\nsyscr: " + reads + "\nsyscw: " + writes + "\nread_bytes: "
+                + readBytes + "\nwrite_bytes: " + writeBytes + "\ncancelled_write_bytes: 0\n" );
+        proc.write( "diskstats", "   8       0 sda 9 9 9 9 9 9 9 9 0 9 9 0 0 0 0\n"
+                + "   8       1 sda1 " + reads + " 0 " + readBytes / 512 + " " + reads * 2 + " " + writes + " 0 "
+                + writeBytes / 512 + " " + writes * 2 + " 0 " + ioMs + " 0 0 0 0 0\n"
+                + "   8      16 sdb 1 1 1 1 1 1 1 1 0 1 1 0 0 0 0\n" );
+    }
+
+    @Test
+    public void reportsProcessAndDiskDeltas() throws Exception {
+        writeSample( 4096, 8192, 10, 20, 100 );
+        DiskIoStatsdReporter reporter = new DiskIoStatsdReporter( proc.getPath(), "/data/app" );
+        assertTrue( reporter.isAvailable() );
+        assertEquals( "8:1", reporter.getDevice() );
+        reporter.report();
+        assertTrue( stats.isEmpty() );
+
+        Thread.sleep( 20 );
+        writeSample( 4096 + 1024, 8192 + 512 * 10, 20, 25, 101 );
+        reporter.report();
+        assertEquals( 1024L, (long) stats.get( "proc_io.read_bytes" ) );
+        assertEquals( 5120L, (long) stats.get( "proc_io.write_bytes" ) );
+        assertEquals( 10L, (long) stats.get( "proc_io.read_syscalls" ) );
+        assertEquals( 5L, (long) stats.get( "proc_io.write_syscalls" ) );
+        assertEquals( 1024L, (long) stats.get( "disk.read_bytes" ) );
+        assertEquals( 5120L, (long) stats.get( "disk.write_bytes" ) );
+        assertEquals( 10L, (long) stats.get( "disk.reads" ) );
+        assertEquals( 5L, (long) stats.get( "disk.writes" ) );
+        // each io took 2ms
+        assertEquals( 2L, (long) stats.get( "disk.await_ms" ) );
+        assertTrue( stats.get( "disk.util" ) <= 5 );
+    }
+
+    @Test
+    public void sendsByteDeltasPast2GiB() throws Exception {
+        writeSample( 0, 0, 0, 0, 0 );
+        DiskIoStatsdReporter reporter = new DiskIoStatsdReporter( proc.getPath(), "/data/app" );
+        reporter.report();
+        writeSample( 3L << 30, 5L << 30, 1, 1, 1 );
+        reporter.report();
+        assertEquals( 3L << 30, (long) stats.get( "proc_io.read_bytes" ) );
+        assertEquals( 5L << 30, (long) stats.get( "proc_io.write_bytes" ) );
+        assertEquals( 3L << 30, (long) stats.get( "disk.read_bytes" ) );
+        assertEquals( 5L << 30, (long) stats.get( "disk.write_bytes" ) );
+    }
+
+    @Test
+    public void findsTheLongestMountPoint() throws Exception {
+        writeSample( 0, 0, 0, 0, 0 );
+        assertEquals( "254:0", new DiskIoStatsdReporter( proc.getPath(), "/home" ).getDevice() );
+        assertEquals( "8:16", new DiskIoStatsdReporter( proc.getPath(), "/data2/x" ).getDevice() );
+        // tmpfs has no device
+        assertNull( new DiskIoStatsdReporter( proc.getPath(), "/data/tmp/spill" ).getDevice() );
+    }
+}
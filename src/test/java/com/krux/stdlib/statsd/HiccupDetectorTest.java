@@ -0,0 +1,58 @@
+package com.krux.stdlib.statsd;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+public class HiccupDetectorTest {
+
+    @Rule
+    public final RecordingStatsdClient gauges = new RecordingStatsdClient();
+
+    @Test
+    public void reportsHiccupPercentiles() throws Exception {
+        HiccupDetector detector = new HiccupDetector( 1 );
+        try {
+            Thread.sleep( 100 );
+            detector.report();
+        } finally {
+            detector.stop();
+        }
+        long p50 = gauges.get( "hiccup.p50_us" );
+        long p99 = gauges.get( "hiccup.p99_us" );
+        long max = gauges.get( "hiccup.max_us" );
+        assertTrue( 0 <= p50 && p50 <= p99 && p99 <= max );
+
+        // nothing is recorded once stopped
+        Thread.sleep( 10 );
+        detector.report();
+        gauges.clear();
+        Thread.sleep( 10 );
+        detector.report();
+        assertTrue( gauges.isEmpty() );
+    }
+
+    @Test
+    public void backfillsTheWakeupsALongStallSwallowed() throws Exception {
+        // too coarse for the thread itself to record anything meanwhile
+        HiccupDetector detector = new HiccupDetector( 1000 );
+        try {
+            detector.record( TimeUnit.SECONDS.toNanos( 10 ) );
+            detector.report();
+        } finally {
+            detector.stop();
+        }
+        // 10s, 9s, ... 1s rather than a single 10s sample
+        long p50 = gauges.get( "hiccup.p50_us" );
+        assertTrue( String.valueOf( p50 ), p50 >= 4500000 && p50 <= 6500000 );
+        assertTrue( gauges.get( "hiccup.max_us" ) >= 9500000 );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void rejectsANonPositiveResolution() {
+        new HiccupDetector( 0 );
+    }
+}
@@ -0,0 +1,71 @@
+package com.krux.stdlib.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HyperLogLogTest {
+
+    private static void assertWithin( long expected, long actual, double error ) {
+        assertTrue( "expected " + expected + " but estimated " + actual,
+                Math.abs( actual - expected ) <= expected * error );
+    }
+
+    @Test
+    public void emptySketchEstimatesZero() {
+        assertEquals( 0, new HyperLogLog().estimate() );
+    }
+
+    @Test
+    public void smallCardinalitiesAreNearlyExact() {
+        HyperLogLog hll = new HyperLogLog();
+        for ( int i = 0; i < 100; i++ ) {
+            hll.add( i );
+            hll.add( i );
+        }
+        assertWithin( 100, hll.estimate(), 0.02 );
+    }
+
+    @Test
+    public void largeCardinalitiesAreWithinAFewStandardErrors() {
+        HyperLogLog hll = new HyperLogLog();
+        for ( int i = 0; i < 1000000; i++ ) {
+            hll.add( "user-" + i );
+        }
+        // standard error is 1.04 / sqrt(4096), about 1.6%
+        assertWithin( 1000000, hll.estimate(), 0.05 );
+    }
+
+    @Test
+    public void estimateAndResetClearsTheSketch() {
+        HyperLogLog hll = new HyperLogLog();
+        for ( long i = 0; i < 5000; i++ ) {
+            hll.add( i * 7919 );
+        }
+        assertWithin( 5000, hll.estimateAndReset(), 0.05 );
+        assertEquals( 0, hll.estimate() );
+    }
+
+    @Test
+    public void concurrentAddsAreNotLost() throws Exception {
+        final HyperLogLog hll = new HyperLogLog();
+        Thread[] threads = new Thread[4];
+        for ( int t = 0; t < threads.length; t++ ) {
+            final int offset = t * 50000;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for ( int i = 0; i < 50000; i++ ) {
+                        hll.add( offset + i );
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for ( Thread t : threads ) {
+            t.join();
+        }
+        assertWithin( 200000, hll.estimate(), 0.05 );
+    }
+}
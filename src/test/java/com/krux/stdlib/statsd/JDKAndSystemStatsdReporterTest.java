@@ -0,0 +1,49 @@
+package com.krux.stdlib.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+public class JDKAndSystemStatsdReporterTest {
+
+    @Rule
+    public final ProcFixture proc = new ProcFixture();
+
+    @Rule
+    public final RecordingStatsdClient gauges = new RecordingStatsdClient();
+
+    private void writeSample( long user, long system, long idle, long iowait, long steal, long utime, long stime )
+            throws Exception {
+        proc.write( "stat", "cpu  " + user + " 0 " + system + " " + idle + " " + iowait + " 0 0 " + steal + " 0 0\n"
+                + "cpu0 1 2 3 4 5 6 7 8 0 0\ncpu1 1 2 3 4 5 6 7 8 0 0\nintr 12345 1 2 3\nctxt 999\n" );
+        proc.write( "self/stat", "4242 (java (worker) 1) S 1 4242 4242 0 -1 4194560 1 2 3 4 " + utime + " " + stime
+                + " 0 0 20 0 42 0 1234\n" );
+    }
+
+    @Test
+    public void computesCpuFromDeltasAndParsesLoadAverage() throws Exception {
+        proc.write( "loadavg", "3.97 0.58 12.05 1/467 12345\n" );
+        writeSample( 1000, 500, 8000, 100, 0, 300, 100 );
+        JDKAndSystemStatsdReporter reporter = new JDKAndSystemStatsdReporter( proc.getPath() );
+
+        reporter.report();
+        assertFalse( "no deltas on the first run", gauges.containsKey( "usr_cpu" ) );
+        assertEquals( Long.valueOf( 3 ), gauges.get( "load_avg.1min" ) );
+        assertEquals( Long.valueOf( 0 ), gauges.get( "load_avg.5min" ) );
+        assertEquals( Long.valueOf( 12 ), gauges.get( "load_avg.15min" ) );
+
+        // 1000 jiffies over 2 cpus: 400 user, 100 system, 300 idle, 150
+        // iowait, 50 steal; the process used 250 of its 500 per cpu
+        writeSample( 1400, 600, 8300, 250, 50, 500, 150 );
+        reporter.report();
+        assertEquals( Long.valueOf( 40 ), gauges.get( "usr_cpu" ) );
+        assertEquals( Long.valueOf( 10 ), gauges.get( "sys_cpu" ) );
+        assertEquals( Long.valueOf( 15 ), gauges.get( "iowait_cpu" ) );
+        assertEquals( Long.valueOf( 5 ), gauges.get( "steal_cpu" ) );
+        assertEquals( Long.valueOf( 50 ), gauges.get( "process_cpu" ) );
+        assertTrue( gauges.containsKey( "heap_used" ) );
+    }
+}
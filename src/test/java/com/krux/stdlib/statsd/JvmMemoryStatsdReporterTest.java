@@ -0,0 +1,64 @@
+package com.krux.stdlib.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+public class JvmMemoryStatsdReporterTest {
+
+    @Rule
+    public final RecordingStatsdClient stats = new RecordingStatsdClient();
+
+    @Test
+    public void sanitizesMXBeanNames() {
+        assertEquals( "g1_young_generation", JvmMemoryStatsdReporter.statName( "G1 Young Generation" ) );
+        assertEquals( "ps_old_gen", JvmMemoryStatsdReporter.statName( "PS Old Gen" ) );
+    }
+
+    @Test
+    public void reportsCollectionsPoolsAndAllocation() throws Exception {
+        JvmMemoryStatsdReporter reporter = new JvmMemoryStatsdReporter();
+        try {
+            reporter.report();
+            byte[][] garbage = new byte[64][];
+            for ( int i = 0; i < 1024; i++ ) {
+                garbage[i % garbage.length] = new byte[16 * 1024];
+            }
+            System.gc();
+            reporter.report();
+        } finally {
+            reporter.stop();
+        }
+
+        long collections = 0;
+        for ( Map.Entry<String, Long> e : stats.values().entrySet() ) {
+            if ( e.getKey().startsWith( "gc." ) && e.getKey().endsWith( ".count" ) ) {
+                collections += e.getValue();
+            }
+        }
+        assertTrue( collections >= 1 );
+        assertTrue( stats.containsKey( "gc.promoted_bytes" ) );
+        String pool = "mem_pool."
+                + JvmMemoryStatsdReporter.statName( ManagementFactory.getMemoryPoolMXBeans().get( 0 ).getName() );
+        assertTrue( stats.containsKey( pool + ".used" ) );
+        assertTrue( stats.containsKey( pool + ".committed" ) );
+        if ( stats.containsKey( "alloc_bytes" ) ) {
+            assertTrue( stats.get( "alloc_bytes" ) >= 1024 * 16 * 1024 );
+        }
+    }
+
+    @Test
+    public void sendsByteCountsPast2GiB() throws Exception {
+        JvmMemoryStatsdReporter reporter = new JvmMemoryStatsdReporter();
+        reporter.stop();
+        reporter.promoted.set( 5L << 30 );
+        reporter.report();
+        // a collection during the test may add to it
+        assertTrue( stats.get( "gc.promoted_bytes" ) >= 5L << 30 );
+    }
+}
@@ -0,0 +1,109 @@
+package com.krux.stdlib.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.jr.ob.JSON;
+
+public class KeyCardinalityGuardTest {
+
+    @Test
+    public void groupsKeysByPrefix() {
+        assertEquals( "http", KeyCardinalityGuard.prefixOf( "http.requests.200" ) );
+        assertEquals( "APP", KeyCardinalityGuard.prefixOf( "APP_HTTP_200" ) );
+        assertEquals( "", KeyCardinalityGuard.prefixOf( "start" ) );
+    }
+
+    @Test
+    public void groupsKeysWithoutPrefixTogether() {
+        KeyCardinalityGuard guard = new KeyCardinalityGuard( 2, 2, null );
+        assertEquals( "start", guard.admit( "start" ) );
+        assertEquals( "stop", guard.admit( "stop" ) );
+        assertEquals( KeyCardinalityGuard.OVERFLOW_KEY, guard.admit( "restart" ) );
+        assertEquals( 1, guard.getPrefixCount() );
+        // still room for a real prefix
+        assertEquals( "http.ok", guard.admit( "http.ok" ) );
+    }
+
+    @Test
+    public void collapsesNewKeysOverTheLimit() {
+        KeyCardinalityGuard guard = new KeyCardinalityGuard( 3, 2, null );
+        for ( int i = 0; i < 3; i++ ) {
+            assertEquals( "user." + i, guard.admit( "user." + i ) );
+        }
+        assertEquals( "user.__overflow__", guard.admit( "user.3" ) );
+        assertEquals( "user.__overflow__", guard.admit( "user.4" ) );
+        // admitted keys keep passing
+        assertEquals( "user.1", guard.admit( "user.1" ) );
+
+        assertEquals( "http.ok", guard.admit( "http.ok" ) );
+        assertEquals( KeyCardinalityGuard.OVERFLOW_KEY, guard.admit( "third.prefix" ) );
+        assertEquals( 3, guard.getOverflowedCount() );
+    }
+
+    @Test
+    public void limitsTimerSummariesWithTheirTimerKey() {
+        final List<String> sent = new ArrayList<String>();
+        KruxStatsdClient client = new KruxStatsdClient( new StatsdTransport() {
+            @Override
+            public boolean send( byte[] data, int offset, int length ) {
+                sent.add( new String( data, offset, length, StatsdClient.CHARSET ) );
+                return true;
+            }
+
+            @Override
+            public boolean isAvailable() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        }, null, 0 );
+        client.setMaxKeysPerPrefix( 1 );
+        client.setTimerHistograms( 60000 );
+        try {
+            client.time( "APP_HTTP_200", 5 );
+            client.flush();
+            assertEquals( StatsdTimerHistograms.SUFFIXES.length, sent.size() );
+            assertTrue( sent.toString(), sent.get( 6 ).contains( ".app_http_200.p99." ) );
+            assertEquals( 0, client.getKeyGuard().getOverflowedCount() );
+
+            // a second timer of the APP prefix overflows, summaries and all
+            sent.clear();
+            client.time( "APP_HTTP_500", 5 );
+            client.flush();
+            assertTrue( sent.toString(), sent.get( 6 ).contains( ".app.__overflow__.p99." ) );
+            assertEquals( 1, client.getKeyGuard().getOverflowedCount() );
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void reportsTopOffenders() throws Exception {
+        KeyCardinalityGuard guard = new KeyCardinalityGuard( 10, null );
+        for ( int i = 0; i < 1000; i++ ) {
+            guard.admit( "url./page/" + i );
+        }
+        for ( int i = 0; i < 20; i++ ) {
+            guard.admit( "id." + i );
+        }
+        guard.admit( "fine.key" );
+
+        List<KeyCardinalityGuard.Offender> top = guard.getTopOffenders();
+        assertEquals( 2, top.size() );
+        assertEquals( "url", top.get( 0 ).getPrefix() );
+        assertEquals( 990, top.get( 0 ).getOverflowed() );
+        assertTrue( Math.abs( top.get( 0 ).getDistinctKeys() - 1000 ) < 100 );
+        assertEquals( "id", top.get( 1 ).getPrefix() );
+
+        String status = JSON.std.asString( guard );
+        assertTrue( status, status.contains( "\"prefix\":\"url\"" ) );
+    }
+}
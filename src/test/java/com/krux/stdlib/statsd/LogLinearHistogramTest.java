@@ -0,0 +1,43 @@
+package com.krux.stdlib.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LogLinearHistogramTest {
+
+    @Test
+    public void bucketsCoverTheRangeWithinThreePercent() {
+        for ( long v = 0; v < LogLinearHistogram.MAX_TRACKABLE; v = v * 3 / 2 + 1 ) {
+            int index = LogLinearHistogram.bucketIndex( v );
+            assertTrue( index < LogLinearHistogram.BUCKETS );
+            assertTrue( LogLinearHistogram.bucketLowerBound( index ) <= v );
+            assertTrue( index + 1 == LogLinearHistogram.BUCKETS || LogLinearHistogram.bucketLowerBound( index + 1 ) > v );
+            long mid = LogLinearHistogram.bucketMidpoint( index );
+            assertTrue( Math.abs( mid - v ) <= Math.max( 1, v * 0.03 ) );
+        }
+    }
+
+    @Test
+    public void summarizesAndResets() {
+        LogLinearHistogram h = new LogLinearHistogram();
+        for ( long v = 1; v <= 1000; v++ ) {
+            h.record( v * 1000 );
+        }
+        LogLinearHistogram.Snapshot s = new LogLinearHistogram.Snapshot();
+        h.snapshotAndReset( s );
+
+        assertEquals( 1000, s.getCount() );
+        assertEquals( 1000, s.getMin() );
+        assertEquals( 1000000, s.getMax() );
+        assertEquals( 500500, s.getMean() );
+        assertEquals( 500000, s.getValueAtQuantile( 0.5 ), 500000 * 0.03 );
+        assertEquals( 990000, s.getValueAtQuantile( 0.99 ), 990000 * 0.03 );
+        assertEquals( 1000000, s.getValueAtQuantile( 1.0 ) );
+
+        h.snapshotAndReset( s );
+        assertEquals( 0, s.getCount() );
+        assertEquals( 0, s.getValueAtQuantile( 0.99 ) );
+    }
+}
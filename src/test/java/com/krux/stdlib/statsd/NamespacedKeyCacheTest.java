@@ -0,0 +1,60 @@
+package com.krux.stdlib.statsd;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+public class NamespacedKeyCacheTest {
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    @Test
+    public void encodesOncePerDistinctKey() {
+        NamespacedKeyCache cache = new NamespacedKeyCache( "dev.app.", ".host", UTF8 );
+
+        byte[] first = cache.get( "Process_Start" );
+        assertArrayEquals( "dev.app.process_start.host".getBytes( UTF8 ), first );
+        assertSame( first, cache.get( "Process_Start" ) );
+        assertSame( first, cache.get( "Process_Start" ) );
+
+        assertEquals( 1, cache.getMissCount() );
+        assertEquals( 2, cache.getHitCount() );
+        assertEquals( 2.0 / 3.0, cache.getHitRate(), 0.0001 );
+    }
+
+    @Test
+    public void staysBoundedUnderRunawayKeys() {
+        NamespacedKeyCache cache = new NamespacedKeyCache( "p.", ".s", UTF8, 100 );
+        for ( int i = 0; i < 10000; i++ ) {
+            assertArrayEquals( ( "p.id_" + i + ".s" ).getBytes( UTF8 ), cache.get( "id_" + i ) );
+        }
+        assertTrue( cache.size() <= 100 );
+        assertEquals( 10000 - cache.size(), cache.getEvictionCount() );
+    }
+
+    @Test
+    public void evictsAtRandom() {
+        NamespacedKeyCache cache = new NamespacedKeyCache( "p.", ".s", UTF8, 100 );
+        for ( int i = 0; i < 200; i++ ) {
+            cache.get( "id_" + i );
+        }
+        assertEquals( 100, cache.size() );
+        // each of the 100 later keys replaces a random slot: about
+        // 100 * 0.99^100 = 37 of the first keys survive, whichever they are
+        int survivors = 0;
+        long misses = cache.getMissCount();
+        for ( int i = 0; i < 100; i++ ) {
+            cache.get( "id_" + i );
+            if ( cache.getMissCount() == misses ) {
+                survivors++;
+            }
+            misses = cache.getMissCount();
+        }
+        assertTrue( "survivors " + survivors, survivors > 10 && survivors < 70 );
+    }
+}
@@ -0,0 +1,53 @@
+package com.krux.stdlib.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+public class NetworkStatsdReporterTest {
+
+    @Rule
+    public final ProcFixture proc = new ProcFixture();
+
+    @Rule
+    public final RecordingStatsdClient counts = new RecordingStatsdClient();
+
+    private void writeSample( long rcvbufErrors, long retrans, long overflows ) throws Exception {
+        proc.write( "net/snmp", "Ip: Forwarding DefaultTTL InReceives\nIp: 2 64 6012239\n"
+                + "Tcp: RtoAlgorithm RtoMin RtoMax MaxConn ActiveOpens RetransSegs InErrs\n"
+                + "Tcp: 1 200 120000 -1 37 " + retrans + " 0\n"
+                + "Udp: InDatagrams NoPorts InErrors OutDatagrams RcvbufErrors SndbufErrors\n"
+                + "Udp: 6001551 56 " + rcvbufErrors + " 6001742 " + rcvbufErrors + " 0\n"
+                + "UdpLite: InDatagrams NoPorts InErrors OutDatagrams RcvbufErrors SndbufErrors\n"
+                + "UdpLite: 0 0 0 0 0 0\n" );
+        proc.write( "net/netstat", "TcpExt: SyncookiesSent ListenOverflows ListenDrops TW\nTcpExt: 0 " + overflows + " "
+                + overflows + " 20\nIpExt: InNoRoutes\nIpExt: 0\n" );
+    }
+
+    @Test
+    public void reportsCounterDeltas() throws Exception {
+        writeSample( 10, 100, 3 );
+        NetworkStatsdReporter reporter = new NetworkStatsdReporter( proc.getPath() );
+        assertTrue( reporter.isAvailable() );
+        reporter.report();
+        assertTrue( counts.isEmpty() );
+
+        writeSample( 25, 104, 5 );
+        reporter.report();
+        assertEquals( 15L, (long) counts.get( "net.udp.in_errors" ) );
+        assertEquals( 15L, (long) counts.get( "net.udp.rcvbuf_errors" ) );
+        assertEquals( 0L, (long) counts.get( "net.udp.sndbuf_errors" ) );
+        // past the -1 of MaxConn
+        assertEquals( 4L, (long) counts.get( "net.tcp.retrans_segs" ) );
+        assertEquals( 2L, (long) counts.get( "net.tcp.listen_overflows" ) );
+        assertEquals( 2L, (long) counts.get( "net.tcp.listen_drops" ) );
+    }
+
+    @Test
+    public void isUnavailableWithoutProcfs() {
+        assertFalse( new NetworkStatsdReporter( proc.getPath() + "/missing" ).isAvailable() );
+    }
+}
@@ -0,0 +1,36 @@
+package com.krux.stdlib.statsd;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * A scratch directory standing in for <code>/proc</code>,
+ * <code>/sys/fs/cgroup</code> and the like, removed with everything in it
+ * after each test. Use as a JUnit rule:
+ * <code>@Rule public final ProcFixture proc = new ProcFixture();</code>
+ */
+public class ProcFixture extends TemporaryFolder {
+
+    /**
+     * Writes <code>content</code> to the file at the relative path
+     * <code>name</code>, creating its directories and replacing what was
+     * there.
+     */
+    public void write( String name, String content ) throws IOException {
+        File f = new File( getRoot(), name );
+        f.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream( f );
+        try {
+            out.write( content.getBytes( "US-ASCII" ) );
+        } finally {
+            out.close();
+        }
+    }
+
+    public String getPath() {
+        return getRoot().getPath();
+    }
+}
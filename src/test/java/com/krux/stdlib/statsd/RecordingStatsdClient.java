@@ -0,0 +1,86 @@
+package com.krux.stdlib.statsd;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+import com.krux.stdlib.KruxStdLib;
+
+/**
+ * Stands in for {@link KruxStdLib#STATSD} while a test runs, keeping the last
+ * value sent for each key. Use as a JUnit rule:
+ * <code>@Rule public final RecordingStatsdClient stats = new RecordingStatsdClient();</code>
+ */
+public class RecordingStatsdClient extends StatsdClient implements TestRule {
+
+    private final Map<String, Long> values = new LinkedHashMap<String, Long>();
+    private final Map<String, StatsdStatType> types = new LinkedHashMap<String, StatsdStatType>();
+
+    @Override
+    public Statement apply( final Statement base, Description description ) {
+        return new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                StatsdClient saved = KruxStdLib.STATSD;
+                KruxStdLib.STATSD = RecordingStatsdClient.this;
+                try {
+                    base.evaluate();
+                } finally {
+                    KruxStdLib.STATSD = saved;
+                }
+            }
+        };
+    }
+
+    @Override
+    public synchronized boolean stat( StatsdStatType type, String key, long value, double sampleRate ) {
+        values.put( key, value );
+        types.put( key, type );
+        return true;
+    }
+
+    /**
+     * @return the last value sent for <code>key</code>, or null if none was
+     */
+    public synchronized Long get( String key ) {
+        return values.get( key );
+    }
+
+    public synchronized boolean containsKey( String key ) {
+        return values.containsKey( key );
+    }
+
+    public synchronized boolean isEmpty() {
+        return values.isEmpty();
+    }
+
+    public synchronized void clear() {
+        values.clear();
+        types.clear();
+    }
+
+    /**
+     * @return a copy of the last value sent for each key, in first-sent order
+     */
+    public synchronized Map<String, Long> values() {
+        return new LinkedHashMap<String, Long>( values );
+    }
+
+    /**
+     * @return the keys sent as stats of the given type
+     */
+    public synchronized Set<String> keys( StatsdStatType type ) {
+        Set<String> keys = new HashSet<String>();
+        for ( Map.Entry<String, StatsdStatType> e : types.entrySet() ) {
+            if ( e.getValue() == type ) {
+                keys.add( e.getKey() );
+            }
+        }
+        return keys;
+    }
+}
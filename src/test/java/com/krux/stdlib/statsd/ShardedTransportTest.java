@@ -0,0 +1,178 @@
+package com.krux.stdlib.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ShardedTransportTest {
+
+    private static final int KEYS = 200;
+
+    private DatagramSocket a;
+    private DatagramSocket b;
+    private ShardedTransport transport;
+
+    @Before
+    public void setUp() throws Exception {
+        InetAddress lo = InetAddress.getLoopbackAddress();
+        a = new DatagramSocket( 0, lo );
+        b = new DatagramSocket( 0, lo );
+        a.setSoTimeout( 200 );
+        b.setSoTimeout( 200 );
+        transport = new ShardedTransport( Arrays.asList( lo, lo ), Arrays.asList( a.getLocalPort(), b.getLocalPort() ),
+                1432, 10, 60000, null );
+    }
+
+    @After
+    public void tearDown() {
+        transport.close();
+        a.close();
+        b.close();
+    }
+
+    private void sendAllKeys() throws Exception {
+        StringBuilder packet = new StringBuilder();
+        for ( int i = 0; i < KEYS; i++ ) {
+            packet.append( "k" ).append( i ).append( ":1|c" );
+            byte[] data = packet.toString().getBytes( StatsdClient.CHARSET );
+            transport.send( data, 0, data.length );
+            packet.setLength( 0 );
+        }
+        transport.flush();
+    }
+
+    private static Set<String> receiveKeys( DatagramSocket server ) throws Exception {
+        Set<String> keys = new HashSet<String>();
+        byte[] buf = new byte[65536];
+        try {
+            while ( true ) {
+                DatagramPacket p = new DatagramPacket( buf, buf.length );
+                server.receive( p );
+                for ( String line : new String( buf, 0, p.getLength(), StatsdClient.CHARSET ).split( "\n" ) ) {
+                    keys.add( line.substring( 0, line.indexOf( ':' ) ) );
+                }
+            }
+        } catch ( SocketTimeoutException e ) {
+            return keys;
+        }
+    }
+
+    @Test
+    public void routesEachKeyToOneEndpoint() throws Exception {
+        sendAllKeys();
+        Set<String> onA = receiveKeys( a );
+        Set<String> onB = receiveKeys( b );
+        assertEquals( KEYS, onA.size() + onB.size() );
+        assertTrue( onA.size() > KEYS / 5 && onB.size() > KEYS / 5 );
+
+        sendAllKeys();
+        assertEquals( onA, receiveKeys( a ) );
+        assertEquals( onB, receiveKeys( b ) );
+    }
+
+    @Test
+    public void splitsPacketsIntoStatsByKey() throws Exception {
+        byte[] packet = "k1:1|c\nk2:2|c\nk3:3|ms".getBytes( StatsdClient.CHARSET );
+        transport.send( packet, 0, packet.length );
+        transport.flush();
+        Set<String> keys = receiveKeys( a );
+        keys.addAll( receiveKeys( b ) );
+        assertEquals( new HashSet<String>( Arrays.asList( "k1", "k2", "k3" ) ), keys );
+    }
+
+    @Test
+    public void movesKeysOfADownEndpoint() throws Exception {
+        sendAllKeys();
+        Set<String> onA = receiveKeys( a );
+        assertFalse( onA.isEmpty() );
+        b.close();
+
+        ShardedTransport.Endpoint endpointB = transport.getEndpoints().get( 1 );
+        // the ICMP port unreachable surfaces on a later write
+        for ( int i = 0; i < 100 && endpointB.getDownCount() == 0; i++ ) {
+            sendAllKeys();
+            Thread.sleep( 10 );
+        }
+        assertFalse( endpointB.isUp() );
+        receiveKeys( a );
+
+        sendAllKeys();
+        assertEquals( KEYS, receiveKeys( a ).size() );
+    }
+
+    @Test
+    public void clientCountsThePacketsTheEndpointsWrite() throws Exception {
+        StatsdClient client = new StatsdClient( transport, null, 0 );
+        for ( int i = 0; i < KEYS; i++ ) {
+            client.count( "k" + i );
+        }
+        client.flush();
+        StatsdTelemetry t = client.getTelemetry();
+        assertEquals( KEYS, t.getSent() );
+        long packets = 0;
+        for ( ShardedTransport.Endpoint e : transport.getEndpoints() ) {
+            packets += e.getPackets();
+        }
+        // a few batched packets, not one per stat
+        assertTrue( packets > 0 && packets < KEYS / 10 );
+        assertEquals( packets, t.getPackets() );
+        assertEquals( receiveKeys( a ).size() + receiveKeys( b ).size(), KEYS );
+    }
+
+    @Test
+    public void clientCountsStatsNoEndpointTookAsSkipped() throws Exception {
+        a.close();
+        b.close();
+        for ( int i = 0; i < 100 && transport.isAvailable(); i++ ) {
+            sendAllKeys();
+            Thread.sleep( 10 );
+        }
+        // as if the client checked availability just before the endpoints went down
+        StatsdClient client = new StatsdClient( new StatsdTransport() {
+            @Override
+            public boolean send( byte[] data, int offset, int length ) throws IOException {
+                return transport.send( data, offset, length );
+            }
+
+            @Override
+            public boolean isAvailable() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        }, null, 0 );
+        assertFalse( client.count( "k1" ) );
+        StatsdTelemetry t = client.getTelemetry();
+        assertEquals( 1, t.getSkipped() );
+        assertEquals( 0, t.getPackets() );
+        assertEquals( 0, t.getFailed() );
+    }
+
+    @Test
+    public void skipsWhenNoEndpointIsUp() throws Exception {
+        a.close();
+        b.close();
+        for ( int i = 0; i < 100 && transport.isAvailable(); i++ ) {
+            sendAllKeys();
+            Thread.sleep( 10 );
+        }
+        assertFalse( transport.isAvailable() );
+        byte[] packet = "k1:1|c".getBytes( StatsdClient.CHARSET );
+        assertFalse( transport.send( packet, 0, packet.length ) );
+    }
+}
@@ -0,0 +1,188 @@
+package com.krux.stdlib.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.fasterxml.jackson.jr.ob.JSON;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StatsdClientTest {
+
+    private DatagramSocket server;
+    private StatsdClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new DatagramSocket( 0, InetAddress.getLoopbackAddress() );
+        server.setSoTimeout( 2000 );
+        client = new StatsdClient( InetAddress.getLoopbackAddress(), server.getLocalPort() );
+    }
+
+    @After
+    public void tearDown() {
+        client.shutdown();
+        server.close();
+    }
+
+    private List<String> receive( int lines, int maxPacketSize ) throws Exception {
+        List<String> received = new ArrayList<String>();
+        byte[] buf = new byte[65536];
+        while ( received.size() < lines ) {
+            DatagramPacket p = new DatagramPacket( buf, buf.length );
+            server.receive( p );
+            assertTrue( "packet of " + p.getLength() + " bytes", p.getLength() <= maxPacketSize );
+            received.addAll( Arrays.asList( new String( buf, 0, p.getLength(), StatsdClient.CHARSET ).split( "\n" ) ) );
+        }
+        return received;
+    }
+
+    @Test
+    public void sendsOnePacketPerStatByDefault() throws Exception {
+        client.count( "a.b" );
+        client.time( "t", 12 );
+        client.gauge( "g", -3 );
+        assertEquals( Arrays.asList( "a.b:1|c", "t:12|ms", "g:-3|g" ), receive( 3, 7 ) );
+    }
+
+    @Test
+    @SuppressWarnings( "deprecation" )
+    public void callsALegacyStringOverride() throws Exception {
+        final List<String> sent = new ArrayList<String>();
+        StatsdClient legacy = new StatsdClient( InetAddress.getLoopbackAddress(), server.getLocalPort() ) {
+            @Override
+            protected void sendToServer( String stat ) throws IOException {
+                sent.add( stat );
+            }
+        };
+        try {
+            legacy.count( "a.b" );
+            legacy.gauge( "g", -3 );
+            assertEquals( Arrays.asList( "a.b:1|c", "g:-3|g" ), sent );
+        } finally {
+            legacy.shutdown();
+        }
+    }
+
+    @Test
+    public void batchedPacketsCarryTheSameStats() throws Exception {
+        client.setBatching( 100, 50 );
+        List<String> expected = new ArrayList<String>();
+        for ( int i = 0; i < 50; i++ ) {
+            client.count( "key." + i, i );
+            expected.add( "key." + i + ":" + i + "|c" );
+        }
+        // the latency timer flushes the last, partially filled packet
+        assertEquals( expected, receive( expected.size(), 100 ) );
+    }
+
+    @Test
+    public void aggregatesCountersAndGaugesPerInterval() throws Exception {
+        client.setAggregation( 60000 );
+        for ( int i = 0; i < 1000; i++ ) {
+            client.count( "hits" );
+        }
+        client.count( "hits", 5, 0.1 );
+        client.gauge( "depth", 3 );
+        client.gauge( "depth", 7 );
+        client.time( "t", 4 );
+
+        // timers are not aggregated and go out right away
+        assertEquals( Arrays.asList( "t:4|ms" ), receive( 1, 64 ) );
+        client.flush();
+        assertEquals( Arrays.asList( "hits:1005|c", "depth:7|g" ), receive( 2, 64 ) );
+
+        // nothing changed, nothing to send
+        client.flush();
+        client.count( "hits" );
+        client.flush();
+        assertEquals( Arrays.asList( "hits:1|c" ), receive( 1, 64 ) );
+    }
+
+    @Test
+    public void adaptiveSamplingSendsTheRateItSampledAt() throws Exception {
+        client.setAdaptiveSampling( 100 );
+        client.getSampler().keyRate( "hot" ).rate = 0.5D;
+        for ( int i = 0; i < 2000; i++ ) {
+            client.count( "hot", 1, 0.123457D );
+        }
+        // 0.123457 * 0.5 = 0.0617285, which %f would round up to 0.061729
+        assertEquals( "hot:1|c|@0.061728", receive( 1, 100 ).get( 0 ) );
+    }
+
+    @Test
+    public void handlesWriteTheSameLinesAsStat() throws Exception {
+        StatsdCounter counter = client.counter( "c" );
+        StatsdTimer timer = client.timer( "t", 0.999999999 );
+        StatsdGauge gauge = client.gauge( "g" );
+
+        counter.increment();
+        counter.add( -4 );
+        gauge.set( 12 );
+        while ( !timer.timeNanos( 3500000 ) ) {
+            // sampled out, try again
+        }
+        assertEquals( Arrays.asList( "c:1|c", "c:-4|c", "g:12|g", "t:3|ms|@1.000000" ), receive( 4, 64 ) );
+
+        // handles created before aggregation was turned on bind to it lazily
+        client.setAggregation( 60000 );
+        counter.increment();
+        counter.add( 2 );
+        client.flush();
+        assertEquals( Arrays.asList( "c:3|c" ), receive( 1, 64 ) );
+
+        NoopStatsdClient noop = new NoopStatsdClient();
+        assertSame( StatsdCounter.NOOP, noop.counter( "x" ) );
+        assertFalse( noop.counter( "x" ).increment() );
+    }
+
+    @Test
+    public void asyncQueueSendsFromBackgroundThread() throws Exception {
+        StatsdClient async = new StatsdClient( InetAddress.getLoopbackAddress(), server.getLocalPort(), 16 );
+        try {
+            assertEquals( 16, async.getQueueCapacity() );
+            async.count( "q" );
+            async.time( "t", 5 );
+            async.gauge( "g", 2 );
+            assertEquals( Arrays.asList( "q:1|c", "t:5|ms", "g:2|g" ), receive( 3, 64 ) );
+            assertEquals( 0, async.getDroppedCount() );
+        } finally {
+            async.shutdown();
+        }
+    }
+
+    @Test
+    public void countsAndReportsItsOwnTelemetry() throws Exception {
+        client.count( "a" );
+        client.gauge( "g", 7 );
+        receive( 2, 5 );
+        StatsdTelemetry t = client.getTelemetry();
+        assertEquals( 2, t.getSent() );
+        assertEquals( 2, t.getPackets() );
+        assertEquals( 10, t.getBytes() );
+        assertEquals( 0, t.getFailed() );
+
+        client.reportTelemetry();
+        List<String> lines = receive( 3, 64 );
+        assertEquals( "statsd_client.sent:2|c", lines.get( 0 ) );
+        assertEquals( "statsd_client.bytes:10|c", lines.get( 1 ) );
+        assertEquals( "statsd_client.packets:2|c", lines.get( 2 ) );
+
+        // the report's own 3 counters and 4 gauges count too
+        String status = JSON.std.asString( t );
+        assertTrue( status, status.contains( "\"sent\":9" ) );
+        assertTrue( status, status.contains( "\"sendLatencyMaxUs\"" ) );
+    }
+}
@@ -0,0 +1,90 @@
+package com.krux.stdlib.statsd;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.junit.Test;
+
+public class StatsdEncoderTest {
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private static final String[] KEYS = { "a", "dev.app.process_start.host", "café.latency", "x_HTTP_200", "" };
+    private static final long[] VALUES = { 0, 1, -1, 9, 10, 99, 100, 12345, -98765, Integer.MAX_VALUE,
+            Long.MAX_VALUE, Long.MIN_VALUE };
+    private static final double[] RATES = { 1.0, 2.0, 0.5, 0.1, 0.333333333, 0.0000005, 0.00000049, 0.0, 0.999999999 };
+
+    /**
+     * The wire format as the client built it before the encoder existed.
+     */
+    private static byte[] legacy( StatsdStatType type, String key, long value, double sampleRate, Charset charset ) {
+        String format;
+        switch ( type ) {
+            case COUNTER:
+                format = "%s:%d|c";
+                break;
+            case TIMER:
+                format = "%s:%d|ms";
+                break;
+            default:
+                format = "%s:%d|g";
+                break;
+        }
+        String stat = String.format( format, key, value );
+        if ( sampleRate < 1.0D ) {
+            stat = String.format( Locale.US, "%s|@%f", stat, sampleRate );
+        }
+        return stat.getBytes( charset );
+    }
+
+    @Test
+    public void matchesStringFormatByteForByte() {
+        StatsdEncoder encoder = new StatsdEncoder( UTF8, 16 );
+        for ( StatsdStatType type : StatsdStatType.values() ) {
+            for ( String key : KEYS ) {
+                for ( long value : VALUES ) {
+                    for ( double rate : RATES ) {
+                        byte[] expected = legacy( type, key, value, rate, UTF8 );
+
+                        encoder.reset();
+                        encoder.encode( type, key, value, rate );
+                        assertArrayEquals( expected, Arrays.copyOf( encoder.buffer(), encoder.position() ) );
+
+                        encoder.reset();
+                        encoder.encode( type, key.getBytes( UTF8 ), value, rate );
+                        assertArrayEquals( expected, Arrays.copyOf( encoder.buffer(), encoder.position() ) );
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void fallsBackForNonAsciiCharsets() {
+        Charset utf16 = Charset.forName( "UTF-16" );
+        assertFalse( StatsdEncoder.isAsciiCompatible( utf16 ) );
+        assertTrue( StatsdEncoder.isAsciiCompatible( Charset.forName( "ISO-8859-1" ) ) );
+
+        StatsdEncoder encoder = new StatsdEncoder( utf16 );
+        encoder.encode( StatsdStatType.TIMER, "some.key", 42, 0.25 );
+        assertArrayEquals( legacy( StatsdStatType.TIMER, "some.key", 42, 0.25, utf16 ),
+                Arrays.copyOf( encoder.buffer(), encoder.position() ) );
+    }
+
+    @Test
+    public void growsForLongKeys() {
+        char[] chars = new char[5000];
+        Arrays.fill( chars, 'k' );
+        String key = new String( chars );
+
+        StatsdEncoder encoder = new StatsdEncoder( UTF8, 16 );
+        encoder.encode( StatsdStatType.GAUGE, key, 7, 1.0 );
+        assertEquals( key + ":7|g", encoder.toString() );
+    }
+}
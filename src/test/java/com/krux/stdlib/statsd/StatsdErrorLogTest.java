@@ -0,0 +1,78 @@
+package com.krux.stdlib.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+
+public class StatsdErrorLogTest {
+
+    private Logger logger;
+    private ListAppender<ILoggingEvent> appender;
+
+    @Before
+    public void setUp() {
+        logger = (Logger) LoggerFactory.getLogger( StatsdErrorLogTest.class );
+        logger.setAdditive( false );
+        logger.setLevel( Level.ALL );
+        appender = new ListAppender<ILoggingEvent>();
+        appender.start();
+        logger.addAppender( appender );
+    }
+
+    @After
+    public void tearDown() {
+        logger.detachAppender( appender );
+    }
+
+    @Test
+    public void logsTheFirstErrorThenSummaries() throws Exception {
+        StatsdErrorLog log = new StatsdErrorLog( logger, 60000 );
+        for ( int i = 0; i < 1000; i++ ) {
+            log.error( "Send failed", "k:" + i + "|c", "localhost:8125", new IOException( "refused" ) );
+        }
+        assertEquals( 1, appender.list.size() );
+        assertEquals( "Send failed: sending k:0|c to localhost:8125", appender.list.get( 0 ).getFormattedMessage() );
+        assertEquals( 999, log.getPendingCount() );
+
+        // not due yet
+        log.flush( false );
+        assertEquals( 1, appender.list.size() );
+
+        log.flush( true );
+        assertEquals( 2, appender.list.size() );
+        String summary = appender.list.get( 1 ).getFormattedMessage();
+        assertTrue( summary, summary.startsWith( "Send failed 999 times in the last " ) );
+        assertTrue( summary, summary.endsWith( "sending to localhost:8125 (last: k:999|c)" ) );
+        assertEquals( 0, log.getPendingCount() );
+    }
+
+    @Test
+    public void countsWithoutTheStatUntilDue() throws Exception {
+        StatsdErrorLog log = new StatsdErrorLog( logger, 60000 );
+        assertTrue( log.isDue( "Send failed" ) );
+        log.error( "Send failed", "k:0|c", "localhost:8125", new IOException( "refused" ) );
+        assertFalse( log.isDue( "Send failed" ) );
+        for ( int i = 1; i < 10; i++ ) {
+            log.count( "Send failed", "localhost:8125", new IOException( "refused" ) );
+        }
+        assertEquals( 9, log.getPendingCount() );
+
+        log.flush( true );
+        assertEquals( 2, appender.list.size() );
+        String summary = appender.list.get( 1 ).getFormattedMessage();
+        assertTrue( summary, summary.startsWith( "Send failed 9 times in the last " ) );
+        assertTrue( summary, summary.endsWith( "sending to localhost:8125" ) );
+    }
+}
@@ -0,0 +1,103 @@
+package com.krux.stdlib.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+public class StatsdMetricsReporterTest {
+
+    private DatagramSocket server;
+    private StatsdClient client;
+    private MetricRegistry registry;
+    private StatsdMetricsReporter reporter;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new DatagramSocket( 0, InetAddress.getLoopbackAddress() );
+        server.setSoTimeout( 200 );
+        client = new StatsdClient( InetAddress.getLoopbackAddress(), server.getLocalPort() );
+        registry = new MetricRegistry();
+        reporter = new StatsdMetricsReporter( registry, client );
+    }
+
+    @After
+    public void tearDown() {
+        client.shutdown();
+        server.close();
+    }
+
+    private List<String> receiveAll() throws Exception {
+        List<String> received = new ArrayList<String>();
+        byte[] buf = new byte[65536];
+        try {
+            while ( true ) {
+                DatagramPacket p = new DatagramPacket( buf, buf.length );
+                server.receive( p );
+                received.add( new String( buf, 0, p.getLength(), StatsdClient.CHARSET ) );
+            }
+        } catch ( SocketTimeoutException e ) {
+            return received;
+        }
+    }
+
+    @Test
+    public void reportsGaugesCountersAndMeterDeltas() throws Exception {
+        registry.register( "pool size", new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return 2.6D;
+            }
+        } );
+        registry.counter( "open" ).inc( 3 );
+        registry.meter( "requests" ).mark( 5 );
+
+        reporter.report();
+        assertEquals( Arrays.asList( "pool_size:3|g", "open:3|g", "requests.count:5|c" ), receiveAll() );
+
+        registry.meter( "requests" ).mark( 2 );
+        reporter.report();
+        assertEquals( Arrays.asList( "pool_size:3|g", "open:3|g", "requests.count:2|c" ), receiveAll() );
+    }
+
+    @Test
+    public void forgetsRemovedMetrics() throws Exception {
+        registry.meter( "requests" ).mark( 5 );
+        reporter.report();
+        assertEquals( Arrays.asList( "requests.count:5|c" ), receiveAll() );
+
+        registry.remove( "requests" );
+        reporter.report();
+        assertTrue( receiveAll().isEmpty() );
+
+        // a metric registered again under the name starts over
+        registry.meter( "requests" ).mark( 2 );
+        reporter.report();
+        assertEquals( Arrays.asList( "requests.count:2|c" ), receiveAll() );
+    }
+
+    @Test
+    public void reportsTimerSnapshotsInMicros() throws Exception {
+        registry.timer( "db:query" ).update( 1500, TimeUnit.MICROSECONDS );
+        reporter.report();
+        List<String> lines = receiveAll();
+        assertEquals( "db_query.count:1|c", lines.get( 0 ) );
+        assertTrue( lines.toString(), lines.contains( "db_query.max:1500|g" ) );
+        assertTrue( lines.toString(), lines.contains( "db_query.p999:1500|g" ) );
+        assertEquals( 9, lines.size() );
+    }
+}
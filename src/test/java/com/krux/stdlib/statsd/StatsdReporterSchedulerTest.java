@@ -0,0 +1,98 @@
+package com.krux.stdlib.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class StatsdReporterSchedulerTest {
+
+    private StatsdReporterScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new StatsdReporterScheduler( 0, LoggerFactory.getLogger( StatsdReporterSchedulerTest.class ) );
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void keepsRunningAReporterThatThrows() throws Exception {
+        final CountDownLatch runs = new CountDownLatch( 4 );
+        StatsdReporterScheduler.Registration r = scheduler.register( "failing", new StatsdReporter() {
+            @Override
+            public void report() {
+                runs.countDown();
+                if ( runs.getCount() % 2 == 0 ) {
+                    throw new NoClassDefFoundError( "boom" );
+                }
+                throw new IllegalStateException( "boom" );
+            }
+        }, 10 );
+        assertTrue( runs.await( 2, TimeUnit.SECONDS ) );
+        assertTrue( r.getErrors() >= 3 );
+        assertEquals( "failing", scheduler.getReporters().get( 0 ).getName() );
+    }
+
+    @Test
+    public void skipsRunsMissedByAnOverrun() throws Exception {
+        final CountDownLatch runs = new CountDownLatch( 2 );
+        StatsdReporterScheduler.Registration r = scheduler.register( "slow", new StatsdReporter() {
+            @Override
+            public void report() throws Exception {
+                runs.countDown();
+                Thread.sleep( 55 );
+            }
+        }, 10 );
+        assertTrue( runs.await( 2, TimeUnit.SECONDS ) );
+        // the first run covered five more slots, which were skipped rather
+        // than run back to back
+        assertTrue( "skipped " + r.getSkipped(), r.getSkipped() >= 5 );
+        assertTrue( r.getMaxDurationUs() >= 50000 );
+    }
+
+    @Test
+    public void stopsCancelledReporters() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        StatsdReporterScheduler.Registration r = scheduler.register( "cancelled", new StatsdReporter() {
+            @Override
+            public void report() {
+                runs.incrementAndGet();
+            }
+        }, 10 );
+        Thread.sleep( 50 );
+        r.cancel();
+        int seen = runs.get();
+        Thread.sleep( 50 );
+        assertTrue( seen > 0 );
+        assertTrue( runs.get() <= seen + 1 );
+        assertTrue( scheduler.getReporters().isEmpty() );
+    }
+
+    @Test
+    public void rejectsReportersAfterShutdown() {
+        scheduler.shutdown();
+        try {
+            scheduler.register( "late", new StatsdReporter() {
+                @Override
+                public void report() {
+                }
+            }, 10 );
+            fail();
+        } catch ( IllegalStateException e ) {
+            assertFalse( scheduler.getReporters().iterator().hasNext() );
+        }
+    }
+}
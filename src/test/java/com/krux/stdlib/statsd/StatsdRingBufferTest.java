@@ -0,0 +1,81 @@
+package com.krux.stdlib.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class StatsdRingBufferTest {
+
+    @Test
+    public void dropsInsteadOfBlockingWhenFull() {
+        StatsdRingBuffer ring = new StatsdRingBuffer( 3 );
+        assertEquals( 4, ring.capacity() );
+        for ( int i = 0; i < 4; i++ ) {
+            assertTrue( ring.offer( StatsdStatType.COUNTER, "k", null, i, 1.0 ) );
+        }
+        assertFalse( ring.offer( StatsdStatType.COUNTER, "k", null, 4, 1.0 ) );
+        assertEquals( 1, ring.getDroppedCount() );
+        assertEquals( 4, ring.size() );
+
+        final long[] sum = new long[1];
+        ring.drain( new StatsdRingBuffer.Handler() {
+            @Override
+            public void onStat( StatsdStatType type, String key, byte[] encodedKey, long value, double sampleRate ) {
+                sum[0] += value;
+            }
+        }, 10 );
+        assertEquals( 0 + 1 + 2 + 3, sum[0] );
+        assertEquals( 0, ring.size() );
+        assertTrue( ring.offer( StatsdStatType.COUNTER, "k", null, 5, 1.0 ) );
+    }
+
+    @Test
+    public void deliversEveryStatFromConcurrentProducers() throws Exception {
+        final StatsdRingBuffer ring = new StatsdRingBuffer( 64 );
+        final int producers = 4;
+        final int perProducer = 100000;
+        final CountDownLatch start = new CountDownLatch( 1 );
+
+        for ( int p = 0; p < producers; p++ ) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch ( InterruptedException e ) {
+                        return;
+                    }
+                    for ( int i = 1; i <= perProducer; i++ ) {
+                        while ( !ring.offer( StatsdStatType.COUNTER, "k", null, i, 1.0 ) ) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            };
+            t.setDaemon( true );
+            t.start();
+        }
+        start.countDown();
+
+        final long[] received = new long[2];
+        StatsdRingBuffer.Handler handler = new StatsdRingBuffer.Handler() {
+            @Override
+            public void onStat( StatsdStatType type, String key, byte[] encodedKey, long value, double sampleRate ) {
+                received[0]++;
+                received[1] += value;
+            }
+        };
+        long deadline = System.currentTimeMillis() + 20000;
+        while ( received[0] < (long) producers * perProducer && System.currentTimeMillis() < deadline ) {
+            if ( ring.drain( handler, 1024 ) == 0 ) {
+                Thread.yield();
+            }
+        }
+        assertEquals( (long) producers * perProducer, received[0] );
+        assertEquals( (long) producers * perProducer * ( perProducer + 1 ) / 2, received[1] );
+    }
+}
@@ -0,0 +1,95 @@
+package com.krux.stdlib.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class StatsdSamplerTest {
+
+    // adjusted by hand; the scheduled adjustment never fires within a test
+    private final StatsdSampler sampler = new StatsdSampler( 100, 1000000, 2 );
+
+    @After
+    public void tearDown() {
+        sampler.shutdown();
+    }
+
+    private void admit( String key, int times ) {
+        for ( int i = 0; i < times; i++ ) {
+            sampler.admit( key );
+        }
+    }
+
+    @Test
+    public void picksTheLargestStepWithinBudget() {
+        assertEquals( 1.0D, sampler.rateFor( 100 ), 0 );
+        assertEquals( 0.5D, sampler.rateFor( 101 ), 0 );
+        assertEquals( 0.1D, sampler.rateFor( 1000 ), 0 );
+        assertEquals( 0.05D, sampler.rateFor( 1001 ), 0 );
+        assertEquals( 0.0001D, sampler.rateFor( 1e9 ), 0 );
+    }
+
+    @Test
+    public void rateStepsAreExactOnTheWire() {
+        for ( double step : StatsdSampler.RATE_STEPS ) {
+            byte[] wire = StatsdEncoder.formatSampleRate( step, StatsdClient.CHARSET );
+            double sent = Double.parseDouble( new String( wire, 2, wire.length - 2, StatsdClient.CHARSET ) );
+            assertEquals( step, sent, 0 );
+        }
+    }
+
+    @Test
+    public void combinedRatesAreExactOnTheWire() {
+        double[] callerRates = { 1.0D, 0.5D, 0.3D, 0.1D, 0.01D, 0.001D, 0.0001D, 0.000003D };
+        for ( double callerRate : callerRates ) {
+            for ( double step : StatsdSampler.RATE_STEPS ) {
+                double combined = StatsdSampler.combine( callerRate, step );
+                assertTrue( combined <= callerRate * step * ( 1 + 1e-9D ) );
+                if ( combined == 0 ) {
+                    // would print as |@0.000000; the stat is dropped instead
+                    assertTrue( callerRate * step < 0.000001D );
+                    continue;
+                }
+                byte[] wire = StatsdEncoder.formatSampleRate( combined, StatsdClient.CHARSET );
+                double sent = Double.parseDouble( new String( wire, 2, wire.length - 2, StatsdClient.CHARSET ) );
+                assertEquals( combined, sent, 0 );
+            }
+        }
+        assertEquals( 0.0025D, StatsdSampler.combine( 0.01D, 0.25D ), 0 );
+        assertEquals( 0.000002D, StatsdSampler.combine( 0.01D, 0.00025D ), 0 );
+        assertEquals( 0, StatsdSampler.combine( 0.001D, 0.0001D ), 0 );
+    }
+
+    @Test
+    public void throttlesHotKeysAndRecovers() {
+        admit( "hot", 1000 * 1000 );
+        admit( "cold", 10 );
+        sampler.adjust();
+        assertTrue( sampler.getRate( "hot" ) < 1.0D );
+        assertTrue( 1000 * sampler.getRate( "hot" ) <= 100 );
+        assertEquals( 1.0D, sampler.getRate( "cold" ), 0 );
+        assertEquals( 1, sampler.getThrottledKeyCount() );
+
+        // smoothed rate halves every interval with no traffic
+        for ( int i = 0; i < 20; i++ ) {
+            sampler.adjust();
+        }
+        assertEquals( 1.0D, sampler.getRate( "hot" ), 0 );
+    }
+
+    @Test
+    public void forgetsIdleKeysAndBoundsTrackedKeys() {
+        admit( "a", 1 );
+        admit( "b", 1 );
+        assertEquals( 1.0D, sampler.admit( "c" ), 0 );
+        assertEquals( 2, sampler.getTrackedKeyCount() );
+        assertNull( sampler.keyRate( "c" ) );
+
+        sampler.adjust();
+        sampler.adjust();
+        assertEquals( 0, sampler.getTrackedKeyCount() );
+    }
+}
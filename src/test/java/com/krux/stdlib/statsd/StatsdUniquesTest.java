@@ -0,0 +1,57 @@
+package com.krux.stdlib.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class StatsdUniquesTest {
+
+    private final Map<String, Long> emitted = new LinkedHashMap<String, Long>();
+
+    // flushed by hand; the scheduled flush never fires within a test
+    private final StatsdUniques uniques = new StatsdUniques( 1000000, 2 ) {
+        @Override
+        protected byte[] encodeKey( String key ) {
+            return null;
+        }
+
+        @Override
+        protected void emit( String key, byte[] encodedKey, long value ) {
+            emitted.put( key, value );
+        }
+    };
+
+    @After
+    public void tearDown() {
+        uniques.shutdown();
+    }
+
+    @Test
+    public void emitsZeroForIdleKeysAndForgetsThem() {
+        for ( int i = 0; i < 100; i++ ) {
+            assertTrue( uniques.add( "a", i % 10 ) );
+            assertTrue( uniques.add( "b", "user" + i ) );
+        }
+        assertFalse( uniques.add( "c", 1 ) );
+
+        uniques.flush();
+        assertEquals( 10, emitted.get( "a" ), 1 );
+        assertEquals( 100, emitted.get( "b" ), 5 );
+
+        uniques.add( "a", 1 );
+        emitted.clear();
+        uniques.flush();
+        assertEquals( Long.valueOf( 1 ), emitted.get( "a" ) );
+        assertEquals( Long.valueOf( 0 ), emitted.get( "b" ) );
+        assertEquals( 1, uniques.getKeyCount() );
+
+        // b's slot is free again
+        assertTrue( uniques.add( "c", 1 ) );
+    }
+}
@@ -0,0 +1,59 @@
+package com.krux.stdlib.statsd;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+
+/**
+ * Loopback send throughput of the UDP transports: one thread sends 1M
+ * 30-byte stats through each, three rounds, to a socket drained by another
+ * thread. Not a test (surefire skips it); run it with
+ * 
+ * <pre>
+ * mvn test-compile
+ * java -cp target/classes:target/test-classes com.krux.stdlib.statsd.TransportBenchmark
+ * </pre>
+ */
+public class TransportBenchmark {
+
+    private static final int SENDS = 1000000;
+
+    public static void main( String[] args ) throws Exception {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        final DatagramSocket sink = new DatagramSocket( 0, loopback );
+        sink.setReceiveBufferSize( 8 << 20 );
+        Thread drain = new Thread( new Runnable() {
+            @Override
+            public void run() {
+                byte[] buf = new byte[65536];
+                DatagramPacket packet = new DatagramPacket( buf, buf.length );
+                try {
+                    while ( true ) {
+                        sink.receive( packet );
+                    }
+                } catch ( Exception e ) {
+                    // closed
+                }
+            }
+        } );
+        drain.setDaemon( true );
+        drain.start();
+
+        byte[] stat = "dev.app.http_requests.host:1|c".getBytes( "US-ASCII" );
+        for ( int round = 0; round < 3; round++ ) {
+            StatsdTransport[] transports = { new DatagramSocketTransport( loopback, sink.getLocalPort() ),
+                    new DatagramChannelTransport( loopback, sink.getLocalPort() ) };
+            for ( StatsdTransport transport : transports ) {
+                long start = System.nanoTime();
+                for ( int i = 0; i < SENDS; i++ ) {
+                    transport.send( stat, 0, stat.length );
+                }
+                long elapsed = System.nanoTime() - start;
+                System.out.printf( "round %d %-26s %.0f sends/s%n", round, transport.getClass().getSimpleName(),
+                        SENDS / ( elapsed / 1e9 ) );
+                transport.close();
+            }
+        }
+        sink.close();
+    }
+}
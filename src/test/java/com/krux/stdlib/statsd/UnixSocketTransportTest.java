@@ -0,0 +1,159 @@
+package com.krux.stdlib.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerDomainSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UnixSocketTransportTest {
+
+    private File socketFile;
+    private EventLoopGroup group;
+    private Channel server;
+    private final LinkedBlockingQueue<String> received = new LinkedBlockingQueue<String>();
+
+    @Test
+    public void framesCarryLittleEndianLength() {
+        byte[] packet = "a.b:1|c\ng:3|g".getBytes( StatsdClient.CHARSET );
+        ByteBuf buf = UnixSocketTransport.frame( UnpooledByteBufAllocator.DEFAULT, packet, 0, packet.length );
+        try {
+            assertEquals( packet.length + 4, buf.readableBytes() );
+            assertEquals( packet.length, buf.order( ByteOrder.LITTLE_ENDIAN ).readInt() );
+            assertEquals( "a.b:1|c\ng:3|g", buf.toString( StatsdClient.CHARSET ) );
+        } finally {
+            buf.release();
+        }
+    }
+
+    private void startServer() throws Exception {
+        assumeTrue( UnixSocketTransport.isSupported() );
+        socketFile = File.createTempFile( "statsd", ".sock" );
+        socketFile.delete();
+        group = new EpollEventLoopGroup( 1 );
+        server = new ServerBootstrap().group( group ).channel( EpollServerDomainSocketChannel.class )
+                .childHandler( new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel( Channel ch ) {
+                        // dogstatsd framing: 4-byte little-endian length, then the packet
+                        ch.pipeline().addLast( new LengthFieldBasedFrameDecoder( ByteOrder.LITTLE_ENDIAN, 65536, 0, 4, 0, 4, true ) );
+                        ch.pipeline().addLast( new ChannelInboundHandlerAdapter() {
+                            @Override
+                            public void channelRead( ChannelHandlerContext ctx, Object msg ) {
+                                ByteBuf buf = (ByteBuf) msg;
+                                received.add( buf.toString( StatsdClient.CHARSET ) );
+                                buf.release();
+                            }
+                        } );
+                    }
+                } ).bind( new DomainSocketAddress( socketFile ) ).sync().channel();
+    }
+
+    @After
+    public void tearDown() {
+        if ( group != null ) {
+            server.close().awaitUninterruptibly();
+            group.shutdownGracefully( 0, 0, TimeUnit.MILLISECONDS );
+            socketFile.delete();
+        }
+    }
+
+    private String receive() throws InterruptedException {
+        String s = received.poll( 2, TimeUnit.SECONDS );
+        return s == null ? "" : s;
+    }
+
+    @Test
+    public void clientSendsOneFramePerPacket() throws Exception {
+        startServer();
+        StatsdClient client = new StatsdClient( new UnixSocketTransport( socketFile.getPath() ), null, 0 );
+        client.count( "a.b" );
+        client.gauge( "g", 3 );
+        client.shutdown();
+        assertEquals( "a.b:1|c", receive() );
+        assertEquals( "g:3|g", receive() );
+    }
+
+    @Test
+    public void saysWhyItIsUnsupported() throws Exception {
+        assertEquals( UnixSocketTransport.isSupported(), UnixSocketTransport.unavailabilityCause() == null );
+        if ( !UnixSocketTransport.isSupported() ) {
+            try {
+                new UnixSocketTransport( "/nonexistent.sock" );
+                fail();
+            } catch ( IOException e ) {
+                assertSame( UnixSocketTransport.unavailabilityCause(), e.getCause() );
+            }
+        }
+    }
+
+    @Test( expected = IOException.class )
+    public void failsWhenNothingListens() throws Exception {
+        startServer();
+        new UnixSocketTransport( socketFile.getPath() + ".missing" );
+    }
+
+    @Test
+    public void fallsBackWhileDisconnected() throws Exception {
+        startServer();
+        final StringBuilder udp = new StringBuilder();
+        StatsdTransport fallback = new StatsdTransport() {
+            public boolean send( byte[] data, int offset, int length ) {
+                udp.append( new String( data, offset, length, StatsdClient.CHARSET ) );
+                return true;
+            }
+
+            public boolean isAvailable() {
+                return true;
+            }
+
+            public void close() {
+            }
+        };
+        UnixSocketTransport unix = new UnixSocketTransport( socketFile.getPath(), 60000,
+                UnixSocketTransport.DEFAULT_MAX_PENDING_BYTES );
+        FallbackTransport transport = new FallbackTransport( unix, fallback );
+        try {
+            byte[] a = "a:1|c".getBytes( StatsdClient.CHARSET );
+            assertTrue( transport.send( a, 0, a.length ) );
+            assertEquals( "a:1|c", receive() );
+            assertEquals( "", udp.toString() );
+
+            // agent goes away
+            server.close().sync();
+            group.shutdownGracefully( 0, 0, TimeUnit.MILLISECONDS ).sync();
+            for ( int i = 0; i < 100 && unix.isAvailable(); i++ ) {
+                Thread.sleep( 10 );
+            }
+            assertFalse( unix.isAvailable() );
+            byte[] b = "b:2|c".getBytes( StatsdClient.CHARSET );
+            assertTrue( transport.send( b, 0, b.length ) );
+            assertEquals( "b:2|c", udp.toString() );
+        } finally {
+            transport.close();
+        }
+    }
+}